@@ -0,0 +1,330 @@
+package ua.at.tsvetkov.harness;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ua.at.tsvetkov.io.DownloadManager;
+import ua.at.tsvetkov.io.FileInet;
+
+/**
+ * Checks of the resumable FileInet downloads and of DownloadManager against the local HttpStandIn server: retries after a connection
+ * reset, resume in the next call, If-Range with a changed remote file, weak and missing validators, a completed part, HTTP errors,
+ * cancel, the per-host limit, the priority order and the URL coalescing. The retry delays of FileInet are real, so a run takes about
+ * half a minute.
+ * <p/>
+ * Run: ./gradlew :benchmark:downloadHarness, the exit code is not zero if a check failed.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class DownloadHarness {
+
+    private static final int BODY_SIZE = 10 * 1024 * 1024 + 123;
+    private static final int SMALL_BODY_SIZE = 100000;
+
+    // The layout of FileInet.PartState, written by hand to emulate a crash after the last byte
+    private static final int STATE_MAGIC = 0x54414f52;
+    private static final int STATE_VERSION = 1;
+
+    private final HttpStandIn server;
+    private final File dir;
+    private int failed;
+
+    private DownloadHarness(HttpStandIn server, File dir) {
+        this.server = server;
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HttpStandIn server = new HttpStandIn();
+        File dir = Files.createTempDirectory("download-harness").toFile();
+        DownloadHarness harness = new DownloadHarness(server, dir);
+        try {
+            harness.checkResume();
+            harness.checkManager();
+        } finally {
+            server.close();
+        }
+        System.out.println(harness.failed == 0 ? "All checks passed" : harness.failed + " checks failed");
+        System.exit(harness.failed == 0 ? 0 : 1);
+    }
+
+    // ==========================================================
+
+    private void checkResume() throws Exception {
+        byte[] data = new byte[BODY_SIZE];
+        new Random(1).nextBytes(data);
+        server.setBody(data);
+        server.setEtag("\"v1\"");
+        String url = server.getUrl("/pack");
+        File file = new File(dir, "pack.bin");
+        File part = new File(file.getPath() + FileInet.PART_SUFFIX);
+        File state = new File(file.getPath() + FileInet.STATE_SUFFIX);
+
+        server.reset();
+        server.setDrops(2, 3500000);
+        boolean result = FileInet.download(url, file.getPath());
+        List<String> requests = server.getRequests();
+        check("retried after resets in one call", result && isContent(file, data) && !part.exists() && !state.exists(), requests);
+        check("retries continue with Range and If-Range", requests.size() == 3 && requests.get(0).equals("/pack|null|null|identity")
+                && requests.get(1).startsWith("/pack|bytes=") && requests.get(2).endsWith("|\"v1\"|identity"), requests);
+
+        delete(file);
+        server.reset();
+        server.setDrops(FileInet.RETRY_COUNT + 2, 1000000);
+        result = FileInet.download(url, file.getPath());
+        check("failed call keeps the part", !result && part.length() > 0 && state.exists() && !file.exists(), part.length());
+        server.setDrops(0, 0);
+        result = FileInet.download(url, file.getPath());
+        requests = server.getRequests();
+        check("next call resumes the part", result && isContent(file, data) && !part.exists() && last(requests).contains("|bytes="), requests);
+
+        delete(file);
+        server.setDrops(FileInet.RETRY_COUNT + 2, 1000000);
+        FileInet.download(url, file.getPath());
+        data[5] ^= 1;
+        server.setEtag("\"v2\"");
+        server.setDrops(0, 0);
+        server.reset();
+        result = FileInet.download(url, file.getPath());
+        requests = server.getRequests();
+        check("changed remote file is downloaded whole", result && isContent(file, data) && last(requests).endsWith("|\"v1\"|identity"), requests);
+
+        delete(file);
+        server.setEtag("W/\"weak\"");
+        server.setLastModified("Wed, 21 Oct 2015 07:28:00 GMT");
+        server.setDrops(1, 1000000);
+        server.reset();
+        result = FileInet.download(url, file.getPath());
+        requests = server.getRequests();
+        check("weak ETag falls back to Last-Modified", result && isContent(file, data) && last(requests).contains("|Wed, 21 Oct 2015"), requests);
+
+        delete(file);
+        server.setEtag(null);
+        server.setLastModified(null);
+        server.setDrops(1, 1000000);
+        server.reset();
+        result = FileInet.download(url, file.getPath());
+        requests = server.getRequests();
+        check("no validator restarts from zero", result && isContent(file, data) && requests.size() == 2 && last(requests).equals("/pack|null|null|identity")
+                && !state.exists(), requests);
+
+        delete(file);
+        server.setEtag("\"v2\"");
+        server.reset();
+        Files.write(part.toPath(), data);
+        writeState(state, url, "\"v2\"", data.length, data.length);
+        result = FileInet.download(url, file.getPath());
+        requests = server.getRequests();
+        check("completed part is accepted on 416", result && isContent(file, data) && !state.exists() && requests.size() == 1, requests);
+
+        delete(file);
+        server.reset();
+        Files.write(part.toPath(), Arrays.copyOf(data, 1000));
+        writeState(state, url, "\"v2\"", data.length + 5, 1000);
+        result = FileInet.download(url, file.getPath());
+        requests = server.getRequests();
+        check("other Content-Range restarts from zero", result && isContent(file, data) && requests.size() == 2
+                && last(requests).equals("/pack|null|null|identity"), requests);
+
+        delete(file);
+        server.reset();
+        Files.write(part.toPath(), Arrays.copyOf(data, data.length + 50));
+        writeState(state, url, "\"v2\"", data.length + 100, data.length + 50);
+        result = FileInet.download(url, file.getPath());
+        requests = server.getRequests();
+        check("416 for an incomplete part restarts from zero", result && isContent(file, data) && requests.size() == 2
+                && last(requests).equals("/pack|null|null|identity"), requests);
+
+        delete(file);
+        server.setDrops(FileInet.RETRY_COUNT + 2, 1000000);
+        FileInet.download(url, file.getPath());
+        server.setDrops(0, 0);
+        server.setStatus(404);
+        result = FileInet.download(url, file.getPath());
+        server.setStatus(0);
+        check("HTTP error deletes the part", !result && !part.exists() && !state.exists(), part.exists());
+
+        Files.write(file.toPath(), new byte[]{1});
+        result = FileInet.download(url, file.getPath());
+        check("existing file is replaced", result && isContent(file, data), file.length());
+
+        delete(file);
+        server.setDelays(0, 5);
+        File target = new File(file.getPath() + DownloadManager.DOWNLOAD_SUFFIX);
+        File targetPart = new File(target.getPath() + FileInet.PART_SUFFIX);
+        File targetState = new File(target.getPath() + FileInet.STATE_SUFFIX);
+        DownloadManager.Download download = new DownloadManager(2, 2).enqueue(url, file, true, DownloadManager.PRIORITY_NORMAL, null, null);
+        Thread.sleep(500);
+        download.cancel();
+        Thread.sleep(500);
+        server.setDelays(0, 0);
+        check("cancel deletes the part", !targetPart.exists() && !targetState.exists() && !target.exists() && !file.exists(), targetPart.exists());
+    }
+
+    private void checkManager() throws Exception {
+        byte[] data = new byte[SMALL_BODY_SIZE];
+        new Random(2).nextBytes(data);
+        server.setBody(data);
+        server.reset();
+        // The first two downloads hold both slots of the host until the rest is queued, so the order doesn't depend on the thread timing
+        CountDownLatch gate = new CountDownLatch(1);
+        server.setGate(gate);
+        DownloadManager manager = new DownloadManager(4, 2);
+        final CountDownLatch latch = new CountDownLatch(9);
+        final Map<String, Boolean> results = new ConcurrentHashMap<>();
+        FileInet.CompleteListener listener = new FileInet.CompleteListener() {
+            @Override
+            public void complete(String fileName, boolean result) {
+                results.put(fileName + "#" + latch.getCount(), result);
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < 7; i++) {
+            manager.enqueue(server.getUrl("/f" + i), new File(dir, "f" + i), true, DownloadManager.PRIORITY_LOW, listener, null);
+        }
+        manager.enqueue(server.getUrl("/high"), new File(dir, "high"), true, DownloadManager.PRIORITY_HIGH, listener, null);
+        manager.enqueue(server.getUrl("/f6"), new File(dir, "f6b"), true, DownloadManager.PRIORITY_NORMAL, listener, null);
+        manager.enqueue(server.getUrl("/f6"), new File(dir, "f6c"), true, DownloadManager.PRIORITY_NORMAL, listener, null).cancel();
+        boolean isStarted = awaitRequests(2, 5000);
+        server.setGate(null);
+        gate.countDown();
+        boolean isCompleted = latch.await(20, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        List<String> requests = server.getRequests();
+        check("all listeners are called with success", isCompleted && results.size() == 9 && !results.containsValue(false), results);
+        check("per-host limit is kept", server.getMaxActive() <= 2, server.getMaxActive());
+        // The two freed slots take /high and /f6 (raised to normal by f6b) in any order, the low ones wait
+        int high = indexOf(requests, "/high|");
+        check("high priority goes before the waiting ones", isStarted && (high == 2 || high == 3) && high < indexOf(requests, "/f2|"), requests);
+        int hits = 0;
+        for (String request : requests) {
+            if (request.startsWith("/f6|")) {
+                hits++;
+            }
+        }
+        check("same URL is downloaded once", hits == 1 && isContent(new File(dir, "f6"), data) && isContent(new File(dir, "f6b"), data)
+                && !new File(dir, "f6c").exists(), requests);
+
+        server.setDelays(0, 20);
+        final AtomicBoolean isCalled = new AtomicBoolean();
+        File canceled = new File(dir, "canceled");
+        DownloadManager.Download download = manager.enqueue(server.getUrl("/canceled"), canceled, true, DownloadManager.PRIORITY_NORMAL,
+                new FileInet.CompleteListener() {
+                    @Override
+                    public void complete(String fileName, boolean result) {
+                        isCalled.set(true);
+                    }
+                }, null);
+        Thread.sleep(200);
+        download.cancel();
+        Thread.sleep(500);
+        server.setDelays(0, 0);
+        check("canceled download is silent and removed", !isCalled.get() && !canceled.exists() && manager.getRunningCount() == 0,
+                isCalled.get());
+
+        File owner = new File(dir, "owner");
+        File joined = new File(dir, "joined");
+        Files.write(owner.toPath(), new byte[]{7});
+        server.setDelays(0, 20);
+        final CountDownLatch joinedDone = new CountDownLatch(1);
+        DownloadManager.Download ownerDownload = manager.enqueue(server.getUrl("/shared"), owner, true, DownloadManager.PRIORITY_NORMAL, null, null);
+        manager.enqueue(server.getUrl("/shared"), joined, true, DownloadManager.PRIORITY_NORMAL, new FileInet.CompleteListener() {
+            @Override
+            public void complete(String fileName, boolean result) {
+                joinedDone.countDown();
+            }
+        }, null);
+        Thread.sleep(50);
+        ownerDownload.cancel();
+        boolean isJoinedDone = joinedDone.await(20, TimeUnit.SECONDS);
+        server.setDelays(0, 0);
+        check("owner cancel keeps its file, the others get the data", isJoinedDone && isContent(joined, data)
+                && Arrays.equals(Files.readAllBytes(owner.toPath()), new byte[]{7}), owner.length());
+
+        final CountDownLatch failure = new CountDownLatch(1);
+        final AtomicBoolean failureResult = new AtomicBoolean(true);
+        manager.enqueue("http://127.0.0.1:1/unreachable", new File(dir, "unreachable"), true, DownloadManager.PRIORITY_NORMAL,
+                new FileInet.CompleteListener() {
+                    @Override
+                    public void complete(String fileName, boolean result) {
+                        failureResult.set(result);
+                        failure.countDown();
+                    }
+                }, null);
+        check("unreachable host reports failure", failure.await(60, TimeUnit.SECONDS) && !failureResult.get(), failureResult.get());
+
+        DownloadManager.Download existing = manager.enqueue(server.getUrl("/f0"), new File(dir, "f0"), false, DownloadManager.PRIORITY_NORMAL,
+                null, null);
+        check("existing file without rewrite is done at once", existing.isDone(), existing.isDone());
+        manager.cancelAll();
+    }
+
+    // ==========================================================
+
+    private void check(String name, boolean isPassed, Object detail) {
+        if (isPassed) {
+            System.out.println("PASS " + name);
+        } else {
+            failed++;
+            System.out.println("FAIL " + name + " > " + detail);
+        }
+    }
+
+    private static boolean isContent(File file, byte[] data) throws IOException {
+        return file.isFile() && Arrays.equals(Files.readAllBytes(file.toPath()), data);
+    }
+
+    private boolean awaitRequests(int count, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (server.getRequests().size() < count) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static int indexOf(List<String> requests, String prefix) {
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i).startsWith(prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String last(List<String> requests) {
+        return requests.isEmpty() ? "" : requests.get(requests.size() - 1);
+    }
+
+    private static void delete(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static void writeState(File file, String url, String validator, long total, long length) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(url);
+            out.writeUTF(validator);
+            out.writeLong(total);
+            out.writeLong(length);
+        } finally {
+            out.close();
+        }
+    }
+
+}
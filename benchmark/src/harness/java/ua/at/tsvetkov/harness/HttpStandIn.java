@@ -0,0 +1,308 @@
+package ua.at.tsvetkov.harness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on a plain ServerSocket for the download harness. Every path serves the same body with the ETag and
+ * Last-Modified validators, honours Range with If-Range, and closes the connection after each response. The faults are injected
+ * directly on the socket: the next responses can be cut after some bytes with a connection reset, slowed down, held by a gate or replaced
+ * by a status.
+ * <p/>
+ * Each request is recorded as "path|Range|If-Range|Accept-Encoding" for the checks.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class HttpStandIn implements Closeable {
+
+    private static final int CHUNK = 8192;
+
+    private final ServerSocket server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger drops = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private volatile byte[] body = new byte[0];
+    private volatile String etag;
+    private volatile String lastModified;
+    private volatile int status;
+    private volatile int dropAfter;
+    private volatile long responseDelay;
+    private volatile long chunkDelay;
+    private volatile CountDownLatch gate;
+
+    public HttpStandIn() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @param path path starting with '/'
+     * @return URL of the path on this server
+     */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getLocalPort() + path;
+    }
+
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    /**
+     * @param etag ETag header value or null to not send it
+     */
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * @param lastModified Last-Modified header value or null to not send it
+     */
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param status status sent instead of the body without headers, 0 to serve the body
+     */
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Reset the connection of the next responses after the given count of body bytes.
+     *
+     * @param count     count of responses to cut
+     * @param dropAfter count of body bytes sent before the reset
+     */
+    public void setDrops(int count, int dropAfter) {
+        this.dropAfter = dropAfter;
+        drops.set(count);
+    }
+
+    /**
+     * @param responseDelay time in milliseconds before the response headers
+     * @param chunkDelay    time in milliseconds after each sent chunk of body
+     */
+    public void setDelays(long responseDelay, long chunkDelay) {
+        this.responseDelay = responseDelay;
+        this.chunkDelay = chunkDelay;
+    }
+
+    /**
+     * Hold the responses until the gate is opened, the requests are still recorded when they come.
+     *
+     * @param gate the gate or null to respond at once
+     */
+    public void setGate(CountDownLatch gate) {
+        this.gate = gate;
+    }
+
+    /**
+     * @return copy of the recorded requests
+     */
+    public List<String> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    /**
+     * Clear the recorded requests and the max count of concurrent requests.
+     */
+    public void reset() {
+        requests.clear();
+        maxActive.set(0);
+    }
+
+    /**
+     * @return max count of the requests served at once since the last reset
+     */
+    public int getMaxActive() {
+        return maxActive.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        executor.shutdownNow();
+    }
+
+    // ==========================================================
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int count = active.incrementAndGet();
+                    synchronized (maxActive) {
+                        if (count > maxActive.get()) {
+                            maxActive.set(count);
+                        }
+                    }
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // the client has gone, nothing to report
+                    } finally {
+                        active.decrementAndGet();
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String path = readRequest(socket.getInputStream(), headers);
+        if (path == null) {
+            return;
+        }
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        requests.add(path + "|" + range + "|" + ifRange + "|" + headers.get("accept-encoding"));
+        CountDownLatch responseGate = gate;
+        if (responseGate != null) {
+            try {
+                responseGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted");
+            }
+        }
+        sleep(responseDelay);
+        OutputStream out = socket.getOutputStream();
+        if (status != 0) {
+            writeHead(out, status + " Error", 0, null);
+            return;
+        }
+        byte[] data = body;
+        String validator = etag != null ? etag : lastModified;
+        StringBuilder extra = new StringBuilder();
+        if (etag != null) {
+            extra.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (lastModified != null) {
+            extra.append("Last-Modified: ").append(lastModified).append("\r\n");
+        }
+        int from = 0;
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-") && (ifRange == null || ifRange.equals(validator))) {
+            from = Integer.parseInt(range.substring(6, range.length() - 1));
+            if (from >= data.length) {
+                extra.append("Content-Range: bytes */").append(data.length).append("\r\n");
+                writeHead(out, "416 Range Not Satisfiable", 0, extra);
+                return;
+            }
+            extra.append("Content-Range: bytes ").append(from).append('-').append(data.length - 1).append('/').append(data.length).append("\r\n");
+            writeHead(out, "206 Partial Content", data.length - from, extra);
+        } else {
+            writeHead(out, "200 OK", data.length, extra);
+        }
+        boolean isDrop = drops.getAndDecrement() > 0;
+        for (int offset = from; offset < data.length; offset += CHUNK) {
+            if (isDrop && offset - from >= dropAfter) {
+                // Reset instead of the orderly close, the client sees a broken connection and not a short body
+                socket.setSoLinger(true, 0);
+                return;
+            }
+            out.write(data, offset, Math.min(CHUNK, data.length - offset));
+            out.flush();
+            sleep(chunkDelay);
+        }
+    }
+
+    /**
+     * Read the request line and the headers, the header names are lower case.
+     *
+     * @return request path or null if the connection is closed before the request
+     */
+    private static String readRequest(InputStream in, Map<String, String> headers) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        String[] parts = requestLine.split(" ");
+        return parts.length > 1 ? parts[1] : null;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                String text = line.toString("ISO-8859-1");
+                return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+    }
+
+    private static void writeHead(OutputStream out, String status, long length, CharSequence extra) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Content-Length: ").append(length).append("\r\n");
+        head.append("Connection: close\r\n");
+        if (extra != null) {
+            head.append(extra);
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static void sleep(long time) throws SocketException {
+        if (time <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(time);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted");
+        }
+    }
+
+}
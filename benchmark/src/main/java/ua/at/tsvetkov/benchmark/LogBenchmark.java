@@ -0,0 +1,140 @@
+package ua.at.tsvetkov.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Single thread cost of the Log calls. Every benchmark runs with the log enabled and disabled, so the result shows both
+ * the full cost of a call and the cost of a call which is cut off by Log.setDisabled(true).
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+    private static final String MESSAGE = "Benchmark message";
+    private static final String XML = "<root><item id=\"1\"><name>first</name></item><item id=\"2\"><name>second</name></item></root>";
+
+    @Param({"false", "true"})
+    public boolean disabled;
+
+    @Param({"16", "1024"})
+    public int size;
+
+    private byte[] bytes;
+    private Map<String, Integer> map;
+    private List<String> list;
+    private Sample sample;
+
+    @Setup
+    public void setup() {
+        Log.setDisabled(disabled);
+        bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        map = new LinkedHashMap<>();
+        list = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            map.put("key" + i, i);
+            list.add("item" + i);
+        }
+        sample = new Sample();
+    }
+
+    /**
+     * Log.v(String) - the stack walking getTag() path.
+     */
+    @Benchmark
+    public long tag() {
+        Log.v(MESSAGE);
+        return android.util.Log.getSink();
+    }
+
+    /**
+     * Log.v(Object, String) - the gatExtendedTag(Object) path.
+     */
+    @Benchmark
+    public long extendedTag() {
+        Log.v(sample, MESSAGE);
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long hex() {
+        Log.v(Log.hex(bytes));
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long hexPerLine() {
+        Log.hex(bytes, 16);
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long map() {
+        Log.v(Log.map(map));
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long list() {
+        Log.v(Log.list(list));
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long obj() {
+        Log.v(Log.obj(sample));
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long objs() {
+        Log.v(Log.objs(sample));
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long xml() {
+        Log.v(Log.xml(XML));
+        return android.util.Log.getSink();
+    }
+
+    /**
+     * Plain object for the reflection based obj()/objs() and for the extended tag.
+     */
+    static class Sample {
+
+        private int id = 42;
+        private long time = 1453000000000L;
+        private String name = "Sample name";
+        private double value = 3.1415;
+        private boolean isActive = true;
+        private int[] data = new int[]{1, 2, 3};
+
+    }
+
+}
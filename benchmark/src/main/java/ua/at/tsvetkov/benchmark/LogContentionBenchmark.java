@@ -0,0 +1,60 @@
+package ua.at.tsvetkov.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Log calls from several threads at once. All threads share the static Log state (the disabled flag, the stamp and the
+ * self adjusting tag length), so this shows how the logger behaves when a background pool logs together with the UI.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class LogContentionBenchmark {
+
+    private static final String MESSAGE = "Benchmark message";
+
+    @Param({"false", "true"})
+    public boolean disabled;
+
+    private final Object owner = new Object();
+
+    @Setup
+    public void setup() {
+        Log.setDisabled(disabled);
+        Log.setStamp("bench");
+    }
+
+    @Benchmark
+    public long tag() {
+        Log.v(MESSAGE);
+        return android.util.Log.getSink();
+    }
+
+    @Benchmark
+    public long extendedTag() {
+        Log.v(owner, MESSAGE);
+        return android.util.Log.getSink();
+    }
+
+}
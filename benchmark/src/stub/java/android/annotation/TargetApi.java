@@ -0,0 +1,10 @@
+package android.annotation;
+
+/**
+ * Desktop JVM stand-in for the android.annotation.TargetApi used by the io sources.
+ */
+public @interface TargetApi {
+
+    int value();
+
+}
@@ -0,0 +1,10 @@
+package android.content;
+
+/**
+ * Desktop JVM stand-in for the android.content.BroadcastReceiver used by the io sources.
+ */
+public abstract class BroadcastReceiver {
+
+    public abstract void onReceive(Context context, Intent intent);
+
+}
@@ -0,0 +1,22 @@
+package android.content;
+
+import android.content.res.AssetManager;
+
+import java.io.File;
+
+/**
+ * Desktop JVM stand-in for the android.content.Context methods used by the io sources.
+ */
+public abstract class Context {
+
+    public abstract Context getApplicationContext();
+
+    public abstract AssetManager getAssets();
+
+    public abstract File getCacheDir();
+
+    public abstract Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter);
+
+    public abstract void unregisterReceiver(BroadcastReceiver receiver);
+
+}
@@ -0,0 +1,10 @@
+package android.content;
+
+/**
+ * Desktop JVM stand-in for the android.content.Intent members used by the io sources.
+ */
+public class Intent {
+
+    public static final String ACTION_DEVICE_STORAGE_LOW = "android.intent.action.DEVICE_STORAGE_LOW";
+
+}
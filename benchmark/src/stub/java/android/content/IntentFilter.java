@@ -0,0 +1,11 @@
+package android.content;
+
+/**
+ * Desktop JVM stand-in for the android.content.IntentFilter used by the io sources.
+ */
+public class IntentFilter {
+
+    public IntentFilter(String action) {
+    }
+
+}
@@ -0,0 +1,26 @@
+package android.content.res;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Desktop JVM stand-in for the android.content.res.AssetFileDescriptor methods used by the io sources.
+ */
+public class AssetFileDescriptor {
+
+    public FileInputStream createInputStream() throws IOException {
+        throw new IOException("No assets on the desktop JVM");
+    }
+
+    public long getStartOffset() {
+        return 0;
+    }
+
+    public long getLength() {
+        return 0;
+    }
+
+    public void close() throws IOException {
+    }
+
+}
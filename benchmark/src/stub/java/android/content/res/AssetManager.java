@@ -0,0 +1,24 @@
+package android.content.res;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Desktop JVM stand-in for the android.content.res.AssetManager methods used by the io sources. There are no assets on the desktop.
+ */
+public class AssetManager {
+
+    public InputStream open(String fileName) throws IOException {
+        throw new FileNotFoundException(fileName);
+    }
+
+    public AssetFileDescriptor openFd(String fileName) throws IOException {
+        throw new FileNotFoundException(fileName);
+    }
+
+    public String[] list(String path) throws IOException {
+        return new String[0];
+    }
+
+}
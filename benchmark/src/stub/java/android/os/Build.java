@@ -0,0 +1,24 @@
+package android.os;
+
+/**
+ * Desktop JVM stand-in for the android.os.Build constants used by the io sources. Reports Lollipop, so the android.system.Os paths are
+ * taken.
+ */
+public final class Build {
+
+    private Build() {
+    }
+
+    public static final class VERSION {
+
+        public static final int SDK_INT = VERSION_CODES.LOLLIPOP;
+
+    }
+
+    public static final class VERSION_CODES {
+
+        public static final int LOLLIPOP = 21;
+
+    }
+
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Desktop JVM stand-in for the android.os.Handler used by the io sources. Runs the posted task on the calling thread.
+ */
+public class Handler {
+
+    public Handler(Looper looper) {
+    }
+
+    public boolean post(Runnable runnable) {
+        runnable.run();
+        return true;
+    }
+
+}
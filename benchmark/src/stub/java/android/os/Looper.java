@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Desktop JVM stand-in for the android.os.Looper used by the io sources. There is no main thread loop on the desktop.
+ */
+public final class Looper {
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return null;
+    }
+
+}
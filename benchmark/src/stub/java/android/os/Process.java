@@ -0,0 +1,23 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Desktop JVM stand-in for the android.os.Process methods used by the io sources.
+ */
+public final class Process {
+
+    private Process() {
+    }
+
+    public static int myPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        try {
+            return Integer.parseInt(at < 0 ? name : name.substring(0, at));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
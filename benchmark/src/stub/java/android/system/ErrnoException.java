@@ -0,0 +1,12 @@
+package android.system;
+
+/**
+ * Desktop JVM stand-in for the android.system.ErrnoException used by the io sources.
+ */
+public final class ErrnoException extends Exception {
+
+    public ErrnoException(String functionName, Throwable cause) {
+        super(functionName, cause);
+    }
+
+}
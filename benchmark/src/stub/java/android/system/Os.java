@@ -0,0 +1,36 @@
+package android.system;
+
+import java.io.File;
+import java.io.FileDescriptor;
+
+/**
+ * Desktop JVM stand-in for the android.system.Os calls used by the io sources. A directory can't be opened by the JVM, so open() returns
+ * a placeholder descriptor and the directory fsync is a no-op; stat() reports the modification time as the access time too.
+ */
+public final class Os {
+
+    private Os() {
+    }
+
+    public static FileDescriptor open(String path, int flags, int mode) throws ErrnoException {
+        return new FileDescriptor();
+    }
+
+    public static void fsync(FileDescriptor fd) throws ErrnoException {
+    }
+
+    public static void close(FileDescriptor fd) throws ErrnoException {
+    }
+
+    public static StructStat stat(String path) throws ErrnoException {
+        File file = new File(path);
+        if (!file.exists()) {
+            throw new ErrnoException("stat", null);
+        }
+        StructStat stat = new StructStat();
+        stat.st_mtime = file.lastModified() / 1000;
+        stat.st_atime = stat.st_mtime;
+        return stat;
+    }
+
+}
@@ -0,0 +1,13 @@
+package android.system;
+
+/**
+ * Desktop JVM stand-in for the android.system.OsConstants used by the io sources.
+ */
+public final class OsConstants {
+
+    public static final int O_RDONLY = 0;
+
+    private OsConstants() {
+    }
+
+}
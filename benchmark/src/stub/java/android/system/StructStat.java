@@ -0,0 +1,11 @@
+package android.system;
+
+/**
+ * Desktop JVM stand-in for the android.system.StructStat fields used by the io sources, times are in seconds.
+ */
+public final class StructStat {
+
+    public long st_atime;
+    public long st_mtime;
+
+}
@@ -0,0 +1,15 @@
+package android.text;
+
+/**
+ * Desktop JVM stand-in for the android.text.TextUtils methods used by the benchmarked sources.
+ */
+public final class TextUtils {
+
+    private TextUtils() {
+    }
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+
+}
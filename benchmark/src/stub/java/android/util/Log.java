@@ -0,0 +1,97 @@
+package android.util;
+
+/**
+ * Desktop JVM stand-in for the android.util.Log used by the benchmarks. Every call goes to a sink that only accumulates
+ * the length of the tag and message, so the benchmark measures the library side of logging and not the console output.
+ * The sink is per thread, so the multithreaded benchmarks don't measure the contention on the stub itself.
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private static final ThreadLocal<Sink> SINK = new ThreadLocal<Sink>() {
+        @Override
+        protected Sink initialValue() {
+            return new Sink();
+        }
+    };
+
+    private Log() {
+    }
+
+    /**
+     * Total length of the tags and messages logged by the current thread. Return it from a benchmark to keep the JIT from
+     * dropping the calls.
+     *
+     * @return accumulated length
+     */
+    public static long getSink() {
+        return SINK.get().value;
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg);
+    }
+
+    public static int v(String tag, String msg, Throwable tr) {
+        return println(VERBOSE, tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg);
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return println(DEBUG, tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg);
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return println(INFO, tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg);
+    }
+
+    public static int wtf(String tag, String msg) {
+        return println(ASSERT, tag, msg);
+    }
+
+    public static int wtf(String tag, String msg, Throwable tr) {
+        return println(ASSERT, tag, msg);
+    }
+
+    public static int println(int priority, String tag, String msg) {
+        int length = tag.length() + msg.length();
+        SINK.get().value += length;
+        return length;
+    }
+
+    private static final class Sink {
+
+        private long value;
+
+    }
+
+}
@@ -0,0 +1,27 @@
+package ua.at.tsvetkov.application;
+
+import java.io.File;
+
+/**
+ * Desktop JVM stand-in for the AppConfig methods used by the io sources. The working directory is the taocore.workDir system property,
+ * java.io.tmpdir/taocore by default.
+ */
+public final class AppConfig {
+
+    private AppConfig() {
+    }
+
+    public static String getApplicationWorkingDir() {
+        String dir = System.getProperty("taocore.workDir", System.getProperty("java.io.tmpdir") + File.separator + "taocore");
+        return dir.endsWith(File.separator) ? dir : dir + File.separator;
+    }
+
+    public static boolean isNewVersion() {
+        return false;
+    }
+
+    public static boolean isDebuggable() {
+        return true;
+    }
+
+}
@@ -49,6 +49,7 @@ import java.util.Date;
 import java.util.Map;
 import java.util.Set;
 
+import ua.at.tsvetkov.io.BufferPool;
 import ua.at.tsvetkov.ui.Screen;
 import ua.at.tsvetkov.util.Log;
 
@@ -201,6 +202,7 @@ public final class AppConfig {
             android.util.Log.w(DIV_LEFT + mAppName + DIV_RIGHT, "➧ Log is prohibited because debug mode is disabled.");
             Log.setDisabled(true);
         }
+        BufferPool.setLeakDetectionEnabled(isDebuggable);
 
         AppResources.init(application);
     }
@@ -0,0 +1,517 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Streaming compression (gzip, deflate) and zip archives of directories. The zip file extraction runs in parallel, each thread inflates
+ * own entries of the archive with a buffer from the bounded pool. The entries which would be extracted outside the destination directory
+ * (zip slip: "../../file" names or absolute paths) are rejected.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class Archive {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char SEPARATOR = '/';
+
+    private Archive() {
+
+    }
+
+    /**
+     * Compress the file to gzip format
+     *
+     * @param srcFile source file
+     * @param dstFile destination gzip file
+     * @return count of written (compressed) bytes or -1 if failed
+     */
+    public static long gzip(File srcFile, File dstFile) {
+        return compress(srcFile, dstFile, true);
+    }
+
+    /**
+     * Decompress the gzip file
+     *
+     * @param srcFile source gzip file
+     * @param dstFile destination file
+     * @return count of written (decompressed) bytes or -1 if failed
+     */
+    public static long gunzip(File srcFile, File dstFile) {
+        return decompress(srcFile, dstFile, true);
+    }
+
+    /**
+     * Compress the file with deflate (zlib format)
+     *
+     * @param srcFile source file
+     * @param dstFile destination file
+     * @return count of written (compressed) bytes or -1 if failed
+     */
+    public static long deflate(File srcFile, File dstFile) {
+        return compress(srcFile, dstFile, false);
+    }
+
+    /**
+     * Decompress the deflated (zlib format) file
+     *
+     * @param srcFile source file
+     * @param dstFile destination file
+     * @return count of written (decompressed) bytes or -1 if failed
+     */
+    public static long inflate(File srcFile, File dstFile) {
+        return decompress(srcFile, dstFile, false);
+    }
+
+    /**
+     * Pack the directory content into the zip file. Entries are streamed one by one, the archive is not kept in memory. The zip file itself
+     * is left out if it is inside the directory, symbolic links to directories are skipped.
+     *
+     * @param dir     source directory
+     * @param zipFile destination zip file
+     * @return result of operation, byte count is the count of source bytes
+     */
+    public static FileTree.Result zip(File dir, File zipFile) {
+        if (dir == null || !dir.isDirectory()) {
+            Log.e("Source directory is null or not exist.");
+            return FileTree.Result.failed(dir);
+        }
+        FileTree.Result result = new FileTree.Result();
+        ZipOutputStream out = null;
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        try {
+            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), BUFFER_SIZE));
+            zipDir(dir, "", zipFile, out, buffer, result);
+            out.finish();
+        } catch (IOException e) {
+            Log.e("Can't zip directory " + dir + " to " + zipFile, e);
+            result.addFailed(zipFile);
+        } finally {
+            BufferPool.release(buffer);
+            if (!FileIO.close(out)) {
+                result.addFailed(zipFile);
+            }
+            if (out != null && !result.isSuccess()) {
+                // The archive without the failed entries is not a copy of the directory
+                deletePartial(zipFile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Extract the zip file into the directory in parallel with FileTree.DEFAULT_PARALLELISM threads.
+     *
+     * @param zipFile source zip file
+     * @param dstDir  destination directory
+     * @return result of operation
+     */
+    public static FileTree.Result unzip(File zipFile, File dstDir) {
+        return unzip(zipFile, dstDir, FileTree.DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Extract the zip file into the directory in parallel.
+     *
+     * @param zipFile     source zip file
+     * @param dstDir      destination directory
+     * @param parallelism max count of the threads
+     * @return result of operation
+     */
+    public static FileTree.Result unzip(File zipFile, final File dstDir, int parallelism) {
+        final FileTree.Result result = new FileTree.Result();
+        final File canonicalDir = canonicalDir(dstDir, result);
+        if (canonicalDir == null) {
+            return result;
+        }
+        final ZipFile zip;
+        try {
+            zip = new ZipFile(zipFile);
+        } catch (IOException e) {
+            Log.e("Can't open zip file " + zipFile, e);
+            result.addFailed(zipFile);
+            return result;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final File file = resolve(canonicalDir, entry.getName());
+                if (file == null) {
+                    result.addFailed(new File(dstDir, entry.getName()));
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    mkdirs(file, result);
+                    continue;
+                }
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+                        InputStream in = null;
+                        try {
+                            in = zip.getInputStream(entry);
+                            writeEntry(in, file, buffer, result);
+                        } catch (IOException e) {
+                            Log.e("Can't extract " + entry.getName(), e);
+                            result.addFailed(file);
+                        } finally {
+                            FileIO.close(in);
+                            BufferPool.release(buffer);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.addFailed(zipFile);
+        } catch (ExecutionException e) {
+            Log.e("Can't extract " + zipFile, e.getCause());
+            result.addFailed(zipFile);
+        } finally {
+            executor.shutdownNow();
+            FileIO.close(zip);
+        }
+        Log.v("Unzip " + zipFile + " to " + dstDir + " > " + result);
+        return result;
+    }
+
+    /**
+     * Extract the zip stream into the directory. The stream is read sequentially and closed at the end.
+     *
+     * @param in     zip data stream
+     * @param dstDir destination directory
+     * @return result of operation
+     */
+    public static FileTree.Result unzip(InputStream in, File dstDir) {
+        FileTree.Result result = new FileTree.Result();
+        File canonicalDir = canonicalDir(dstDir, result);
+        if (canonicalDir == null) {
+            FileIO.close(in);
+            return result;
+        }
+        ZipInputStream zin = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        try {
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                File file = resolve(canonicalDir, entry.getName());
+                if (file == null) {
+                    result.addFailed(new File(dstDir, entry.getName()));
+                } else if (entry.isDirectory()) {
+                    mkdirs(file, result);
+                } else {
+                    writeEntry(zin, file, buffer, result);
+                }
+                zin.closeEntry();
+            }
+        } catch (IOException e) {
+            Log.e("Can't extract zip stream to " + dstDir, e);
+            result.addFailed(dstDir);
+        } finally {
+            FileIO.close(zin);
+            BufferPool.release(buffer);
+        }
+        Log.v("Unzip stream to " + dstDir + " > " + result);
+        return result;
+    }
+
+    /**
+     * Extract the zip file from assets into the directory.
+     *
+     * @param context        base app context
+     * @param assetsFileName assets zip file name
+     * @param dstDir         destination directory
+     * @return result of operation
+     */
+    public static FileTree.Result unzipAsset(Context context, String assetsFileName, File dstDir) {
+        try {
+            return unzip(context.getAssets().open(assetsFileName), dstDir);
+        } catch (IOException e) {
+            Log.e("Can't open asset " + assetsFileName, e);
+            return FileTree.Result.failed(dstDir);
+        }
+    }
+
+    // ==========================================================
+
+    /**
+     * Compress the file to gzip or zlib format. The partially written destination is deleted on failure.
+     */
+    private static long compress(File srcFile, File dstFile, boolean isGzip) {
+        if (srcFile == null || dstFile == null) {
+            Log.e("Source or destination file is null.");
+            return -1;
+        }
+        InputStream in = null;
+        OutputStream out = null;
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        boolean isOpened = false;
+        boolean isOk = false;
+        try {
+            in = new FileInputStream(srcFile);
+            FileOutputStream fileOut = new FileOutputStream(dstFile);
+            out = fileOut;
+            isOpened = true;
+            out = isGzip ? new GZIPOutputStream(fileOut, BUFFER_SIZE) : new DeflaterOutputStream(fileOut);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            out = null;
+            isOk = true;
+            return dstFile.length();
+        } catch (IOException e) {
+            Log.e("Can't " + (isGzip ? "gzip" : "deflate") + " file " + srcFile + " to " + dstFile, e);
+            return -1;
+        } finally {
+            FileIO.close(in);
+            FileIO.close(out);
+            BufferPool.release(buffer);
+            if (!isOk && isOpened) {
+                deletePartial(dstFile);
+            }
+        }
+    }
+
+    /**
+     * Decompress the gzip or zlib file. The partially written destination is deleted on failure.
+     */
+    private static long decompress(File srcFile, File dstFile, boolean isGzip) {
+        if (srcFile == null || dstFile == null) {
+            Log.e("Source or destination file is null.");
+            return -1;
+        }
+        InputStream in = null;
+        OutputStream out = null;
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        boolean isOpened = false;
+        boolean isOk = false;
+        try {
+            FileInputStream fileIn = new FileInputStream(srcFile);
+            in = fileIn;
+            in = isGzip ? new GZIPInputStream(fileIn, BUFFER_SIZE) : new InflaterInputStream(fileIn);
+            out = new FileOutputStream(dstFile);
+            isOpened = true;
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                total += count;
+            }
+            OutputStream closed = out;
+            out = null;
+            if (!FileIO.close(closed)) {
+                throw new IOException("Can't close " + dstFile);
+            }
+            isOk = true;
+            return total;
+        } catch (IOException e) {
+            Log.e("Can't " + (isGzip ? "gunzip" : "inflate") + " file " + srcFile + " to " + dstFile, e);
+            return -1;
+        } finally {
+            FileIO.close(in);
+            FileIO.close(out);
+            BufferPool.release(buffer);
+            if (!isOk && isOpened) {
+                deletePartial(dstFile);
+            }
+        }
+    }
+
+    private static void deletePartial(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w("Can't delete the partially written file " + file);
+        }
+    }
+
+    private static void zipDir(File dir, String prefix, File zipFile, ZipOutputStream out, byte[] buffer, FileTree.Result result)
+            throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            Log.w("Can't list directory " + dir);
+            result.addFailed(dir);
+            return;
+        }
+        for (File file : children) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                if (FileTree.isSymlink(file)) {
+                    // The link can lead outside the directory or into a loop
+                    result.addSkipped();
+                    continue;
+                }
+                ZipEntry entry = new ZipEntry(name + SEPARATOR);
+                entry.setTime(file.lastModified());
+                out.putNextEntry(entry);
+                out.closeEntry();
+                result.addDir();
+                zipDir(file, name + SEPARATOR, zipFile, out, buffer, result);
+            } else if (file.getName().equals(zipFile.getName()) && FileIO.isSameFile(file, zipFile)) {
+                // The archive which is written now
+                continue;
+            } else {
+                InputStream in;
+                try {
+                    in = new FileInputStream(file);
+                } catch (IOException e) {
+                    Log.w("Can't read file " + file, e);
+                    result.addFailed(file);
+                    continue;
+                }
+                try {
+                    ZipEntry entry = new ZipEntry(name);
+                    entry.setTime(file.lastModified());
+                    out.putNextEntry(entry);
+                    long total = 0;
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                        total += count;
+                    }
+                    out.closeEntry();
+                    result.addFile(total);
+                } finally {
+                    FileIO.close(in);
+                }
+            }
+        }
+    }
+
+    private static void writeEntry(InputStream in, File file, byte[] buffer, FileTree.Result result) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            Log.w("Can't create directory " + parent);
+            result.addFailed(file);
+            return;
+        }
+        OutputStream out = new FileOutputStream(file);
+        boolean isOk = false;
+        try {
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                total += count;
+            }
+            isOk = FileIO.close(out);
+            if (isOk) {
+                result.addFile(total);
+            } else {
+                result.addFailed(file);
+            }
+        } finally {
+            if (!isOk) {
+                FileIO.close(out);
+                deletePartial(file);
+            }
+        }
+    }
+
+    private static void mkdirs(File dir, FileTree.Result result) {
+        if (dir.isDirectory() || dir.mkdirs() || dir.isDirectory()) {
+            result.addDir();
+        } else {
+            Log.w("Can't create directory " + dir);
+            result.addFailed(dir);
+        }
+    }
+
+    private static File canonicalDir(File dstDir, FileTree.Result result) {
+        if (dstDir == null) {
+            Log.e("Destination directory is null.");
+            // Counted as failed without the file in the list
+            result.addFailed(null);
+            return null;
+        }
+        try {
+            if (!dstDir.isDirectory() && !dstDir.mkdirs()) {
+                Log.e("Can't create directory " + dstDir);
+                result.addFailed(dstDir);
+                return null;
+            }
+            return dstDir.getCanonicalFile();
+        } catch (IOException e) {
+            Log.e("Can't resolve directory " + dstDir, e);
+            result.addFailed(dstDir);
+            return null;
+        }
+    }
+
+    /**
+     * Return the destination file for the zip entry or null if the entry points outside of the directory (zip slip).
+     */
+    private static File resolve(File canonicalDir, String name) {
+        try {
+            File file = new File(canonicalDir, name).getCanonicalFile();
+            String dirPath = canonicalDir.getPath();
+            String path = file.getPath();
+            if (path.startsWith(dirPath + File.separator)) {
+                return file;
+            }
+        } catch (IOException e) {
+            Log.w("Can't resolve zip entry " + name, e);
+            return null;
+        }
+        Log.w("Zip entry is outside of the destination directory, skipped: " + name);
+        return null;
+    }
+
+}
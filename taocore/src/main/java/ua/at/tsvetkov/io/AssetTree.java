@@ -0,0 +1,286 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ua.at.tsvetkov.application.AppConfig;
+import ua.at.tsvetkov.security.Md5;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Synchronisation of an assets directory tree to a directory on the storage. The assets are copied in parallel and the manifest file
+ * (name, size, MD5 hash) is written into the destination directory. On the next run:
+ * <ul>
+ * <li>if the app version is not changed (AppConfig.isNewVersion() is false) and the last run copied all assets, nothing is checked or
+ * copied;</li>
+ * <li>otherwise each asset is hashed and copied only if its hash differs from the manifest or the destination file is changed.</li>
+ * </ul>
+ * Reading of the asset is much cheaper than writing to flash, so the hashing pass is cheap compared with the full copy. The uncompressed
+ * assets are copied by the file channel directly from the apk.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class AssetTree {
+
+    static final String MANIFEST = ".assets.manifest";
+    private static final char SEPARATOR = '/';
+    private static final char TAB = '\t';
+    private static final String UTF_8 = "UTF-8";
+    private static final String INCOMPLETE = "#incomplete";
+
+    private AssetTree() {
+
+    }
+
+    /**
+     * Copy directory from assets to destination in parallel with FileTree.DEFAULT_PARALLELISM threads.
+     *
+     * @param context  base app context
+     * @param assetDir assets directory, empty string for the assets root
+     * @param dstDir   destination directory
+     * @return result of operation, unchanged assets are counted as skipped
+     */
+    public static FileTree.Result copy(Context context, String assetDir, File dstDir) {
+        return copy(context, assetDir, dstDir, FileTree.DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Copy directory from assets to destination in parallel.
+     *
+     * @param context     base app context
+     * @param assetDir    assets directory, empty string for the assets root
+     * @param dstDir      destination directory
+     * @param parallelism max count of the threads
+     * @return result of operation, unchanged assets are counted as skipped
+     */
+    public static FileTree.Result copy(Context context, String assetDir, final File dstDir, int parallelism) {
+        final FileTree.Result result = new FileTree.Result();
+        if (!dstDir.isDirectory() && !dstDir.mkdirs()) {
+            Log.e("Can't create directory " + dstDir);
+            result.addFailed(dstDir);
+            return result;
+        }
+        File manifestFile = new File(dstDir, MANIFEST);
+        final Map<String, Item> manifest = new HashMap<>();
+        boolean isComplete = readManifest(manifestFile, manifest);
+        if (isComplete && !manifest.isEmpty() && !AppConfig.isNewVersion()) {
+            Log.v("Assets " + assetDir + " are up to date in " + dstDir);
+            return result;
+        }
+        final AssetManager assets = context.getAssets();
+        final String root = trimSeparator(assetDir);
+        List<String> names = new ArrayList<>();
+        try {
+            list(assets, root, "", names);
+        } catch (IOException e) {
+            Log.e("Can't list assets " + assetDir, e);
+            result.addFailed(dstDir);
+            return result;
+        }
+        final Map<String, Item> newManifest = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> futures = new ArrayList<>(names.size());
+        long start = System.currentTimeMillis();
+        try {
+            for (final String name : names) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Item item = sync(assets, root.length() == 0 ? name : root + SEPARATOR + name, name, dstDir, manifest.get(name), result);
+                        if (item != null) {
+                            newManifest.put(name, item);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.addFailed(dstDir);
+        } catch (ExecutionException e) {
+            Log.e("Can't copy assets " + assetDir, e.getCause());
+            result.addFailed(dstDir);
+        } finally {
+            executor.shutdownNow();
+        }
+        // The failed assets are not in the new manifest, the incomplete mark makes the next run retry them without the version change
+        if (!writeManifest(manifestFile, newManifest, result.isSuccess())) {
+            result.addFailed(manifestFile);
+        }
+        Log.v("Assets " + assetDir + " synchronized to " + dstDir + " in " + (System.currentTimeMillis() - start) + " ms > " + result);
+        return result;
+    }
+
+    // ==========================================================
+
+    private static Item sync(AssetManager assets, String assetName, String name, File dstDir, Item previous, FileTree.Result result) {
+        File dstFile = new File(dstDir, name);
+        String hash;
+        InputStream in = null;
+        try {
+            in = assets.open(assetName);
+            hash = Md5.getHashString(in);
+            if (hash == null) {
+                throw new IOException("Can't hash asset " + assetName);
+            }
+        } catch (IOException e) {
+            Log.e("Can't read asset " + assetName, e);
+            result.addFailed(dstFile);
+            return null;
+        } finally {
+            FileIO.close(in);
+        }
+        if (previous != null && previous.hash.equals(hash) && dstFile.length() == previous.size) {
+            result.addSkipped();
+            return previous;
+        }
+        File parent = dstFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            Log.e("Can't create directory " + parent);
+            result.addFailed(dstFile);
+            return null;
+        }
+        try {
+            long size = FileIO.copyAsset(assets, assetName, dstFile);
+            result.addFile(size);
+            return new Item(size, hash);
+        } catch (IOException e) {
+            Log.e("Can't copy asset " + assetName + " to " + dstFile, e);
+            result.addFailed(dstFile);
+            return null;
+        }
+    }
+
+    /**
+     * Collect the asset file names recursively. AssetManager has no "is directory" call, the path with children is a directory.
+     */
+    private static void list(AssetManager assets, String root, String rel, List<String> names) throws IOException {
+        String path = rel.length() == 0 ? root : (root.length() == 0 ? rel : root + SEPARATOR + rel);
+        String[] children = assets.list(path);
+        if (children == null || children.length == 0) {
+            if (rel.length() > 0) {
+                names.add(rel);
+            }
+            return;
+        }
+        for (String child : children) {
+            list(assets, root, rel.length() == 0 ? child : rel + SEPARATOR + child, names);
+        }
+    }
+
+    private static String trimSeparator(String path) {
+        if (path == null) {
+            return "";
+        }
+        while (path.endsWith(String.valueOf(SEPARATOR))) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Read the manifest into the map.
+     *
+     * @return false if the manifest is absent, corrupt or is written by the run with failures
+     */
+    private static boolean readManifest(File file, Map<String, Item> manifest) {
+        if (!file.exists()) {
+            return false;
+        }
+        boolean isComplete = true;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals(INCOMPLETE)) {
+                    isComplete = false;
+                    continue;
+                }
+                String[] parts = line.split(String.valueOf(TAB));
+                if (parts.length == 3) {
+                    manifest.put(parts[0], new Item(Long.parseLong(parts[1]), parts[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w("Assets manifest is corrupt, all assets will be copied " + file, e);
+            manifest.clear();
+            return false;
+        } finally {
+            FileIO.close(reader);
+        }
+        return isComplete;
+    }
+
+    private static boolean writeManifest(File file, Map<String, Item> manifest, boolean isComplete) {
+        StringBuilder sb = new StringBuilder(manifest.size() * 64);
+        if (!isComplete) {
+            sb.append(INCOMPLETE).append('\n');
+        }
+        for (Map.Entry<String, Item> entry : manifest.entrySet()) {
+            sb.append(entry.getKey()).append(TAB).append(entry.getValue().size).append(TAB).append(entry.getValue().hash).append('\n');
+        }
+        try {
+            return AtomicWriter.write(file, sb.toString().getBytes(UTF_8));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final class Item {
+
+        private final long size;
+        private final String hash;
+
+        private Item(long size, String hash) {
+            this.size = size;
+            this.hash = hash;
+        }
+
+    }
+
+}
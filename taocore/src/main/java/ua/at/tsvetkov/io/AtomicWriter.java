@@ -0,0 +1,325 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Atomic and durable file writes. The data is written to a temp file in the same directory, the temp file is flushed to the storage
+ * device (fsync), renamed to the target name and then the directory is flushed too. After a power loss the target file contains either
+ * the old or the new data, never a torn mix.
+ * <p/>
+ * The directory flush needs android.system.Os (API 21), on the older devices only the file data is flushed.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class AtomicWriter {
+
+    private static final String TMP = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+
+    private AtomicWriter() {
+
+    }
+
+    /**
+     * Atomic write the data to the file
+     *
+     * @param file target file
+     * @param data the data
+     * @return true if success
+     */
+    public static boolean write(File file, byte[] data) {
+        if (file == null || data == null) {
+            Log.e("File or data is null.");
+            return false;
+        }
+        File tmp = writeTemp(file, data, null);
+        return tmp != null && commit(tmp, file) && syncDir(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Atomic write the stream data to the file. The stream is not closed.
+     *
+     * @param file target file
+     * @param in   the data stream
+     * @return true if success
+     */
+    public static boolean write(File file, InputStream in) {
+        if (file == null || in == null) {
+            Log.e("File or stream is null.");
+            return false;
+        }
+        File tmp = writeTemp(file, null, in);
+        return tmp != null && commit(tmp, file) && syncDir(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Flush the directory entries to the storage device. Needed after a rename or a create to make it durable.
+     *
+     * @param dir the directory
+     * @return true if success or if it is not supported on this device
+     */
+    public static boolean syncDir(File dir) {
+        if (dir == null) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return true;
+        }
+        return syncDirLollipop(dir);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean syncDirLollipop(File dir) {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(dir.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+            return true;
+        } catch (ErrnoException e) {
+            Log.e("Can't sync directory " + dir, e);
+            return false;
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    Log.e(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the data (or the stream if data is null) to a new temp file near the target and fsync it.
+     *
+     * @return temp file or null if failed
+     */
+    private static File writeTemp(File file, byte[] data, InputStream in) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.e("Can't create directory " + dir);
+            return null;
+        }
+        File tmp = null;
+        FileOutputStream out = null;
+        boolean isSuccess = false;
+        try {
+            tmp = File.createTempFile("." + file.getName() + ".", TMP, dir);
+            out = new FileOutputStream(tmp);
+            if (data != null) {
+                out.write(data);
+            } else {
+                byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+            }
+            out.getFD().sync();
+            isSuccess = true;
+        } catch (IOException e) {
+            Log.e("Can't write file " + file, e);
+        } finally {
+            if (!FileIO.close(out)) {
+                isSuccess = false;
+            }
+            if (!isSuccess && tmp != null && !tmp.delete()) {
+                Log.w("Fail to delete temp file " + tmp);
+            }
+        }
+        return isSuccess ? tmp : null;
+    }
+
+    private static boolean commit(File tmp, File file) {
+        if (tmp.renameTo(file)) {
+            return true;
+        }
+        Log.e("Can't rename " + tmp + " to " + file);
+        if (!tmp.delete()) {
+            Log.w("Fail to delete temp file " + tmp);
+        }
+        return false;
+    }
+
+    /**
+     * Group commit for many small atomic writes. The first writer waits for the window time, then all writes which are issued in this time
+     * are committed together: the temp files are written and flushed back to back, renamed, and each touched directory is flushed only once
+     * per batch. If one file is written several times in the batch then only the last data is written. Every writer is blocked until its
+     * batch is durable, so the crash safety is the same as for AtomicWriter.write().
+     */
+    public static final class GroupCommit {
+
+        /**
+         * Default time to collect the writes into one batch.
+         */
+        public static final long DEFAULT_WINDOW_MS = 5;
+
+        private final long windowMs;
+        private final Object lock = new Object();
+        private List<Entry> pending = new ArrayList<>();
+        private boolean isLeaderWaiting = false;
+
+        public GroupCommit() {
+            this(DEFAULT_WINDOW_MS);
+        }
+
+        /**
+         * @param windowMs time to collect the writes into one batch
+         */
+        public GroupCommit(long windowMs) {
+            this.windowMs = windowMs;
+        }
+
+        /**
+         * Atomic write the data to the file within a group commit. Blocks until the batch is durable.
+         *
+         * @param file target file
+         * @param data the data
+         * @return true if success
+         */
+        public boolean write(File file, byte[] data) {
+            if (file == null || data == null) {
+                Log.e("File or data is null.");
+                return false;
+            }
+            Entry entry = new Entry(file.getAbsoluteFile(), data);
+            List<Entry> batch;
+            synchronized (lock) {
+                pending.add(entry);
+                if (isLeaderWaiting) {
+                    // The entry is already in the batch, so wait it out and restore the interrupt after, a set flag makes wait() throw at once
+                    boolean isInterrupted = false;
+                    while (!entry.isDone) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            isInterrupted = true;
+                        }
+                    }
+                    if (isInterrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return entry.isSuccess;
+                }
+                isLeaderWaiting = true;
+            }
+            try {
+                Thread.sleep(windowMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (lock) {
+                batch = pending;
+                pending = new ArrayList<>();
+                isLeaderWaiting = false;
+            }
+            try {
+                commit(batch);
+            } finally {
+                synchronized (lock) {
+                    for (Entry item : batch) {
+                        item.isDone = true;
+                    }
+                    lock.notifyAll();
+                }
+            }
+            return entry.isSuccess;
+        }
+
+        private static void commit(List<Entry> batch) {
+            Map<File, Entry> last = new HashMap<>();
+            for (Entry entry : batch) {
+                last.put(entry.file, entry);
+            }
+            for (Entry entry : batch) {
+                if (last.get(entry.file) == entry) {
+                    entry.tmp = writeTemp(entry.file, entry.data, null);
+                }
+            }
+            Set<File> dirs = new LinkedHashSet<>();
+            for (Entry entry : batch) {
+                if (entry.tmp != null) {
+                    entry.isCommitted = AtomicWriter.commit(entry.tmp, entry.file);
+                    if (entry.isCommitted) {
+                        dirs.add(entry.file.getParentFile());
+                    }
+                }
+            }
+            Map<File, Boolean> syncedDirs = new HashMap<>();
+            for (File dir : dirs) {
+                syncedDirs.put(dir, syncDir(dir));
+            }
+            for (Entry entry : batch) {
+                Entry winner = last.get(entry.file);
+                Boolean isSynced = syncedDirs.get(entry.file.getParentFile());
+                entry.isSuccess = winner.isCommitted && isSynced != null && isSynced;
+            }
+            Log.v("Group commit of " + batch.size() + " writes in " + dirs.size() + " directories");
+        }
+
+        private static final class Entry {
+
+            private final File file;
+            private final byte[] data;
+            private File tmp;
+            private boolean isCommitted;
+            private boolean isSuccess;
+            private boolean isDone;
+
+            private Entry(File file, byte[] data) {
+                this.file = file;
+                this.data = data;
+            }
+
+        }
+
+    }
+
+}
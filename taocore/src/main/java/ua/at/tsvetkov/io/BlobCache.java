@@ -0,0 +1,524 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Two tier cache of byte blobs: in-heap LRU tier in front of the DiskLruCache tier. The memory tier is split into STRIPES independent LRU
+ * maps with own lock each, so the lookups of different keys do not wait for each other. The memory size is counted in bytes by the
+ * weigher: blob length plus key and entry overhead. A blob which is bigger than the stripe budget is kept on disk only.
+ * <p/>
+ * Concurrent misses of the same key are coalesced - only one thread reads the disk or calls the Loader, others wait for its result. Writes
+ * to the disk tier are done asynchronously in the IoExecutor, one at a time for a key: the put or remove which comes while the previous
+ * write is in progress replaces the pending data, and the writer stores the latest one after it, so the older data never lands last.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class BlobCache {
+
+    private static final int STRIPES = 16;
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final DiskLruCache disk;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final HashMap<String, PendingWrite> pendingWrites = new HashMap<>();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Loader of the blob which is absent in both tiers, for example from the network or assets.
+     */
+    public interface Loader {
+
+        /**
+         * @param key the key
+         * @return the blob or null if absent
+         * @throws IOException if failed
+         */
+        byte[] load(String key) throws IOException;
+
+    }
+
+    /**
+     * @param disk           disk tier
+     * @param memoryMaxBytes max count of bytes in the memory tier
+     */
+    public BlobCache(DiskLruCache disk, long memoryMaxBytes) {
+        this.disk = disk;
+        long stripeMaxBytes = Math.max(1, memoryMaxBytes / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeMaxBytes);
+        }
+    }
+
+    /**
+     * Return the blob from memory or disk tier.
+     *
+     * @param key the key, see DiskLruCache.key(String)
+     * @return the blob or null if absent
+     */
+    public byte[] get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * Return the blob from memory or disk tier, or load it by the loader and put into the both tiers.
+     *
+     * @param key    the key, see DiskLruCache.key(String)
+     * @param loader loader for the absent blob, possible to be null
+     * @return the blob or null if absent and can't be loaded
+     */
+    public byte[] get(final String key, final Loader loader) {
+        byte[] data = stripe(key).get(key);
+        if (data != null) {
+            memoryHits.incrementAndGet();
+            return data;
+        }
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return load(key, loader);
+            }
+        });
+        FutureTask<byte[]> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e("Can't load the blob " + key, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Put the blob into the memory tier and asynchronously into the disk tier.
+     *
+     * @param key  the key, see DiskLruCache.key(String)
+     * @param data the blob
+     */
+    public void put(String key, byte[] data) {
+        stripe(key).put(key, data);
+        schedule(key, data);
+    }
+
+    /**
+     * Remove the blob from the both tiers. If the write of this key is pending, it is canceled and the writer removes the key from disk.
+     *
+     * @param key the key
+     */
+    public void remove(String key) {
+        stripe(key).remove(key);
+        synchronized (pendingWrites) {
+            PendingWrite pending = pendingWrites.get(key);
+            if (pending != null) {
+                pending.set(null);
+                return;
+            }
+        }
+        try {
+            disk.remove(key);
+        } catch (IllegalStateException e) {
+            Log.w("Disk cache is closed, the blob is not removed " + key);
+        }
+    }
+
+    /**
+     * Drop all blobs from the memory tier, for example in onTrimMemory().
+     */
+    public void clearMemory() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * @return count of bytes in the memory tier
+     */
+    public long getMemorySize() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the disk tier
+     */
+    public DiskLruCache getDiskCache() {
+        return disk;
+    }
+
+    @Override
+    public String toString() {
+        return "BlobCache [memory: " + getMemorySize() + " bytes, disk: " + disk.size() + " bytes, memory hits: " + memoryHits + ", disk hits: "
+                + diskHits + ", misses: " + misses + "]";
+    }
+
+    /**
+     * The data is read without a lock, so a put or remove of the key can come during the read. Such write marks the load as stale in the
+     * stripe and the read data is only returned to the caller, it never replaces the newer data in the tiers.
+     */
+    private byte[] load(String key, Loader loader) throws IOException {
+        Stripe stripe = stripe(key);
+        stripe.startLoad(key);
+        try {
+            byte[] data;
+            boolean isPending;
+            synchronized (pendingWrites) {
+                PendingWrite pending = pendingWrites.get(key);
+                isPending = pending != null;
+                data = isPending ? pending.data : null;
+            }
+            if (data != null) {
+                memoryHits.incrementAndGet();
+                stripe.publish(key, data);
+                return data;
+            }
+            // The pending remove hides the disk data which is not deleted yet
+            if (!isPending) {
+                data = readFromDisk(key);
+            }
+            if (data != null) {
+                diskHits.incrementAndGet();
+                stripe.publish(key, data);
+                return data;
+            }
+            misses.incrementAndGet();
+            if (loader == null) {
+                return null;
+            }
+            data = loader.load(key);
+            if (data != null && stripe.publish(key, data)) {
+                schedule(key, data);
+            }
+            return data;
+        } finally {
+            stripe.finishLoad(key);
+        }
+    }
+
+    private byte[] readFromDisk(String key) throws IOException {
+        InputStream in = disk.get(key);
+        if (in == null) {
+            return null;
+        }
+        try {
+            // FileInputStream.available() is the remaining length of the file
+            int length = in.available();
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int count = in.read(data, offset, length - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of cached blob " + key);
+                }
+                offset += count;
+            }
+            return data;
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    private void schedule(String key, byte[] data) {
+        synchronized (pendingWrites) {
+            PendingWrite pending = pendingWrites.get(key);
+            if (pending == null) {
+                pending = new PendingWrite(data);
+                pendingWrites.put(key, pending);
+            } else {
+                pending.set(data);
+                if (pending.isScheduled) {
+                    return;
+                }
+            }
+            pending.isScheduled = true;
+        }
+        execute(key);
+    }
+
+    /**
+     * Submit the writer of the key. If the executor queue is full the write stays pending (load() still sees it) and is submitted again
+     * when other writer finishes or the key is put again.
+     */
+    private boolean execute(final String key) {
+        try {
+            IoExecutor.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushPending(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w("Blob write is postponed, the executor is busy " + key);
+            synchronized (pendingWrites) {
+                PendingWrite pending = pendingWrites.get(key);
+                if (pending != null) {
+                    pending.isScheduled = false;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void executePostponed() {
+        List<String> keys = new ArrayList<>();
+        synchronized (pendingWrites) {
+            for (Map.Entry<String, PendingWrite> item : pendingWrites.entrySet()) {
+                if (!item.getValue().isScheduled) {
+                    item.getValue().isScheduled = true;
+                    keys.add(item.getKey());
+                }
+            }
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            if (!execute(keys.get(i))) {
+                synchronized (pendingWrites) {
+                    for (int j = i + 1; j < keys.size(); j++) {
+                        PendingWrite pending = pendingWrites.get(keys.get(j));
+                        if (pending != null) {
+                            pending.isScheduled = false;
+                        }
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Store the pending data of the key until it is not changed during the write. Only one writer per key is running.
+     */
+    private void flushPending(String key) {
+        while (true) {
+            PendingWrite pending;
+            byte[] data;
+            long version;
+            synchronized (pendingWrites) {
+                pending = pendingWrites.get(key);
+                data = pending.data;
+                version = pending.version;
+            }
+            if (data == null) {
+                try {
+                    disk.remove(key);
+                } catch (IllegalStateException e) {
+                    Log.w("Disk cache is closed, the blob is not removed " + key);
+                }
+            } else {
+                writeToDisk(key, data);
+            }
+            synchronized (pendingWrites) {
+                if (pending.version == version) {
+                    pendingWrites.remove(key);
+                    break;
+                }
+            }
+        }
+        executePostponed();
+    }
+
+    private void writeToDisk(String key, byte[] data) {
+        OutputStream out = null;
+        try {
+            DiskLruCache.Editor editor = disk.edit(key);
+            if (editor == null) {
+                Log.w("Disk cache entry is edited outside, the blob is not stored " + key);
+                return;
+            }
+            boolean isWritten = false;
+            try {
+                out = editor.newOutputStream();
+                out.write(data);
+                isWritten = true;
+            } finally {
+                if (!FileIO.close(out)) {
+                    isWritten = false;
+                }
+                if (isWritten) {
+                    editor.commit();
+                } else {
+                    editor.abort();
+                }
+            }
+        } catch (IOException e) {
+            Log.e("Can't write the blob to disk cache " + key, e);
+        } catch (IllegalStateException e) {
+            Log.w("Disk cache is closed, the blob is not stored " + key);
+        }
+    }
+
+    private Stripe stripe(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7fffffff) % STRIPES];
+    }
+
+    private static long weigh(String key, byte[] data) {
+        return data.length + key.length() * 2 + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * The latest data of the key which is waiting for the disk write, null data means remove
+     */
+    private static final class PendingWrite {
+
+        private byte[] data;
+        private long version;
+        private boolean isScheduled;
+
+        private PendingWrite(byte[] data) {
+            this.data = data;
+        }
+
+        private void set(byte[] data) {
+            this.data = data;
+            version++;
+        }
+
+    }
+
+    /**
+     * One LRU segment of the memory tier
+     */
+    private static final class Stripe {
+
+        private final long maxBytes;
+        private final LinkedHashMap<String, byte[]> map = new LinkedHashMap<>(16, 0.75f, true);
+        // Keys which are loading now, the value is true if the key is written since the load has started
+        private final HashMap<String, Boolean> loads = new HashMap<>();
+        private long size;
+
+        private Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private synchronized byte[] get(String key) {
+            return map.get(key);
+        }
+
+        private synchronized void put(String key, byte[] data) {
+            markStale(key);
+            insert(key, data);
+        }
+
+        private synchronized void startLoad(String key) {
+            loads.put(key, Boolean.FALSE);
+        }
+
+        /**
+         * Put the loaded data if the key is not written since startLoad().
+         *
+         * @return true if the data is put
+         */
+        private synchronized boolean publish(String key, byte[] data) {
+            if (!Boolean.FALSE.equals(loads.remove(key))) {
+                return false;
+            }
+            insert(key, data);
+            return true;
+        }
+
+        private synchronized void finishLoad(String key) {
+            loads.remove(key);
+        }
+
+        private void markStale(String key) {
+            if (loads.containsKey(key)) {
+                loads.put(key, Boolean.TRUE);
+            }
+        }
+
+        private void insert(String key, byte[] data) {
+            long weight = weigh(key, data);
+            byte[] previous = map.remove(key);
+            if (previous != null) {
+                size -= weigh(key, previous);
+            }
+            if (weight > maxBytes) {
+                return;
+            }
+            map.put(key, data);
+            size += weight;
+            Iterator<Map.Entry<String, byte[]>> iterator = map.entrySet().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, byte[]> eldest = iterator.next();
+                size -= weigh(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+            }
+        }
+
+        private synchronized void remove(String key) {
+            markStale(key);
+            byte[] previous = map.remove(key);
+            if (previous != null) {
+                size -= weigh(key, previous);
+            }
+        }
+
+        private synchronized void clear() {
+            map.clear();
+            size = 0;
+        }
+
+        private synchronized long getSize() {
+            return size;
+        }
+
+    }
+
+}
@@ -0,0 +1,359 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Shared pool of the I/O buffers: byte arrays and direct ByteBuffers. The buffers are grouped by the size classes from MIN_SIZE to
+ * MAX_SIZE (powers of two), the request is served by the smallest class which fits it. Each thread keeps one buffer of each class for
+ * itself, so the typical acquire/release pair in a loop does not touch the shared queues at all. A request bigger than MAX_SIZE is
+ * allocated and is not pooled.
+ * <p/>
+ * Usage:
+ * <pre>
+ * byte[] buffer = BufferPool.acquire(8192);
+ * try {
+ *     ...
+ * } finally {
+ *     BufferPool.release(buffer);
+ * }
+ * </pre>
+ * A buffer must not be used after release. With leak detection enabled (AppConfig.init() enables it for debuggable builds) every acquired
+ * buffer is tracked, and a buffer which is garbage collected without release is reported to the log with the stack trace of its acquire.
+ * A buffer which is released twice is reported and dropped, so it never goes to two owners.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class BufferPool {
+
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+    private static final int MAX_SHARED_PER_CLASS = 16;
+
+    private static final SizeClass<byte[]>[] HEAP = createClasses();
+    private static final SizeClass<ByteBuffer>[] DIRECT = createClasses();
+
+    private static final ThreadLocal<Object[]> LOCAL_HEAP = new ThreadLocal<Object[]>() {
+        @Override
+        protected Object[] initialValue() {
+            return new Object[CLASS_COUNT];
+        }
+    };
+    private static final ThreadLocal<Object[]> LOCAL_DIRECT = new ThreadLocal<Object[]>() {
+        @Override
+        protected Object[] initialValue() {
+            return new Object[CLASS_COUNT];
+        }
+    };
+
+    private static volatile boolean isLeakDetection = false;
+    private static final ReferenceQueue<Object> LEAK_QUEUE = new ReferenceQueue<>();
+    private static final Map<Integer, List<Tracked>> TRACKED = new HashMap<>();
+
+    private BufferPool() {
+
+    }
+
+    /**
+     * Enable or disable the leak detection. It costs a stack trace per acquire, so enable it in the debug builds only.
+     *
+     * @param isEnabled is enabled
+     */
+    public static void setLeakDetectionEnabled(boolean isEnabled) {
+        isLeakDetection = isEnabled;
+        if (!isEnabled) {
+            synchronized (TRACKED) {
+                TRACKED.clear();
+            }
+        }
+    }
+
+    public static boolean isLeakDetectionEnabled() {
+        return isLeakDetection;
+    }
+
+    /**
+     * Acquire the byte array with length not less than size.
+     *
+     * @param size min length of array
+     * @return the array, its content is undefined
+     */
+    public static byte[] acquire(int size) {
+        int index = classIndex(size);
+        if (index < 0) {
+            return track(new byte[size]);
+        }
+        Object[] local = LOCAL_HEAP.get();
+        byte[] buffer = (byte[]) local[index];
+        if (buffer != null) {
+            local[index] = null;
+        } else {
+            buffer = HEAP[index].poll();
+            if (buffer == null) {
+                buffer = new byte[MIN_SIZE << index];
+            }
+        }
+        return track(buffer);
+    }
+
+    /**
+     * Return the array to the pool.
+     *
+     * @param buffer array acquired from the pool, possible to be null
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (!untrack(buffer)) {
+            Log.w("BufferPool buffer is released twice or is not acquired from the pool, it is dropped", new Throwable("Buffer released here"));
+            return;
+        }
+        int index = exactClassIndex(buffer.length);
+        if (index < 0) {
+            return;
+        }
+        Object[] local = LOCAL_HEAP.get();
+        if (local[index] == null) {
+            local[index] = buffer;
+        } else {
+            HEAP[index].offer(buffer);
+        }
+    }
+
+    /**
+     * Acquire the direct buffer with capacity not less than size. The buffer is cleared: position 0, limit equals to size.
+     *
+     * @param size min capacity of buffer
+     * @return the buffer
+     */
+    public static ByteBuffer acquireDirect(int size) {
+        int index = classIndex(size);
+        if (index < 0) {
+            return track(ByteBuffer.allocateDirect(size));
+        }
+        Object[] local = LOCAL_DIRECT.get();
+        ByteBuffer buffer = (ByteBuffer) local[index];
+        if (buffer != null) {
+            local[index] = null;
+        } else {
+            buffer = DIRECT[index].poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(MIN_SIZE << index);
+            }
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return track(buffer);
+    }
+
+    /**
+     * Return the direct buffer to the pool.
+     *
+     * @param buffer buffer acquired from the pool, possible to be null
+     */
+    public static void releaseDirect(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (!untrack(buffer)) {
+            Log.w("BufferPool buffer is released twice or is not acquired from the pool, it is dropped", new Throwable("Buffer released here"));
+            return;
+        }
+        int index = exactClassIndex(buffer.capacity());
+        if (index < 0 || !buffer.isDirect()) {
+            return;
+        }
+        Object[] local = LOCAL_DIRECT.get();
+        if (local[index] == null) {
+            local[index] = buffer;
+        } else {
+            DIRECT[index].offer(buffer);
+        }
+    }
+
+    /**
+     * @return count of tracked buffers which are acquired and not released, 0 if leak detection is disabled
+     */
+    public static int getOutstandingCount() {
+        synchronized (TRACKED) {
+            int count = 0;
+            for (List<Tracked> list : TRACKED.values()) {
+                count += list.size();
+            }
+            return count;
+        }
+    }
+
+    // ==========================================================
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> SizeClass<T>[] createClasses() {
+        SizeClass<T>[] classes = new SizeClass[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            classes[i] = new SizeClass<>();
+        }
+        return classes;
+    }
+
+    /**
+     * @return index of the smallest size class which fits the size or -1 if size is bigger than MAX_SIZE
+     */
+    private static int classIndex(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * @return index of the size class with exactly this size or -1 if the buffer is not from the pool
+     */
+    private static int exactClassIndex(int size) {
+        if (size < MIN_SIZE || size > MAX_SIZE || Integer.bitCount(size) != 1) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    private static <T> T track(T buffer) {
+        if (!isLeakDetection) {
+            return buffer;
+        }
+        reportLeaks();
+        Tracked tracked = new Tracked(buffer, new Throwable("Buffer acquired here"));
+        synchronized (TRACKED) {
+            List<Tracked> list = TRACKED.get(tracked.hash);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                TRACKED.put(tracked.hash, list);
+            }
+            list.add(tracked);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return false if leak detection is enabled and the buffer is not tracked: it is released twice or is not acquired from the pool
+     */
+    private static boolean untrack(Object buffer) {
+        if (!isLeakDetection) {
+            return true;
+        }
+        int hash = System.identityHashCode(buffer);
+        boolean isTracked = false;
+        synchronized (TRACKED) {
+            List<Tracked> list = TRACKED.get(hash);
+            if (list == null) {
+                return false;
+            }
+            Iterator<Tracked> iterator = list.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().get() == buffer) {
+                    iterator.remove();
+                    isTracked = true;
+                    break;
+                }
+            }
+            if (list.isEmpty()) {
+                TRACKED.remove(hash);
+            }
+        }
+        return isTracked;
+    }
+
+    private static void reportLeaks() {
+        Tracked tracked;
+        while ((tracked = (Tracked) LEAK_QUEUE.poll()) != null) {
+            boolean isLeaked = false;
+            synchronized (TRACKED) {
+                List<Tracked> list = TRACKED.get(tracked.hash);
+                if (list != null && list.remove(tracked)) {
+                    isLeaked = true;
+                    if (list.isEmpty()) {
+                        TRACKED.remove(tracked.hash);
+                    }
+                }
+            }
+            if (isLeaked) {
+                Log.w("BufferPool buffer is garbage collected without release", tracked.trace);
+            }
+        }
+    }
+
+    private static final class SizeClass<T> {
+
+        private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private T poll() {
+            T buffer = queue.poll();
+            if (buffer != null) {
+                count.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        private void offer(T buffer) {
+            if (count.incrementAndGet() > MAX_SHARED_PER_CLASS) {
+                count.decrementAndGet();
+                return;
+            }
+            queue.offer(buffer);
+        }
+
+    }
+
+    private static final class Tracked extends WeakReference<Object> {
+
+        private final int hash;
+        private final Throwable trace;
+
+        private Tracked(Object buffer, Throwable trace) {
+            super(buffer, LEAK_QUEUE);
+            this.hash = System.identityHashCode(buffer);
+            this.trace = trace;
+        }
+
+    }
+
+}
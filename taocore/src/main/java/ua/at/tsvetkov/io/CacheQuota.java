@@ -0,0 +1,440 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Size quota of cache directories with high and low watermarks. When the total size of the directories is above the high watermark the
+ * least recently used files are deleted until the size drops to the low watermark. On the device storage low event the cache is trimmed
+ * to the low watermark even if the high watermark is not reached.
+ * <p/>
+ * The file usage time is the later of access and modification time (access time is read on Lollipop and above, many devices mount the
+ * storage with relatime so it is only a hint). Files used within the minimum age are never deleted, as well as the protected files and
+ * directories. The directories of DiskLruCache (the ones with a journal file) are protected too, they are counted in the quota but
+ * their entries are evicted by DiskLruCache itself, deleting them here would break its journal. Symbolic links are not followed.
+ * <p/>
+ * Usage: create in Application.onCreate() and call install(context) to trim at startup and on storage low events.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class CacheQuota {
+
+    /**
+     * Default time after the last use during which a file is not deleted.
+     */
+    public static final long DEFAULT_MIN_AGE = 60 * 1000;
+
+    private final List<File> dirs = new ArrayList<>();
+    private final List<String> protectedPaths = new ArrayList<>();
+    private volatile long highWatermark;
+    private volatile long lowWatermark;
+    private volatile long minAge = DEFAULT_MIN_AGE;
+    private TrimTask trimTask;
+    private BroadcastReceiver receiver;
+
+    /**
+     * @param highWatermark size in bytes which starts the trim
+     * @param lowWatermark  size in bytes to trim to
+     * @param dirs          cache directories, a directory inside of other one is counted once, an empty path is ignored
+     */
+    public CacheQuota(long highWatermark, long lowWatermark, File... dirs) {
+        setWatermarks(highWatermark, lowWatermark);
+        for (File dir : dirs) {
+            addDir(dir);
+        }
+    }
+
+    /**
+     * Quota for FileIO.getCacheDir() and context.getCacheDir(). The temp files of TempFiles and the index of DirIndex are protected.
+     * FileIO.getCacheDir() is skipped if it can't be created.
+     *
+     * @param context       the context
+     * @param highWatermark size in bytes which starts the trim
+     * @param lowWatermark  size in bytes to trim to
+     * @return the quota
+     */
+    public static CacheQuota forCacheDirs(Context context, long highWatermark, long lowWatermark) {
+        CacheQuota quota = new CacheQuota(highWatermark, lowWatermark, context.getCacheDir());
+        String cacheDir = FileIO.getCacheDir();
+        if (cacheDir.length() == 0) {
+            Log.w("Cache dir is not available, it is not included in the quota");
+        } else {
+            quota.addDir(new File(cacheDir));
+            quota.protect(new File(cacheDir, DirIndex.INDEX_FILE));
+        }
+        quota.protect(TempFiles.getDir());
+        return quota;
+    }
+
+    /**
+     * @param highWatermark size in bytes which starts the trim
+     * @param lowWatermark  size in bytes to trim to, not greater than the high watermark
+     */
+    public void setWatermarks(long highWatermark, long lowWatermark) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Watermarks must be 0 <= low <= high, low: " + lowWatermark + ", high: " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * @param minAge time in milliseconds after the last use during which a file is not deleted
+     */
+    public void setMinAge(long minAge) {
+        this.minAge = minAge;
+    }
+
+    /**
+     * Protect the file or the whole directory from the trim. Its size is still counted in the quota.
+     *
+     * @param path the file or directory
+     */
+    public synchronized void protect(File path) {
+        protectedPaths.add(path.getAbsolutePath());
+    }
+
+    /**
+     * Trim the directories if their size is above the high watermark.
+     *
+     * @return result with count and size of deleted files, skipped are the files which are protected or used recently
+     */
+    public FileTree.Result trim() {
+        return trim(false);
+    }
+
+    /**
+     * Trim the directories.
+     *
+     * @param isLowStorage true - trim to the low watermark even if the high watermark is not reached
+     * @return result with count and size of deleted files, skipped are the files which are protected or used recently
+     */
+    public FileTree.Result trim(boolean isLowStorage) {
+        return trim(isLowStorage, new FileTree.Result());
+    }
+
+    /**
+     * @param result result to add the counts to
+     */
+    private FileTree.Result trim(boolean isLowStorage, FileTree.Result result) {
+        long start = System.currentTimeMillis();
+        List<Candidate> candidates = new ArrayList<>();
+        long total = 0;
+        List<String> protectedList;
+        synchronized (this) {
+            protectedList = new ArrayList<>(protectedPaths);
+        }
+        for (File dir : dirs) {
+            total += collect(dir, protectedList, candidates, result);
+        }
+        long limit = isLowStorage ? lowWatermark : highWatermark;
+        if (total <= limit) {
+            Log.v("Cache size " + total + " is within quota " + limit);
+            return result;
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate lhs, Candidate rhs) {
+                return lhs.time < rhs.time ? -1 : (lhs.time == rhs.time ? 0 : 1);
+            }
+        });
+        long youngest = start - minAge;
+        for (Candidate candidate : candidates) {
+            if (total <= lowWatermark) {
+                break;
+            }
+            if (candidate.time > youngest) {
+                result.addSkipped();
+                continue;
+            }
+            if (candidate.file.delete()) {
+                total -= candidate.size;
+                result.addFile(candidate.size);
+                deleteEmptyParents(candidate.file.getParentFile());
+            } else {
+                result.addFailed(candidate.file);
+            }
+        }
+        if (total > lowWatermark) {
+            Log.w("Cache size " + total + " is above low watermark " + lowWatermark + " after trim, the rest is protected or recently used");
+        }
+        Log.v("Cache trimmed > " + result + " in " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * Trim in background. If a trim is already running then no new trim is started, its future is returned and the callback gets its
+     * result. A low storage request which comes during a normal trim makes the running task trim once more to the low watermark, the result
+     * then holds the both passes.
+     *
+     * @param isLowStorage true - trim to the low watermark even if the high watermark is not reached
+     * @param callback     the callback, possible to be null
+     * @return future for cancel the task or wait for the result
+     */
+    public synchronized IoExecutor.FileFuture<FileTree.Result> trimAsync(boolean isLowStorage, CompleteCallback<FileTree.Result> callback) {
+        if (trimTask != null && trimTask.attach(isLowStorage, callback)) {
+            return trimTask.future;
+        }
+        trimTask = new TrimTask(isLowStorage, callback);
+        trimTask.future = IoExecutor.submit(trimTask, trimTask);
+        return trimTask.future;
+    }
+
+    /**
+     * Trim in background now and on every storage low event. Call uninstall(context) with the same context to stop listen the events.
+     *
+     * @param context the context, the application context is used for the receiver registration
+     */
+    public synchronized void install(Context context) {
+        trimAsync(false, null);
+        if (receiver != null) {
+            return;
+        }
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.i("Device storage is low, trim the cache");
+                trimAsync(true, null);
+            }
+        };
+        context.getApplicationContext().registerReceiver(receiver, new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW));
+    }
+
+    /**
+     * Stop listen the storage low events.
+     *
+     * @param context the context
+     */
+    public synchronized void uninstall(Context context) {
+        if (receiver != null) {
+            context.getApplicationContext().unregisterReceiver(receiver);
+            receiver = null;
+        }
+    }
+
+    // ==========================================================
+
+    private void addDir(File dir) {
+        if (dir == null || dir.getPath().length() == 0) {
+            // new File("") is resolved to the current directory, it must never be trimmed
+            Log.w("Empty cache dir path is ignored");
+            return;
+        }
+        File absolute = dir.getAbsoluteFile();
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            File known = dirs.get(i);
+            if (isInside(absolute.getPath(), known.getPath())) {
+                return;
+            }
+            if (isInside(known.getPath(), absolute.getPath())) {
+                dirs.remove(i);
+            }
+        }
+        dirs.add(absolute);
+    }
+
+    private long collect(File dir, List<String> protectedList, List<Candidate> candidates, FileTree.Result result) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        if (new File(dir, DiskLruCache.JOURNAL_FILE).isFile() && !isProtected(dir.getPath(), protectedList)) {
+            protectedList.add(dir.getPath());
+        }
+        long total = 0;
+        for (File file : children) {
+            if (file.isDirectory()) {
+                if (!FileTree.isSymlink(file)) {
+                    total += collect(file, protectedList, candidates, result);
+                }
+                continue;
+            }
+            long size = file.length();
+            total += size;
+            if (isProtected(file.getPath(), protectedList)) {
+                result.addSkipped();
+            } else {
+                candidates.add(new Candidate(file, size, getUseTime(file)));
+            }
+        }
+        return total;
+    }
+
+    private void deleteEmptyParents(File dir) {
+        while (dir != null && !dirs.contains(dir)) {
+            String[] rest = dir.list();
+            if (rest == null || rest.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    private static boolean isProtected(String path, List<String> protectedList) {
+        for (String protectedPath : protectedList) {
+            if (isInside(path, protectedPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInside(String path, String dir) {
+        return path.equals(dir) || (path.startsWith(dir) && path.charAt(dir.length()) == File.separatorChar);
+    }
+
+    private static long getUseTime(File file) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            long time = getUseTimeLollipop(file);
+            if (time > 0) {
+                return time;
+            }
+        }
+        return file.lastModified();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static long getUseTimeLollipop(File file) {
+        try {
+            StructStat stat = Os.stat(file.getPath());
+            return Math.max(stat.st_atime, stat.st_mtime) * 1000;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+
+    // ==========================================================
+
+    /**
+     * Background trim with the callbacks of all requests which joined it. The fields are guarded by the CacheQuota lock.
+     */
+    private final class TrimTask implements Callable<FileTree.Result>, CompleteCallback<FileTree.Result> {
+
+        private final List<CompleteCallback<FileTree.Result>> callbacks = new ArrayList<>();
+        private IoExecutor.FileFuture<FileTree.Result> future;
+        private boolean isLowStorage;
+        private boolean isFollowUp;
+        private boolean isClosed;
+
+        private TrimTask(boolean isLowStorage, CompleteCallback<FileTree.Result> callback) {
+            this.isLowStorage = isLowStorage;
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+
+        /**
+         * @return false if the task doesn't take new requests anymore
+         */
+        private boolean attach(boolean isLowStorage, CompleteCallback<FileTree.Result> callback) {
+            if (isClosed || future.isDone()) {
+                return false;
+            }
+            if (isLowStorage && !this.isLowStorage) {
+                isFollowUp = true;
+            }
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+            return true;
+        }
+
+        @Override
+        public FileTree.Result call() throws Exception {
+            try {
+                FileTree.Result result = trim(isLowStorage);
+                while (true) {
+                    synchronized (CacheQuota.this) {
+                        if (!isFollowUp) {
+                            isClosed = true;
+                            return result;
+                        }
+                        isFollowUp = false;
+                        isLowStorage = true;
+                    }
+                    trim(true, result);
+                }
+            } finally {
+                synchronized (CacheQuota.this) {
+                    isClosed = true;
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(FileTree.Result result) {
+            List<CompleteCallback<FileTree.Result>> list;
+            synchronized (CacheQuota.this) {
+                list = new ArrayList<>(callbacks);
+            }
+            for (CompleteCallback<FileTree.Result> callback : list) {
+                callback.onComplete(result);
+            }
+        }
+
+    }
+
+    private static final class Candidate {
+
+        private final File file;
+        private final long size;
+        private final long time;
+
+        private Candidate(File file, long size, long time) {
+            this.file = file;
+            this.size = size;
+            this.time = time;
+        }
+
+    }
+
+}
@@ -0,0 +1,639 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import ua.at.tsvetkov.util.Const;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Operations on very large files by fixed-size chunks: split into chunk files and merge them back, parallel copy and checksum. The chunks
+ * are read and written with positional FileChannel calls, so several threads work on one file without locking. Every chunk has a CRC32
+ * checksum, which is stored in the manifest for verification.
+ * <p/>
+ * The parallel copy is resumable: the manifest with the checksums of the copied chunks is kept near the destination file (name +
+ * ".chunks") while the copy is not finished. The next copy of the same not modified source re-checks the copied chunks of the destination
+ * and copies only the rest.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class ChunkedFile {
+
+    public static final long DEFAULT_CHUNK_SIZE = 8 * Const.MB;
+    public static final String MANIFEST_EXT = ".chunks";
+
+    private static final int MAGIC = 0x54414f4b;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long NO_CHECKSUM = -1;
+
+    private ChunkedFile() {
+
+    }
+
+    /**
+     * Split the file into chunk files name.0000, name.0001... in the directory and write the manifest name.chunks there.
+     *
+     * @param src         source file
+     * @param dstDir      destination directory
+     * @param chunkSize   size of chunk in bytes
+     * @param parallelism max count of the threads
+     * @return manifest with checksums of chunks or null if failed
+     */
+    public static Manifest split(final File src, final File dstDir, long chunkSize, int parallelism) {
+        if (src == null || !src.isFile() || dstDir == null) {
+            Log.e("Source file is not exist or destination directory is null.");
+            return null;
+        }
+        if (!isValidChunkSize(src.length(), chunkSize)) {
+            return null;
+        }
+        if (!dstDir.isDirectory() && !dstDir.mkdirs()) {
+            Log.e("Can't create directory " + dstDir);
+            return null;
+        }
+        final Manifest manifest = new Manifest(src.getName(), src.length(), src.lastModified(), chunkSize);
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(src, "r");
+            final FileChannel srcChannel = in.getChannel();
+            boolean isSuccess = run(manifest.getChunkCount(), parallelism, null, new ChunkTask() {
+                @Override
+                public long process(int index) throws IOException {
+                    File chunk = getChunkFile(dstDir, manifest.name, index);
+                    RandomAccessFile out = new RandomAccessFile(chunk, "rw");
+                    try {
+                        out.setLength(0);
+                        manifest.checksums[index] = transfer(srcChannel, manifest.getOffset(index), out.getChannel(), 0, manifest.getLength(index));
+                        out.getFD().sync();
+                    } finally {
+                        FileIO.close(out);
+                    }
+                    return manifest.getLength(index);
+                }
+            });
+            if (isSuccess && manifest.save(new File(dstDir, manifest.name + MANIFEST_EXT))) {
+                return manifest;
+            }
+        } catch (IOException e) {
+            Log.e("Can't split file " + src, e);
+        } finally {
+            FileIO.close(in);
+        }
+        return null;
+    }
+
+    /**
+     * Merge the chunk files listed in the manifest into the file, verifying the checksum of each chunk. The file is written to a temp file
+     * and renamed, so it is not changed if a chunk is absent or corrupt.
+     *
+     * @param manifestFile manifest written by split(), chunk files must be in the same directory
+     * @param dst          destination file
+     * @param parallelism  max count of the threads
+     * @return size of merged file or -1 if failed
+     */
+    public static long merge(File manifestFile, File dst, int parallelism) {
+        final Manifest manifest = Manifest.load(manifestFile);
+        if (manifest == null || dst == null) {
+            return -1;
+        }
+        final File dir = manifestFile.getAbsoluteFile().getParentFile();
+        File tmp = new File(dst.getPath() + ".tmp");
+        RandomAccessFile out = null;
+        boolean isSuccess = false;
+        try {
+            out = new RandomAccessFile(tmp, "rw");
+            out.setLength(manifest.length);
+            final FileChannel dstChannel = out.getChannel();
+            isSuccess = run(manifest.getChunkCount(), parallelism, null, new ChunkTask() {
+                @Override
+                public long process(int index) throws IOException {
+                    File chunk = getChunkFile(dir, manifest.name, index);
+                    if (chunk.length() != manifest.getLength(index)) {
+                        throw new IOException("Wrong size of chunk " + chunk);
+                    }
+                    RandomAccessFile in = new RandomAccessFile(chunk, "r");
+                    try {
+                        long checksum = transfer(in.getChannel(), 0, dstChannel, manifest.getOffset(index), manifest.getLength(index));
+                        if (checksum != manifest.checksums[index]) {
+                            throw new IOException("Checksum mismatch of chunk " + chunk);
+                        }
+                    } finally {
+                        FileIO.close(in);
+                    }
+                    return manifest.getLength(index);
+                }
+            });
+            if (isSuccess) {
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.e("Can't merge chunks into " + tmp, e);
+            isSuccess = false;
+        } finally {
+            if (!FileIO.close(out)) {
+                isSuccess = false;
+            }
+        }
+        if (isSuccess && tmp.renameTo(dst)) {
+            return manifest.length;
+        }
+        Log.e("Merge of " + manifestFile + " into " + dst + " is failed");
+        if (tmp.exists() && !tmp.delete()) {
+            Log.w("Fail to delete temp file " + tmp);
+        }
+        return -1;
+    }
+
+    /**
+     * Copy the file with DEFAULT_CHUNK_SIZE chunks and FileTree.DEFAULT_PARALLELISM threads.
+     *
+     * @param src source file
+     * @param dst destination file
+     * @return size of copied file or -1 if failed
+     */
+    public static long copy(File src, File dst) {
+        return copy(src, dst, DEFAULT_CHUNK_SIZE, FileTree.DEFAULT_PARALLELISM, null);
+    }
+
+    /**
+     * Copy the file by chunks in parallel. If the copy is failed or canceled then the partial destination file and its manifest are kept,
+     * the next call with the same arguments resumes the copy if the source is not modified.
+     *
+     * @param src         source file
+     * @param dst         destination file
+     * @param chunkSize   size of chunk in bytes
+     * @param parallelism max count of the threads
+     * @param listener    progress listener, called from the worker threads one at a time, possible to be null
+     * @return size of copied file or -1 if failed or canceled
+     */
+    public static long copy(File src, File dst, long chunkSize, int parallelism, ProgressListener listener) {
+        if (src == null || !src.isFile() || dst == null) {
+            Log.e("Source file is not exist or destination file is null.");
+            return -1;
+        }
+        if (!isValidChunkSize(src.length(), chunkSize)) {
+            return -1;
+        }
+        final File journal = new File(dst.getPath() + MANIFEST_EXT);
+        Manifest loaded = journal.exists() ? Manifest.load(journal) : null;
+        final Manifest manifest;
+        if (loaded != null && loaded.length == src.length() && loaded.lastModified == src.lastModified() && loaded.chunkSize == chunkSize
+                && dst.length() == src.length()) {
+            manifest = loaded;
+            Log.i("Resume copy of " + src + " to " + dst);
+        } else {
+            manifest = new Manifest(src.getName(), src.length(), src.lastModified(), chunkSize);
+        }
+        RandomAccessFile in = null;
+        RandomAccessFile out = null;
+        boolean isSuccess = false;
+        long start = System.currentTimeMillis();
+        try {
+            File dir = dst.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create directory " + dir);
+            }
+            in = new RandomAccessFile(src, "r");
+            out = new RandomAccessFile(dst, "rw");
+            out.setLength(manifest.length);
+            final FileChannel srcChannel = in.getChannel();
+            final FileChannel dstChannel = out.getChannel();
+            isSuccess = run(manifest.getChunkCount(), parallelism, listener == null ? null : new Progress(listener, manifest.length),
+                    new ChunkTask() {
+                        @Override
+                        public long process(int index) throws IOException {
+                            long offset = manifest.getOffset(index);
+                            long length = manifest.getLength(index);
+                            long expected = manifest.checksums[index];
+                            if (expected != NO_CHECKSUM && transfer(dstChannel, offset, null, 0, length) == expected) {
+                                return length;
+                            }
+                            long checksum = transfer(srcChannel, offset, dstChannel, offset, length);
+                            synchronized (manifest) {
+                                manifest.checksums[index] = checksum;
+                                manifest.save(journal);
+                            }
+                            return length;
+                        }
+                    });
+            if (isSuccess) {
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.e("Can't copy file " + src + " to " + dst, e);
+            isSuccess = false;
+        } finally {
+            FileIO.close(in);
+            if (!FileIO.close(out)) {
+                isSuccess = false;
+            }
+        }
+        if (!isSuccess) {
+            Log.w("Copy of " + src + " is not finished, it can be resumed");
+            return -1;
+        }
+        if (journal.exists() && !journal.delete()) {
+            Log.w("Fail to delete copy manifest " + journal);
+        }
+        Log.v("File " + src + " is copied by chunks in " + (System.currentTimeMillis() - start) + " ms");
+        return manifest.length;
+    }
+
+    /**
+     * Calculate checksums of chunks of the file in parallel.
+     *
+     * @param file        the file
+     * @param chunkSize   size of chunk in bytes
+     * @param parallelism max count of the threads
+     * @return manifest with checksums or null if failed
+     */
+    public static Manifest checksum(File file, long chunkSize, int parallelism) {
+        if (file == null || !file.isFile()) {
+            Log.e("File is not exist.");
+            return null;
+        }
+        if (!isValidChunkSize(file.length(), chunkSize)) {
+            return null;
+        }
+        final Manifest manifest = new Manifest(file.getName(), file.length(), file.lastModified(), chunkSize);
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            final FileChannel channel = in.getChannel();
+            boolean isSuccess = run(manifest.getChunkCount(), parallelism, null, new ChunkTask() {
+                @Override
+                public long process(int index) throws IOException {
+                    manifest.checksums[index] = transfer(channel, manifest.getOffset(index), null, 0, manifest.getLength(index));
+                    return manifest.getLength(index);
+                }
+            });
+            return isSuccess ? manifest : null;
+        } catch (IOException e) {
+            Log.e("Can't read file " + file, e);
+            return null;
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    /**
+     * Verify the file against the checksums of the manifest.
+     *
+     * @param file        the file
+     * @param manifest    the manifest, for example of the source file
+     * @param parallelism max count of the threads
+     * @return sorted indexes of the corrupt chunks, empty if the file is valid, all chunks if the file can't be read or has other size
+     */
+    public static List<Integer> verify(File file, Manifest manifest, int parallelism) {
+        Manifest actual = file.length() == manifest.length ? checksum(file, manifest.chunkSize, parallelism) : null;
+        List<Integer> corrupt = new ArrayList<>();
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            if (actual == null || actual.checksums[i] != manifest.checksums[i]) {
+                corrupt.add(i);
+            }
+        }
+        return corrupt;
+    }
+
+    // ==========================================================
+
+    /**
+     * @return true if the chunk size is positive and gives not more than Integer.MAX_VALUE chunks for the file length
+     */
+    private static boolean isValidChunkSize(long length, long chunkSize) {
+        if (chunkSize <= 0) {
+            Log.e("Chunk size must be positive " + chunkSize);
+            return false;
+        }
+        if (countChunks(length, chunkSize) > Integer.MAX_VALUE) {
+            Log.e("Chunk size " + chunkSize + " is too small for the file of " + length + " bytes");
+            return false;
+        }
+        return true;
+    }
+
+    private static long countChunks(long length, long chunkSize) {
+        return length / chunkSize + (length % chunkSize == 0 ? 0 : 1);
+    }
+
+    private static File getChunkFile(File dir, String name, int index) {
+        return new File(dir, name + String.format(Locale.US, ".%04d", index));
+    }
+
+    /**
+     * Copy the range from src to dst with positional calls and calculate its CRC32.
+     *
+     * @param dst destination channel or null to calculate the checksum only
+     * @return CRC32 of the range
+     */
+    private static long transfer(FileChannel src, long srcPosition, FileChannel dst, long dstPosition, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = BufferPool.acquire(BUFFER_SIZE);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long done = 0;
+            while (done < length) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Interrupted");
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(bytes.length, length - done));
+                int count = src.read(buffer, srcPosition + done);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file at " + (srcPosition + done));
+                }
+                crc.update(bytes, 0, count);
+                if (dst != null) {
+                    buffer.flip();
+                    long position = dstPosition + done;
+                    while (buffer.hasRemaining()) {
+                        position += dst.write(buffer, position);
+                    }
+                }
+                done += count;
+            }
+        } finally {
+            BufferPool.release(bytes);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Run the task for every chunk index on the worker threads. Stops on the first failure or cancel.
+     *
+     * @return true if all chunks are processed
+     */
+    private static boolean run(final int count, int parallelism, final Progress progress, final ChunkTask task) {
+        int threads = Math.max(1, Math.min(parallelism, count));
+        if (count == 0) {
+            return true;
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger number = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "ChunkedFile #" + number.incrementAndGet());
+                    }
+                });
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean isStopped = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+                        while (!isStopped.get() && (index = next.getAndIncrement()) < count) {
+                            long processed = task.process(index);
+                            if (progress != null && !progress.add(processed)) {
+                                Log.w("Chunked operation is canceled");
+                                isStopped.set(true);
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.e("Chunk operation is failed", e);
+                        isStopped.set(true);
+                    } catch (RuntimeException e) {
+                        // The chunk of this worker is lost, the result must not look complete
+                        Log.e("Chunk operation is failed", e);
+                        isStopped.set(true);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w("Chunked operation is interrupted", e);
+            Thread.currentThread().interrupt();
+            isStopped.set(true);
+        } finally {
+            executor.shutdownNow();
+        }
+        return !isStopped.get();
+    }
+
+    private interface ChunkTask {
+
+        /**
+         * @return count of processed bytes
+         */
+        long process(int index) throws IOException;
+
+    }
+
+    private static final class Progress {
+
+        private final ProgressListener listener;
+        private final long total;
+        private long processed;
+
+        private Progress(ProgressListener listener, long total) {
+            this.listener = listener;
+            this.total = total;
+        }
+
+        private synchronized boolean add(long count) {
+            processed += count;
+            return listener.onProgress(processed, total);
+        }
+
+    }
+
+    // ==========================================================
+
+    /**
+     * Chunk layout and CRC32 checksums of a file.
+     */
+    public static final class Manifest {
+
+        private final String name;
+        private final long length;
+        private final long lastModified;
+        private final long chunkSize;
+        private final long[] checksums;
+
+        private Manifest(String name, long length, long lastModified, long chunkSize) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("Chunk size must be positive " + chunkSize);
+            }
+            this.name = name;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.chunkSize = chunkSize;
+            long count = countChunks(length, chunkSize);
+            if (count > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Chunk size is too small for the file of " + length + " bytes");
+            }
+            checksums = new long[(int) count];
+            Arrays.fill(checksums, NO_CHECKSUM);
+        }
+
+        /**
+         * Load the manifest.
+         *
+         * @param file manifest file
+         * @return the manifest or null if it is absent or corrupt
+         */
+        public static Manifest load(File file) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Wrong manifest file header");
+                }
+                Manifest manifest = new Manifest(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+                for (int i = 0; i < manifest.checksums.length; i++) {
+                    manifest.checksums[i] = in.readLong();
+                }
+                return manifest;
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e("Can't load chunk manifest " + file, e);
+                return null;
+            } finally {
+                FileIO.close(in);
+            }
+        }
+
+        /**
+         * Save the manifest atomically.
+         *
+         * @param file manifest file
+         * @return true if success
+         */
+        public boolean save(File file) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + checksums.length * 8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(name);
+                out.writeLong(length);
+                out.writeLong(lastModified);
+                out.writeLong(chunkSize);
+                for (long checksum : checksums) {
+                    out.writeLong(checksum);
+                }
+                out.flush();
+            } catch (IOException e) {
+                Log.e("Can't serialize chunk manifest", e);
+                return false;
+            }
+            return AtomicWriter.write(file, bytes.toByteArray());
+        }
+
+        /**
+         * @return name of the source file
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return size of the source file
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunkCount() {
+            return checksums.length;
+        }
+
+        public long getOffset(int index) {
+            return index * chunkSize;
+        }
+
+        public long getLength(int index) {
+            return Math.min(chunkSize, length - getOffset(index));
+        }
+
+        /**
+         * @param index chunk index
+         * @return CRC32 of the chunk or -1 if the chunk is not processed
+         */
+        public long getChecksum(int index) {
+            return checksums[index];
+        }
+
+        /**
+         * @return indexes of the chunks which have no checksum yet
+         */
+        public List<Integer> getMissing() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < checksums.length; i++) {
+                if (checksums[i] == NO_CHECKSUM) {
+                    missing.add(i);
+                }
+            }
+            return Collections.unmodifiableList(missing);
+        }
+
+        @Override
+        public String toString() {
+            return name + " [length: " + length + ", chunks: " + checksums.length + " x " + chunkSize + "]";
+        }
+
+    }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+/**
+ * Callback for the asynchronous file operations.
+ *
+ * @param <T> type of the operation result
+ * @author Alexandr Tsvetkov 2016
+ */
+public interface CompleteCallback<T> {
+
+    /**
+     * Called when the operation is completed and is not canceled.
+     *
+     * @param result the same result that the synchronous method returns, or null if the operation is failed with unexpected exception
+     */
+    void onComplete(T result);
+
+}
@@ -0,0 +1,728 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import ua.at.tsvetkov.security.Md5;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Content-addressed file store with deduplication. Every distinct content is kept once as a blob named by its hash, the names given by
+ * the app are links in a small index which holds the hash of each name. A content which is already stored is not written again, only a
+ * new link is added. Blobs which lost the last link are deleted by gc().
+ * <p/>
+ * Layout of the store directory: blobs/ab/abcdef... (first two hash chars are the fan-out dir), tmp/ for the writes in progress, the
+ * index file with all links and the journal of the links changed after it. Each link or remove appends one record to the journal and
+ * syncs it, the journal is compacted into a new index file when it grows bigger than the index. A record torn by a crash fails its CRC
+ * and is dropped with the rest of the journal on open. A new blob is written to tmp and flushed, then renamed to its place before the
+ * record which references it is saved, so after a crash the index never points to a missing blob. Orphan blobs and temp files left by a
+ * crash are removed by gc().
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class ContentStore {
+
+    public static final String MD5 = "MD5";
+    public static final String SHA_256 = "SHA-256";
+
+    private static final int MAGIC = 0x54414f43;
+    private static final int JOURNAL_MAGIC = 0x54414f4a;
+    private static final int VERSION = 1;
+    private static final int JOURNAL_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 256 * 1024;
+    private static final int COMPACT_THRESHOLD = 1000;
+    private static final byte OP_LINK = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String BLOBS = "blobs";
+    private static final String TMP = "tmp";
+    private static final String INDEX = "index";
+    private static final String JOURNAL = "journal";
+
+    private final File dir;
+    private final File blobsDir;
+    private final File tmpDir;
+    private final File indexFile;
+    private final File journalFile;
+    private final String algorithm;
+    private final Map<String, Link> links = new HashMap<>();
+    private final Map<String, Integer> refCounts = new HashMap<>();
+    private final Set<File> writing = new HashSet<>();
+    private long journalLength;
+    private int journalCount;
+
+    private ContentStore(File dir, String algorithm) {
+        this.dir = dir;
+        this.algorithm = algorithm;
+        blobsDir = new File(dir, BLOBS);
+        tmpDir = new File(dir, TMP);
+        indexFile = new File(dir, INDEX);
+        journalFile = new File(dir, JOURNAL);
+    }
+
+    /**
+     * Open the store in the subdir of working directory FileIO.getDir() with SHA-256 hashes.
+     *
+     * @param name subdir name
+     * @return the store or null if the directory can't be created
+     */
+    public static ContentStore open(String name) {
+        return open(new File(FileIO.getDir(name)), SHA_256);
+    }
+
+    /**
+     * Open the store, load the index and replay the journal if exist. The algorithm of an existing store can't be changed, the index made with other algorithm
+     * is treated as corrupt. A store with corrupt index is not opened: without the index every blob looks unreferenced and gc() would
+     * delete them all. The index file and the blobs are left as is for the inspection or manual recovery.
+     *
+     * @param dir       store directory
+     * @param algorithm MD5 or SHA_256
+     * @return the store or null if the directory can't be created or the index is corrupt
+     */
+    public static ContentStore open(File dir, String algorithm) {
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e("Unsupported hash algorithm " + algorithm, e);
+            return null;
+        }
+        ContentStore store = new ContentStore(dir, algorithm);
+        if (!mkdirs(store.blobsDir) || !mkdirs(store.tmpDir)) {
+            return null;
+        }
+        if (store.indexFile.exists()) {
+            try {
+                store.load();
+            } catch (IOException e) {
+                Log.e("Content store index is corrupt, the store is not opened " + store.indexFile, e);
+                return null;
+            }
+        }
+        store.replay();
+        store.dropLost();
+        return store;
+    }
+
+    /**
+     * Store the file content under the name. The file is read once, it is hashed while copied to a temp file, and the temp file is dropped
+     * if this content is already stored.
+     *
+     * @param name name of the link, an existing link with this name is replaced
+     * @param file source file
+     * @return hash of the content or null if failed
+     */
+    public String put(String name, File file) {
+        if (file == null) {
+            Log.e("File is null.");
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return put(name, in);
+        } catch (IOException e) {
+            Log.e("Can't read file " + file, e);
+            return null;
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    /**
+     * Store the data under the name. The data is hashed in memory first, so a content which is already stored costs only the new link.
+     *
+     * @param name name of the link, an existing link with this name is replaced
+     * @param data the data
+     * @return hash of the content or null if failed
+     */
+    public String put(String name, byte[] data) {
+        if (name == null || data == null) {
+            Log.e("Name or data is null.");
+            return null;
+        }
+        String hash = Md5.hashToString(newDigest().digest(data));
+        synchronized (this) {
+            if (getBlob(hash).exists()) {
+                return link(name, hash, data.length) ? hash : null;
+            }
+        }
+        File tmp = writeTemp(name, new ByteArrayInputStream(data), null);
+        return tmp == null ? null : commit(name, hash, tmp);
+    }
+
+    /**
+     * Store the stream content under the name. The stream is written to a temp file while hashing, the temp file is dropped if the content
+     * is already stored. The stream is not closed.
+     *
+     * @param name name of the link, an existing link with this name is replaced
+     * @param in   the data stream
+     * @return hash of the content or null if failed
+     */
+    public String put(String name, InputStream in) {
+        if (name == null || in == null) {
+            Log.e("Name or stream is null.");
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        File tmp = writeTemp(name, in, digest);
+        return tmp == null ? null : commit(name, Md5.hashToString(digest.digest()), tmp);
+    }
+
+    /**
+     * Add one more name for already stored content.
+     *
+     * @param name new name, an existing link with this name is replaced
+     * @param hash hash of stored content
+     * @return true if success, false if the content is absent
+     */
+    public synchronized boolean link(String name, String hash) {
+        File blob = getBlob(hash);
+        if (!blob.exists()) {
+            Log.w("Content is absent " + hash);
+            return false;
+        }
+        return link(name, hash, blob.length());
+    }
+
+    /**
+     * @param name name of the link
+     * @return the blob file or null if the name is absent. The file must not be modified, it can be shared by many names.
+     */
+    public synchronized File get(String name) {
+        Link link = links.get(name);
+        return link == null ? null : getBlob(link.hash);
+    }
+
+    /**
+     * @param name name of the link
+     * @return hash of the content or null if the name is absent
+     */
+    public synchronized String getHash(String name) {
+        Link link = links.get(name);
+        return link == null ? null : link.hash;
+    }
+
+    /**
+     * @param name name of the link
+     * @return true if the name is present
+     */
+    public synchronized boolean contains(String name) {
+        return links.containsKey(name);
+    }
+
+    /**
+     * @param hash hash of the content
+     * @return count of the names which refer to the content
+     */
+    public synchronized int getRefCount(String hash) {
+        Integer count = refCounts.get(hash);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Remove the name. The blob is kept until gc() if it is not referenced anymore.
+     *
+     * @param name name of the link
+     * @return true if the name was present and the removal is saved
+     */
+    public synchronized boolean remove(String name) {
+        Link link = links.remove(name);
+        if (link == null) {
+            return false;
+        }
+        unref(link.hash);
+        if (save(OP_REMOVE, name, null, 0)) {
+            return true;
+        }
+        links.put(name, link);
+        ref(link.hash);
+        return false;
+    }
+
+    /**
+     * @return all names
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(links.keySet());
+    }
+
+    /**
+     * @return count of names
+     */
+    public synchronized int size() {
+        return links.size();
+    }
+
+    /**
+     * @return count of distinct stored contents
+     */
+    public synchronized int getBlobCount() {
+        return refCounts.size();
+    }
+
+    /**
+     * @return sum of sizes of all names, as it would take without deduplication
+     */
+    public synchronized long getLogicalSize() {
+        long size = 0;
+        for (Link link : links.values()) {
+            size += link.size;
+        }
+        return size;
+    }
+
+    /**
+     * Delete the blobs which are not referenced by any name, and the temp files left by interrupted writes. The writes in progress are not
+     * affected.
+     *
+     * @return result with count and size of deleted blobs
+     */
+    public synchronized FileTree.Result gc() {
+        FileTree.Result result = new FileTree.Result();
+        File[] temps = tmpDir.listFiles();
+        if (temps != null) {
+            for (File tmp : temps) {
+                if (!writing.contains(tmp)) {
+                    delete(tmp);
+                }
+            }
+        }
+        File[] fanouts = blobsDir.listFiles();
+        if (fanouts == null) {
+            return result;
+        }
+        for (File fanout : fanouts) {
+            File[] blobs = fanout.listFiles();
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                if (refCounts.containsKey(blob.getName())) {
+                    result.addSkipped();
+                    continue;
+                }
+                long length = blob.length();
+                if (blob.delete()) {
+                    result.addFile(length);
+                } else {
+                    result.addFailed(blob);
+                }
+            }
+            String[] rest = fanout.list();
+            if (rest != null && rest.length == 0 && fanout.delete()) {
+                result.addDir();
+            }
+        }
+        Log.v("Content store " + dir + " gc > " + result);
+        return result;
+    }
+
+    /**
+     * @return the store directory
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    // ==========================================================
+
+    private String commit(String name, String hash, File tmp) {
+        synchronized (this) {
+            writing.remove(tmp);
+            File blob = getBlob(hash);
+            if (blob.exists()) {
+                delete(tmp);
+            } else if (!mkdirs(blob.getParentFile()) || !tmp.renameTo(blob)) {
+                Log.e("Can't move " + tmp + " to " + blob);
+                delete(tmp);
+                return null;
+            } else {
+                AtomicWriter.syncDir(blob.getParentFile());
+            }
+            return link(name, hash, blob.length()) ? hash : null;
+        }
+    }
+
+    /**
+     * Write the stream to a new synced temp file.
+     *
+     * @param digest digest to update with the content, null if the hash is known
+     * @return the temp file or null if failed
+     */
+    private File writeTemp(String name, InputStream in, MessageDigest digest) {
+        File tmp = newTemp();
+        if (tmp == null) {
+            return null;
+        }
+        FileOutputStream out = null;
+        boolean isSuccess = false;
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        try {
+            out = new FileOutputStream(tmp);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer, 0, count);
+                }
+                out.write(buffer, 0, count);
+            }
+            out.getFD().sync();
+            isSuccess = true;
+        } catch (IOException e) {
+            Log.e("Can't write content of " + name, e);
+        } finally {
+            BufferPool.release(buffer);
+            if (!FileIO.close(out)) {
+                isSuccess = false;
+            }
+        }
+        if (!isSuccess) {
+            discard(tmp);
+            return null;
+        }
+        return tmp;
+    }
+
+    /**
+     * Add the link and save it. The maps are rolled back if the link is not saved, so the memory state never differs from the files.
+     */
+    private boolean link(String name, String hash, long size) {
+        Link old = links.put(name, new Link(hash, size));
+        if (old != null) {
+            unref(old.hash);
+        }
+        ref(hash);
+        if (save(OP_LINK, name, hash, size)) {
+            return true;
+        }
+        unref(hash);
+        if (old == null) {
+            links.remove(name);
+        } else {
+            links.put(name, old);
+            ref(old.hash);
+        }
+        return false;
+    }
+
+    private void ref(String hash) {
+        Integer count = refCounts.get(hash);
+        refCounts.put(hash, count == null ? 1 : count + 1);
+    }
+
+    private void unref(String hash) {
+        Integer count = refCounts.get(hash);
+        if (count == null || count <= 1) {
+            refCounts.remove(hash);
+        } else {
+            refCounts.put(hash, count - 1);
+        }
+    }
+
+    private File getBlob(String hash) {
+        return new File(new File(blobsDir, hash.substring(0, 2)), hash);
+    }
+
+    private synchronized File newTemp() {
+        try {
+            File tmp = File.createTempFile("blob", null, tmpDir);
+            writing.add(tmp);
+            return tmp;
+        } catch (IOException e) {
+            Log.e("Can't create temp file in " + tmpDir, e);
+            return null;
+        }
+    }
+
+    private synchronized void discard(File tmp) {
+        if (tmp != null) {
+            writing.remove(tmp);
+            delete(tmp);
+        }
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is checked on open", e);
+        }
+    }
+
+    /**
+     * Append the record to the journal and sync it, or compact the journal into the index file if it is big enough.
+     *
+     * @param hash hash of the linked content, null for OP_REMOVE
+     */
+    private boolean save(byte op, String name, String hash, long size) {
+        if (journalCount >= COMPACT_THRESHOLD && journalCount >= links.size()) {
+            return compact();
+        }
+        byte[] record;
+        try {
+            record = encodeRecord(op, name, hash, size);
+        } catch (IOException e) {
+            Log.e("Can't serialize content store record " + name, e);
+            return false;
+        }
+        RandomAccessFile out = null;
+        boolean isSuccess = false;
+        try {
+            out = new RandomAccessFile(journalFile, "rw");
+            if (journalLength == 0) {
+                out.setLength(0);
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeInt(VERSION);
+                journalLength = JOURNAL_HEADER_SIZE;
+            }
+            out.seek(journalLength);
+            out.write(record);
+            // Cuts the tail of a failed append, it would hide the next records on replay
+            if (out.length() > journalLength + record.length) {
+                out.setLength(journalLength + record.length);
+            }
+            out.getFD().sync();
+            isSuccess = true;
+        } catch (IOException e) {
+            Log.e("Can't write content store journal " + journalFile, e);
+        } finally {
+            if (!FileIO.close(out)) {
+                isSuccess = false;
+            }
+        }
+        if (isSuccess) {
+            journalLength += record.length;
+            journalCount++;
+        }
+        return isSuccess;
+    }
+
+    /**
+     * Write all links into the index file and reset the journal. A crash between the two leaves the journal which is replayed once more over
+     * the index, that gives the same links because the records only set or remove a name.
+     */
+    private boolean compact() {
+        if (!writeIndex()) {
+            return false;
+        }
+        if (journalFile.exists() && !journalFile.delete()) {
+            Log.w("Can't delete content store journal " + journalFile);
+        }
+        journalLength = 0;
+        journalCount = 0;
+        return true;
+    }
+
+    private static byte[] encodeRecord(byte op, String name, String hash, long size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeUTF(name);
+        if (op == OP_LINK) {
+            out.writeUTF(hash);
+            out.writeLong(size);
+        }
+        out.flush();
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 8);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(body.length);
+        recordOut.write(body);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.flush();
+        return record.toByteArray();
+    }
+
+    private boolean writeIndex() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + links.size() * 96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(algorithm);
+            out.writeInt(links.size());
+            for (Map.Entry<String, Link> item : links.entrySet()) {
+                out.writeUTF(item.getKey());
+                out.writeUTF(item.getValue().hash);
+                out.writeLong(item.getValue().size);
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.e("Can't serialize content store index", e);
+            return false;
+        }
+        return AtomicWriter.write(indexFile, bytes.toByteArray());
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Wrong index file header");
+            }
+            if (!algorithm.equals(in.readUTF())) {
+                throw new IOException("Index file is created with other hash algorithm");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String hash = in.readUTF();
+                long size = in.readLong();
+                links.put(name, new Link(hash, size));
+            }
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    /**
+     * Apply the journal records over the loaded index. The replay stops at the first torn or corrupt record, the journal is cut there so the
+     * next records are appended after the last valid one.
+     */
+    private void replay() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        long length = 0;
+        int count = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Wrong journal file header");
+            }
+            length = JOURNAL_HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int size = in.readInt();
+                if (size <= 0 || size > MAX_RECORD_SIZE) {
+                    throw new IOException("Wrong journal record size " + size);
+                }
+                byte[] body = new byte[size];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, size);
+                if (in.readInt() != (int) crc.getValue()) {
+                    throw new IOException("Journal record CRC mismatch");
+                }
+                applyRecord(body);
+                length += size + 8;
+                count++;
+            }
+        } catch (EOFException e) {
+            // The end of the journal or a torn last record
+        } catch (IOException e) {
+            Log.w("Content store journal is replayed up to byte " + length + " " + journalFile, e);
+        } finally {
+            FileIO.close(in);
+        }
+        journalLength = length;
+        journalCount = count;
+    }
+
+    private void applyRecord(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        String name = in.readUTF();
+        if (op == OP_LINK) {
+            String hash = in.readUTF();
+            links.put(name, new Link(hash, in.readLong()));
+        } else if (op == OP_REMOVE) {
+            links.remove(name);
+        } else {
+            throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    /**
+     * Drop the names which blobs are lost and count the references of the rest.
+     */
+    private void dropLost() {
+        Iterator<Map.Entry<String, Link>> iterator = links.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Link> item = iterator.next();
+            if (!getBlob(item.getValue().hash).exists()) {
+                Log.w("Blob of " + item.getKey() + " is lost, the name is dropped");
+                iterator.remove();
+            } else {
+                ref(item.getValue().hash);
+            }
+        }
+    }
+
+    private static boolean mkdirs(File dir) {
+        if (dir.isDirectory() || dir.mkdirs()) {
+            return true;
+        }
+        Log.e("Can't create directory " + dir);
+        return false;
+    }
+
+    private static void delete(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            Log.w("Fail to delete " + file);
+        }
+    }
+
+    // ==========================================================
+
+    private static final class Link {
+
+        private final String hash;
+        private final long size;
+
+        private Link(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+    }
+
+}
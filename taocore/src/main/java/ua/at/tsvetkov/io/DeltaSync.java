@@ -0,0 +1,637 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Delta synchronisation of files in the rsync manner. The destination (basis) file is described by the signature: a rolling weak checksum
+ * and an MD5 hash of each block. The source file is scanned with a rolling window, the windows which match a basis block are sent as a
+ * reference to the block, the rest as literal data. So only the changed regions are written.
+ * <p/>
+ * The delta is applied in place, without a temp copy of the file. A block is referenced only if it is located at or after the current
+ * write position, so it is not overwritten before it is read. An interrupted in-place update leaves the destination inconsistent, but its
+ * modification time differs from the source, so the next sync repairs it.
+ * <p/>
+ * The local sync (sync(), syncTree()) generates and applies the delta in one pass. The delta can also be written to a stream with delta()
+ * and applied later with patch(), if the basis is not changed in between.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class DeltaSync {
+
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x54414f44;
+    private static final int VERSION = 1;
+    private static final byte OP_DATA = 1;
+    private static final byte OP_COPY = 2;
+    private static final byte OP_END = 3;
+    private static final int LITERAL_LIMIT = 64 * 1024;
+    private static final int TAG_COUNT = 1 << 16;
+    private static final int CHAR_OFFSET = 31;
+
+    private DeltaSync() {
+
+    }
+
+    /**
+     * Synchronise the destination directory with the source directory. The files which have the same size and modification time are
+     * skipped, new files are copied, changed files are updated by delta. The files which are absent in the source are not deleted.
+     *
+     * @param srcDir      source directory
+     * @param dstDir      destination directory
+     * @param parallelism max count of the threads, each file is processed by one thread
+     * @return result, the bytes are the written bytes (literal data of deltas and new files), skipped are the unchanged files
+     */
+    public static FileTree.Result syncTree(File srcDir, File dstDir, int parallelism) {
+        final FileTree.Result result = new FileTree.Result();
+        if (srcDir == null) {
+            Log.e("Source directory is null.");
+            result.addFailed(null);
+            return result;
+        }
+        if (!srcDir.isDirectory() || dstDir == null) {
+            Log.e("Source directory " + srcDir + " is not exist or destination directory is null.");
+            result.addFailed(srcDir);
+            return result;
+        }
+        long start = System.currentTimeMillis();
+        List<File[]> pairs = new ArrayList<>();
+        collect(srcDir, dstDir, pairs, result);
+        if (pairs.isEmpty()) {
+            return result;
+        }
+        int threads = Math.max(1, Math.min(parallelism, pairs.size()));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger number = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "DeltaSync #" + number.incrementAndGet());
+                    }
+                });
+        final CountDownLatch done = new CountDownLatch(pairs.size());
+        final AtomicLong reused = new AtomicLong();
+        try {
+            for (final File[] pair : pairs) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            syncFile(pair[0], pair[1], result, reused);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w("Sync of " + srcDir + " is interrupted", e);
+            Thread.currentThread().interrupt();
+            result.addFailed(srcDir);
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.v("Sync " + srcDir + " to " + dstDir + " > " + result + ", reused bytes: " + reused + " in " + (System.currentTimeMillis() - start)
+                + " ms");
+        return result;
+    }
+
+    /**
+     * Update the destination file in place to be equal to the source file. If the destination is absent then the source is copied.
+     *
+     * @param src source file
+     * @param dst destination file
+     * @return count of written bytes or -1 if failed
+     */
+    public static long sync(File src, File dst) {
+        if (src == null || !src.isFile() || dst == null) {
+            Log.e("Source file is not exist or destination file is null.");
+            return -1;
+        }
+        if (!dst.exists()) {
+            return FileIO.copy(src, dst, true, null);
+        }
+        RandomAccessFile in = null;
+        RandomAccessFile out = null;
+        try {
+            in = new RandomAccessFile(src, "r");
+            out = new RandomAccessFile(dst, "rw");
+            Signature signature = signature(out.getChannel(), blockSizeFor(dst.length()));
+            InPlaceSink sink = new InPlaceSink(out.getChannel(), signature.blockSize);
+            generate(in.getChannel(), signature, sink);
+            out.getFD().sync();
+            return sink.written;
+        } catch (IOException e) {
+            Log.e("Can't sync file " + src + " to " + dst, e);
+            return -1;
+        } finally {
+            FileIO.close(in);
+            FileIO.close(out);
+        }
+    }
+
+    /**
+     * Calculate the signature of the basis file.
+     *
+     * @param basis     basis file, usually the destination of sync
+     * @param blockSize block size, see blockSizeFor()
+     * @return the signature
+     * @throws IOException if the file can't be read
+     */
+    public static Signature signature(File basis, int blockSize) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(basis, "r");
+        try {
+            return signature(in.getChannel(), blockSize);
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    /**
+     * Write the delta which turns the basis of signature into the source file.
+     *
+     * @param src       source file
+     * @param signature signature of the basis
+     * @param out       delta stream, not closed
+     * @throws IOException if the file can't be read or the stream can't be written
+     */
+    public static void delta(File src, Signature signature, OutputStream out) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(src, "r");
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, LITERAL_LIMIT));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(signature.blockSize);
+            generate(in.getChannel(), signature, new StreamSink(data));
+            data.flush();
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    /**
+     * Apply the delta in place to the basis file, which must be the same as at the moment of signature calculation.
+     *
+     * @param basis the basis file
+     * @param delta delta stream written by delta(), not closed
+     * @return count of written bytes
+     * @throws IOException if the delta is corrupt or the file can't be written
+     */
+    public static long patch(File basis, InputStream delta) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta, LITERAL_LIMIT));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Wrong delta header");
+        }
+        int blockSize = in.readInt();
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IOException("Wrong delta block size " + blockSize);
+        }
+        RandomAccessFile out = new RandomAccessFile(basis, "rw");
+        byte[] buffer = BufferPool.acquire(LITERAL_LIMIT);
+        try {
+            InPlaceSink sink = new InPlaceSink(out.getChannel(), blockSize);
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_DATA) {
+                    int length = in.readInt();
+                    if (length < 0 || length > buffer.length) {
+                        throw new IOException("Wrong delta data length " + length);
+                    }
+                    in.readFully(buffer, 0, length);
+                    sink.data(buffer, 0, length);
+                } else if (op == OP_COPY) {
+                    sink.copy(in.readLong(), in.readInt());
+                } else if (op == OP_END) {
+                    sink.end(in.readLong());
+                    break;
+                } else {
+                    throw new IOException("Wrong delta operation " + op);
+                }
+            }
+            out.getFD().sync();
+            return sink.written;
+        } finally {
+            BufferPool.release(buffer);
+            FileIO.close(out);
+        }
+    }
+
+    /**
+     * Block size for the basis file of the given length, about square root of the length within MIN_BLOCK_SIZE and MAX_BLOCK_SIZE.
+     *
+     * @param length basis file length
+     * @return block size
+     */
+    public static int blockSizeFor(long length) {
+        int size = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(length)));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    // ==========================================================
+
+    private static void collect(File srcDir, File dstDir, List<File[]> pairs, FileTree.Result result) {
+        if (!dstDir.isDirectory()) {
+            if (dstDir.mkdirs()) {
+                result.addDir();
+            } else {
+                Log.e("Can't create directory " + dstDir);
+                result.addFailed(dstDir);
+                return;
+            }
+        }
+        File[] children = srcDir.listFiles();
+        if (children == null) {
+            Log.e("Can't list directory " + srcDir);
+            result.addFailed(srcDir);
+            return;
+        }
+        for (File child : children) {
+            File dst = new File(dstDir, child.getName());
+            if (child.isDirectory()) {
+                if (!FileTree.isSymlink(child)) {
+                    collect(child, dst, pairs, result);
+                }
+            } else if (dst.length() == child.length() && dst.lastModified() == child.lastModified()) {
+                result.addSkipped();
+            } else {
+                pairs.add(new File[]{child, dst});
+            }
+        }
+    }
+
+    private static void syncFile(File src, File dst, FileTree.Result result, AtomicLong reused) {
+        long written = sync(src, dst);
+        if (written < 0) {
+            result.addFailed(dst);
+            return;
+        }
+        reused.addAndGet(src.length() - written);
+        if (!dst.setLastModified(src.lastModified())) {
+            Log.w("Can't set modification time of " + dst);
+        }
+        result.addFile(written);
+    }
+
+    private static Signature signature(FileChannel channel, int blockSize) throws IOException {
+        long length = channel.size();
+        long count = length / blockSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Block size " + blockSize + " is too small for the file of " + length + " bytes");
+        }
+        Signature signature = new Signature(blockSize, (int) count);
+        MessageDigest md5 = newMd5();
+        byte[] block = BufferPool.acquire(blockSize);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, blockSize);
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                buffer.limit(blockSize);
+                readFully(channel, buffer, (long) i * blockSize);
+                signature.weak[i] = weak(block, 0, blockSize);
+                md5.update(block, 0, blockSize);
+                signature.strong[i] = md5.digest();
+            }
+        } finally {
+            BufferPool.release(block);
+        }
+        signature.buildIndex();
+        return signature;
+    }
+
+    /**
+     * Scan the source with the rolling window and emit the literal data and the references to the basis blocks.
+     */
+    private static void generate(FileChannel src, Signature signature, Sink sink) throws IOException {
+        int blockSize = signature.blockSize;
+        byte[] buffer = new byte[blockSize + Math.max(LITERAL_LIMIT, blockSize)];
+        MessageDigest md5 = newMd5();
+        long output = 0;
+        long position = 0;
+        int end = 0;
+        int literal = 0;
+        int window = 0;
+        boolean isEof = false;
+        boolean isWeakValid = false;
+        int a = 0;
+        int b = 0;
+        while (true) {
+            if (end - window < blockSize) {
+                if (isEof) {
+                    break;
+                }
+                if (window > literal) {
+                    sink.data(buffer, literal, window - literal);
+                    output += window - literal;
+                }
+                System.arraycopy(buffer, window, buffer, 0, end - window);
+                end -= window;
+                literal = window = 0;
+                ByteBuffer in = ByteBuffer.wrap(buffer, end, buffer.length - end);
+                int count = src.read(in, position);
+                if (count < 0) {
+                    isEof = true;
+                } else {
+                    position += count;
+                    end += count;
+                }
+                continue;
+            }
+            if (!isWeakValid) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = (buffer[window + i] & 0xff) + CHAR_OFFSET;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                isWeakValid = true;
+            }
+            int weak = (a & 0xffff) | (b << 16);
+            int block = signature.find(weak, buffer, window, output + window - literal, md5);
+            if (block >= 0) {
+                if (window > literal) {
+                    sink.data(buffer, literal, window - literal);
+                    output += window - literal;
+                }
+                sink.copy((long) block * blockSize, blockSize);
+                output += blockSize;
+                window += blockSize;
+                literal = window;
+                isWeakValid = false;
+                continue;
+            }
+            if (window - literal >= LITERAL_LIMIT) {
+                sink.data(buffer, literal, window - literal);
+                output += window - literal;
+                literal = window;
+            }
+            if (window + blockSize < end) {
+                int out = (buffer[window] & 0xff) + CHAR_OFFSET;
+                int in = (buffer[window + blockSize] & 0xff) + CHAR_OFFSET;
+                a += in - out;
+                b += a - blockSize * out;
+            } else {
+                isWeakValid = false;
+            }
+            window++;
+        }
+        if (end > literal) {
+            sink.data(buffer, literal, end - literal);
+            output += end - literal;
+        }
+        sink.end(output);
+    }
+
+    private static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = (data[offset + i] & 0xff) + CHAR_OFFSET;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static int tag(int weak) {
+        return (weak ^ (weak >>> 16)) & (TAG_COUNT - 1);
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Huh, MD5 should be supported?", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += count;
+        }
+    }
+
+    // ==========================================================
+
+    /**
+     * Block signatures of the basis file.
+     */
+    public static final class Signature {
+
+        private final int blockSize;
+        private final int[] weak;
+        private final byte[][] strong;
+        private int[] heads;
+        private int[] next;
+
+        private Signature(int blockSize, int count) {
+            this.blockSize = blockSize;
+            weak = new int[count];
+            strong = new byte[count][];
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return weak.length;
+        }
+
+        private void buildIndex() {
+            heads = new int[TAG_COUNT];
+            next = new int[weak.length];
+            Arrays.fill(heads, -1);
+            for (int i = weak.length - 1; i >= 0; i--) {
+                int tag = tag(weak[i]);
+                next[i] = heads[tag];
+                heads[tag] = i;
+            }
+        }
+
+        /**
+         * Find the block equal to the window which is not before the write position. The block at the write position is preferred, it
+         * needs no write at all.
+         *
+         * @return block index or -1
+         */
+        private int find(int weakSum, byte[] data, int offset, long writePosition, MessageDigest md5) {
+            int index = heads[tag(weakSum)];
+            if (index < 0) {
+                return -1;
+            }
+            byte[] hash = null;
+            int found = -1;
+            for (; index >= 0; index = next[index]) {
+                long blockPosition = (long) index * blockSize;
+                if (weak[index] != weakSum || blockPosition < writePosition) {
+                    continue;
+                }
+                if (hash == null) {
+                    md5.update(data, offset, blockSize);
+                    hash = md5.digest();
+                }
+                if (Arrays.equals(hash, strong[index])) {
+                    if (blockPosition == writePosition) {
+                        return index;
+                    }
+                    if (found < 0) {
+                        found = index;
+                    }
+                }
+            }
+            return found;
+        }
+
+    }
+
+    private interface Sink {
+
+        void data(byte[] data, int offset, int length) throws IOException;
+
+        void copy(long offset, int length) throws IOException;
+
+        void end(long length) throws IOException;
+
+    }
+
+    private static final class StreamSink implements Sink {
+
+        private final DataOutputStream out;
+
+        private StreamSink(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void data(byte[] data, int offset, int length) throws IOException {
+            out.writeByte(OP_DATA);
+            out.writeInt(length);
+            out.write(data, offset, length);
+        }
+
+        @Override
+        public void copy(long offset, int length) throws IOException {
+            out.writeByte(OP_COPY);
+            out.writeLong(offset);
+            out.writeInt(length);
+        }
+
+        @Override
+        public void end(long length) throws IOException {
+            out.writeByte(OP_END);
+            out.writeLong(length);
+        }
+
+    }
+
+    /**
+     * Applies the delta to the basis channel in place.
+     */
+    private static final class InPlaceSink implements Sink {
+
+        private final FileChannel channel;
+        private final byte[] block;
+        private long position;
+        private long written;
+
+        private InPlaceSink(FileChannel channel, int blockSize) {
+            this.channel = channel;
+            block = new byte[blockSize];
+        }
+
+        @Override
+        public void data(byte[] data, int offset, int length) throws IOException {
+            write(ByteBuffer.wrap(data, offset, length));
+            written += length;
+        }
+
+        @Override
+        public void copy(long offset, int length) throws IOException {
+            if (offset < position || length > block.length) {
+                throw new IOException("Block at " + offset + " is already overwritten, write position " + position);
+            }
+            if (offset == position) {
+                position += length;
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+            readFully(channel, buffer, offset);
+            buffer.flip();
+            write(buffer);
+            written += length;
+        }
+
+        @Override
+        public void end(long length) throws IOException {
+            if (length != position) {
+                throw new IOException("Delta length " + length + " is not equal to written " + position);
+            }
+            channel.truncate(length);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+    }
+
+}
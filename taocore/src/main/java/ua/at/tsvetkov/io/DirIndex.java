@@ -0,0 +1,501 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ua.at.tsvetkov.security.Md5;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Persisted index of a directory tree (relative path, size, modification time and optional MD5 hash of each file) which is refreshed
+ * incrementally. The directory which modification time is not changed since the last refresh is not listed again, only its known subdirs
+ * are checked, so the refresh costs about one stat call per directory plus the listing of the changed directories.
+ * <p/>
+ * The directory modification time is changed when a file is created, deleted or renamed in it, but not when the file content is rewritten
+ * in place. Use refresh(true) to make a full scan if the files can be modified in place. A directory which was modified within the time
+ * granularity of the file system at the moment of refresh is listed again on the next refresh. Symbolic links to directories are not
+ * followed.
+ * <p/>
+ * The index file and its temp files are not indexed if they are inside the root, other paths can be left out with exclude(File).
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class DirIndex {
+
+    static final String INDEX_FILE = "dir.index";
+
+    private static final int MAGIC = 0x54414f49;
+    private static final int VERSION = 1;
+    private static final char SEPARATOR = '/';
+
+    private final File root;
+    private final File indexFile;
+    private final boolean isHash;
+    private final Map<String, DirState> dirs = new HashMap<>();
+    private final Map<String, Entry> files = new HashMap<>();
+    private final Set<String> excluded = new HashSet<>();
+    private final String indexDirPath;
+
+    private DirIndex(File root, File indexFile, boolean isHash) {
+        this.root = root;
+        this.indexFile = indexFile;
+        this.isHash = isHash;
+        String indexPath = relativePath(root, indexFile);
+        if (indexPath != null) {
+            excluded.add(indexPath);
+            int slash = indexPath.lastIndexOf(SEPARATOR);
+            indexDirPath = slash < 0 ? "" : indexPath.substring(0, slash);
+        } else {
+            indexDirPath = null;
+        }
+    }
+
+    /**
+     * Open the index of working directory AppConfig.getApplicationWorkingDir(). The index is stored in the cache dir, which is not indexed.
+     *
+     * @param isHash true - compute MD5 hash of the added and modified files
+     * @return the index
+     */
+    public static DirIndex open(boolean isHash) {
+        File root = new File(FileIO.getDir());
+        String cacheDir = FileIO.getCacheDir();
+        if (cacheDir.length() == 0) {
+            Log.w("Cache dir is not available, the directory index is stored in the root");
+            return open(root, new File(root, INDEX_FILE), isHash);
+        }
+        return open(root, new File(cacheDir, INDEX_FILE), isHash).exclude(new File(cacheDir));
+    }
+
+    /**
+     * Open the index, load the previous state if the index file exists. The first refresh of the new index reports all files as added.
+     *
+     * @param root      indexed directory
+     * @param indexFile file for store the index. If it is inside the root, it is excluded, but its directory is listed again after each save.
+     * @param isHash    true - compute MD5 hash of the added and modified files
+     * @return the index
+     */
+    public static DirIndex open(File root, File indexFile, boolean isHash) {
+        DirIndex index = new DirIndex(root, indexFile, isHash);
+        if (indexFile.exists()) {
+            try {
+                index.load();
+            } catch (IOException e) {
+                Log.w("Directory index is corrupt, full scan is needed " + indexFile, e);
+                index.dirs.clear();
+                index.files.clear();
+            }
+            // The index saved by the older version could contain the index file itself
+            for (String path : index.excluded) {
+                index.files.remove(path);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Leave the file or directory out of the index. The entries which are already indexed under it are dropped without reporting.
+     *
+     * @param file file or directory inside the root
+     * @return this
+     */
+    public synchronized DirIndex exclude(File file) {
+        String path = relativePath(root, file);
+        if (path == null || path.length() == 0) {
+            Log.w("Can't exclude " + file + ", it is not inside the indexed directory " + root);
+            return this;
+        }
+        excluded.add(path);
+        Diff dropped = new Diff();
+        removeDir(path, dropped);
+        files.remove(path);
+        return this;
+    }
+
+    /**
+     * Refresh the index, skipping the not changed directories.
+     *
+     * @return the changes since the last refresh
+     */
+    public Diff refresh() {
+        return refresh(false);
+    }
+
+    /**
+     * Refresh the index.
+     *
+     * @param isFullScan true - list and stat all directories and files
+     * @return the changes since the last refresh
+     */
+    public synchronized Diff refresh(boolean isFullScan) {
+        Diff diff = new Diff();
+        long start = System.currentTimeMillis();
+        if (root.isDirectory()) {
+            refreshDir("", root, isFullScan, start, diff);
+        } else {
+            Log.w("Indexed directory is absent " + root);
+            removeDir("", diff);
+        }
+        Log.v("Directory index " + root + " refreshed in " + (System.currentTimeMillis() - start) + " ms > " + diff);
+        return diff;
+    }
+
+    /**
+     * Save the index atomically to the index file.
+     *
+     * @return true if success
+     */
+    public synchronized boolean save() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + files.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(root.getAbsolutePath());
+            out.writeInt(dirs.size());
+            for (Map.Entry<String, DirState> item : dirs.entrySet()) {
+                DirState state = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeLong(state.mtime);
+                writeNames(out, state.fileNames);
+                writeNames(out, state.subdirNames);
+            }
+            out.writeInt(files.size());
+            for (Entry entry : files.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeUTF(entry.hash == null ? "" : entry.hash);
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.e("Can't serialize directory index", e);
+            return false;
+        }
+        return AtomicWriter.write(indexFile, bytes.toByteArray());
+    }
+
+    /**
+     * @param path path relative to the root, with '/' separators
+     * @return the entry or null if absent
+     */
+    public synchronized Entry get(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * @return all indexed files
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * @return count of indexed files
+     */
+    public synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * @return the indexed directory
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    // ==========================================================
+
+    private void refreshDir(String rel, File dir, boolean isFullScan, long scanTime, Diff diff) {
+        long mtime = dir.lastModified();
+        DirState state = dirs.get(rel);
+        if (!isFullScan && state != null && DiskUsage.isUnchanged(state.mtime, mtime)) {
+            for (String name : state.subdirNames) {
+                if (!isExcluded(rel, name)) {
+                    refreshDir(child(rel, name), new File(dir, name), false, scanTime, diff);
+                }
+            }
+            return;
+        }
+        File[] children = dir.listFiles();
+        if (children == null) {
+            Log.w("Can't list directory " + dir);
+            return;
+        }
+        DirState newState = new DirState(DiskUsage.toTrustedMtime(mtime, scanTime));
+        for (File file : children) {
+            String name = file.getName();
+            if (isExcluded(rel, name)) {
+                continue;
+            }
+            String path = child(rel, name);
+            if (file.isDirectory()) {
+                // The linked directory is not indexed, it can lead outside the root or into a loop
+                if (!FileTree.isSymlink(file)) {
+                    newState.subdirNames.add(name);
+                    refreshDir(path, file, isFullScan, scanTime, diff);
+                }
+            } else {
+                newState.fileNames.add(name);
+                refreshFile(path, file, diff);
+            }
+        }
+        if (state != null) {
+            for (String name : state.fileNames) {
+                if (!newState.fileNames.contains(name)) {
+                    Entry removed = files.remove(child(rel, name));
+                    if (removed != null) {
+                        diff.removed.add(removed);
+                    }
+                }
+            }
+            for (String name : state.subdirNames) {
+                if (!newState.subdirNames.contains(name)) {
+                    removeDir(child(rel, name), diff);
+                }
+            }
+        }
+        dirs.put(rel, newState);
+    }
+
+    private void refreshFile(String path, File file, Diff diff) {
+        long size = file.length();
+        long mtime = file.lastModified();
+        Entry entry = files.get(path);
+        if (entry != null && entry.size == size && entry.mtime == mtime) {
+            return;
+        }
+        String hash = null;
+        if (isHash) {
+            hash = Md5.getHashString(file.getPath());
+            if (hash == null && !file.isFile()) {
+                // Deleted during the scan, the next refresh reports it as removed
+                return;
+            }
+        }
+        Entry newEntry = new Entry(path, size, mtime, hash);
+        if (entry == null) {
+            diff.added.add(newEntry);
+        } else if (entry.hash == null || !entry.hash.equals(newEntry.hash)) {
+            diff.modified.add(newEntry);
+        }
+        files.put(path, newEntry);
+    }
+
+    private boolean isExcluded(String rel, String name) {
+        if (excluded.contains(child(rel, name))) {
+            return true;
+        }
+        // The temp files of AtomicWriter near the index file
+        return rel.equals(indexDirPath) && name.startsWith("." + indexFile.getName() + ".");
+    }
+
+    /**
+     * @return the path relative to the root with '/' separators, "" for the root itself, or null if the file is not inside the root
+     */
+    private static String relativePath(File root, File file) {
+        String rootPath = root.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        if (path.equals(rootPath)) {
+            return "";
+        }
+        String prefix = rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator;
+        if (!path.startsWith(prefix)) {
+            return null;
+        }
+        return path.substring(prefix.length()).replace(File.separatorChar, SEPARATOR);
+    }
+
+    private void removeDir(String rel, Diff diff) {
+        DirState state = dirs.remove(rel);
+        if (state == null) {
+            return;
+        }
+        for (String name : state.fileNames) {
+            Entry removed = files.remove(child(rel, name));
+            if (removed != null) {
+                diff.removed.add(removed);
+            }
+        }
+        for (String name : state.subdirNames) {
+            removeDir(child(rel, name), diff);
+        }
+    }
+
+    private static String child(String rel, String name) {
+        return rel.length() == 0 ? name : rel + SEPARATOR + name;
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Wrong index file header");
+            }
+            if (!root.getAbsolutePath().equals(in.readUTF())) {
+                throw new IOException("Index file is created for other directory");
+            }
+            int dirCount = in.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                String rel = in.readUTF();
+                DirState state = new DirState(in.readLong());
+                readNames(in, state.fileNames);
+                readNames(in, state.subdirNames);
+                dirs.put(rel, state);
+            }
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String hash = in.readUTF();
+                files.put(path, new Entry(path, size, mtime, hash.length() == 0 ? null : hash));
+            }
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, Set<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static void readNames(DataInputStream in, Set<String> names) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+    }
+
+    // ==========================================================
+
+    private static final class DirState {
+
+        private final long mtime;
+        private final Set<String> fileNames = new HashSet<>();
+        private final Set<String> subdirNames = new HashSet<>();
+
+        private DirState(long mtime) {
+            this.mtime = mtime;
+        }
+
+    }
+
+    /**
+     * Indexed file
+     */
+    public static final class Entry {
+
+        private final String path;
+        private final long size;
+        private final long mtime;
+        private final String hash;
+
+        private Entry(String path, long size, long mtime, String hash) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+
+        /**
+         * @return path relative to the indexed directory, with '/' separators
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return mtime;
+        }
+
+        /**
+         * @return MD5 hash or null if the index is opened without hashes
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return path + " [size: " + size + ", mtime: " + mtime + (hash == null ? "" : ", hash: " + hash) + "]";
+        }
+
+    }
+
+    /**
+     * Changes found by the refresh. With hashes enabled a file which is touched but has the same content is not reported as modified.
+     */
+    public static final class Diff {
+
+        private final List<Entry> added = new ArrayList<>();
+        private final List<Entry> modified = new ArrayList<>();
+        private final List<Entry> removed = new ArrayList<>();
+
+        public List<Entry> getAdded() {
+            return Collections.unmodifiableList(added);
+        }
+
+        public List<Entry> getModified() {
+            return Collections.unmodifiableList(modified);
+        }
+
+        public List<Entry> getRemoved() {
+            return Collections.unmodifiableList(removed);
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "added: " + added.size() + ", modified: " + modified.size() + ", removed: " + removed.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,755 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+import ua.at.tsvetkov.security.Md5;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Size bounded disk cache (key - file) with a LRU eviction. Each entry is one file in the cache directory, all changes are recorded in the
+ * journal, so after the app crash or kill the cache is restored from the journal and the incomplete edits are dropped.
+ * <p/>
+ * The edit is atomic: the data is written to a dirty file, and only the commit replaces the clean file. While one editor is open for a key
+ * other edits of this key are rejected, but reads are possible. The reads are concurrent: the stream is opened under the cache lock and then
+ * read without locking. Eviction and journal compaction run in the IoExecutor.
+ * <p/>
+ * Keys must match [a-z0-9_-]{1,120}, use key(String) to make a valid key from any string (url for example).
+ * <p/>
+ * Journal format:
+ * <pre>
+ *     ua.at.tsvetkov.io.DiskLruCache
+ *     1
+ *     100
+ *
+ *     DIRTY 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832
+ *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *     REMOVE 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * </pre>
+ * The header holds magic string, journal version and app version. DIRTY marks the edit start, CLEAN - the committed entry with its length,
+ * READ - the access for the LRU order, REMOVE - the removed entry or aborted edit.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class DiskLruCache implements Closeable {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "ua.at.tsvetkov.io.DiskLruCache";
+    static final String VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final String DIRTY_SUFFIX = ".tmp";
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,120}");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final int appVersion;
+    private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private long maxSize;
+    private long size = 0;
+    private Writer journalWriter;
+    private int redundantOpCount;
+    private boolean isCleanupScheduled = false;
+    private boolean isCleanupRequested = false;
+
+    private final Runnable cleanup = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskLruCache.this) {
+                isCleanupScheduled = false;
+                if (journalWriter == null) {
+                    return;
+                }
+                try {
+                    trimToSize();
+                    if (isJournalRebuildRequired()) {
+                        rebuildJournal();
+                        redundantOpCount = 0;
+                    }
+                } catch (IOException e) {
+                    Log.e("Cache cleanup is failed " + directory, e);
+                }
+            }
+            executeCleanupIfRequested();
+        }
+    };
+
+    private DiskLruCache(File directory, int appVersion, long maxSize) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.maxSize = maxSize;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * Open the cache in the sub directory of FileIO.getCacheDir(), creating a cache if none exists there.
+     *
+     * @param name    name of the cache sub directory
+     * @param maxSize max count of bytes in the cache
+     * @return the cache
+     * @throws IOException if the cache directory can't be created or the journal can't be written
+     */
+    public static DiskLruCache open(String name, long maxSize) throws IOException {
+        return open(new File(FileIO.getCacheDir(), name), 1, maxSize);
+    }
+
+    /**
+     * Open the cache in directory, creating a cache if none exists there. The cache with other app version is cleared.
+     *
+     * @param directory  a writable directory, used only by this cache
+     * @param appVersion version of the stored data format
+     * @param maxSize    max count of bytes in the cache
+     * @return the cache
+     * @throws IOException if the cache directory can't be created or the journal can't be written
+     */
+    public static DiskLruCache open(File directory, int appVersion, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create cache directory " + directory);
+        }
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, maxSize);
+        if (cache.journalFile.exists()) {
+            try {
+                boolean isComplete = cache.readJournal();
+                cache.processJournal();
+                if (isComplete) {
+                    cache.journalWriter = newJournalWriter(cache.journalFile, true);
+                } else {
+                    cache.rebuildJournal();
+                }
+                return cache;
+            } catch (IOException e) {
+                Log.w("Cache " + directory + " is corrupt, removing", e);
+                FileTree.deleteContent(directory);
+                cache.lruEntries.clear();
+                cache.size = 0;
+            }
+        }
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * Return the valid cache key for any string, MD5 hash of the string.
+     *
+     * @param value any string, url for example
+     * @return the key
+     */
+    public static String key(String value) {
+        try {
+            return Md5.getHashString(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Return the stream for read the cached data or null if the entry is absent. Caller must close the stream.
+     *
+     * @param key the key
+     * @return opened stream or null
+     */
+    public InputStream get(String key) {
+        InputStream in = null;
+        synchronized (this) {
+            Entry entry = getReadable(key);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                in = new FileInputStream(entry.getCleanFile());
+                journalRead(key);
+            } catch (FileNotFoundException e) {
+                Log.w("Cache file is removed outside the cache " + entry.getCleanFile());
+            }
+        }
+        executeCleanupIfRequested();
+        return in;
+    }
+
+    /**
+     * Return the cached file or null if the entry is absent. The file can be evicted at any time later, so prefer get(String) for the long
+     * reads.
+     *
+     * @param key the key
+     * @return the file or null
+     */
+    public File getFile(String key) {
+        File file;
+        synchronized (this) {
+            Entry entry = getReadable(key);
+            if (entry == null) {
+                return null;
+            }
+            journalRead(key);
+            file = entry.getCleanFile();
+        }
+        executeCleanupIfRequested();
+        return file;
+    }
+
+    /**
+     * Start the edit of entry. Return null if the other edit of this key is in progress.
+     *
+     * @param key the key
+     * @return the editor or null
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized Editor edit(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        } else if (entry.currentEditor != null) {
+            return null;
+        }
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalWriter.flush();
+        return editor;
+    }
+
+    /**
+     * Put the file copy into the cache.
+     *
+     * @param key  the key
+     * @param file source file
+     * @return true if success
+     */
+    public boolean put(String key, File file) {
+        try {
+            Editor editor = edit(key);
+            if (editor == null) {
+                return false;
+            }
+            if (FileIO.copy(file, editor.getFile()) < 0) {
+                editor.abort();
+                return false;
+            }
+            return editor.commit();
+        } catch (IOException e) {
+            Log.e("Can't put into the cache " + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Remove the entry. The entry which is edited now can't be removed.
+     *
+     * @param key the key
+     * @return true if the entry was removed
+     */
+    public boolean remove(String key) {
+        boolean isRemoved;
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            isRemoved = removeEntry(key);
+        }
+        executeCleanupIfRequested();
+        return isRemoved;
+    }
+
+    private boolean removeEntry(String key) {
+        Entry entry = lruEntries.get(key);
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+        File file = entry.getCleanFile();
+        if (file.exists() && !file.delete()) {
+            Log.w("Fail to delete cache file " + file);
+            return false;
+        }
+        size -= entry.length;
+        lruEntries.remove(key);
+        redundantOpCount++;
+        journalWrite(REMOVE + ' ' + key + '\n');
+        scheduleCleanupIfNeeded();
+        return true;
+    }
+
+    /**
+     * @return count of bytes in the cache. Can be greater than max size until the background eviction is finished.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return count of entries in the cache, including the edited ones
+     */
+    public synchronized int count() {
+        return lruEntries.size();
+    }
+
+    /**
+     * @return max count of bytes in the cache
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Change the max count of bytes. The eviction is started in background if needed.
+     *
+     * @param maxSize max count of bytes
+     */
+    public void setMaxSize(long maxSize) {
+        synchronized (this) {
+            this.maxSize = maxSize;
+            scheduleCleanupIfNeeded();
+        }
+        executeCleanupIfRequested();
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Evict the entries until the size is less than the max size and flush the journal.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        trimToSize();
+        journalWriter.flush();
+    }
+
+    /**
+     * Close the cache. The edits in progress are aborted.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (journalWriter == null) {
+            return;
+        }
+        for (Entry entry : new ArrayList<>(lruEntries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        trimToSize();
+        journalWriter.close();
+        journalWriter = null;
+    }
+
+    /**
+     * Close the cache and delete all its content.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    public void delete() throws IOException {
+        close();
+        FileTree.deleteContent(directory);
+    }
+
+    public synchronized boolean isClosed() {
+        return journalWriter == null;
+    }
+
+    // ==========================================================
+
+    private Entry getReadable(String key) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.isReadable) {
+            return null;
+        }
+        return entry;
+    }
+
+    private void journalRead(String key) {
+        redundantOpCount++;
+        journalWrite(READ + ' ' + key + '\n');
+        scheduleCleanupIfNeeded();
+    }
+
+    private void journalWrite(String line) {
+        try {
+            journalWriter.write(line);
+            journalWriter.flush();
+        } catch (IOException e) {
+            Log.e("Can't write the cache journal " + journalFile, e);
+        }
+    }
+
+    private synchronized boolean completeEdit(Editor editor, boolean isSuccess) throws IOException {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException("Editor is not active");
+        }
+        entry.currentEditor = null;
+        File dirty = entry.getDirtyFile();
+        if (journalWriter == null) {
+            deleteIfExists(dirty);
+            return false;
+        }
+        boolean isCommitted = false;
+        if (isSuccess && dirty.exists()) {
+            File clean = entry.getCleanFile();
+            if (dirty.renameTo(clean)) {
+                size += clean.length() - entry.length;
+                entry.length = clean.length();
+                entry.isReadable = true;
+                isCommitted = true;
+            } else {
+                Log.w("Can't commit cache file " + clean);
+            }
+        }
+        if (dirty.exists() && !dirty.delete()) {
+            Log.w("Fail to delete dirty cache file " + dirty);
+        }
+        redundantOpCount++;
+        if (entry.isReadable) {
+            journalWriter.write(CLEAN + ' ' + entry.key + ' ' + entry.length + '\n');
+        } else {
+            lruEntries.remove(entry.key);
+            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        }
+        journalWriter.flush();
+        scheduleCleanupIfNeeded();
+        return isCommitted;
+    }
+
+    /**
+     * Called with the lock held, only marks the cleanup as requested. The task is submitted by executeCleanupIfRequested() after the lock is
+     * released, so the submitting thread never holds the cache while the executor is busy with the tasks which need it.
+     */
+    private void scheduleCleanupIfNeeded() {
+        if (!isCleanupScheduled && (size > maxSize || isJournalRebuildRequired())) {
+            isCleanupScheduled = true;
+            isCleanupRequested = true;
+        }
+    }
+
+    private void executeCleanupIfRequested() {
+        synchronized (this) {
+            if (!isCleanupRequested) {
+                return;
+            }
+            isCleanupRequested = false;
+        }
+        try {
+            IoExecutor.getExecutor().execute(cleanup);
+        } catch (RejectedExecutionException e) {
+            // The next operation requests the cleanup again
+            Log.w("Cache cleanup is postponed, the executor is busy " + directory);
+            synchronized (this) {
+                isCleanupScheduled = false;
+            }
+        }
+    }
+
+    private boolean isJournalRebuildRequired() {
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= lruEntries.size();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = lruEntries.entrySet().iterator();
+        ArrayList<String> evict = new ArrayList<>();
+        long newSize = size;
+        while (newSize > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.currentEditor == null) {
+                evict.add(entry.key);
+                newSize -= entry.length;
+            }
+        }
+        for (String key : evict) {
+            removeEntry(key);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("Cache is closed");
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("Keys must match [a-z0-9_-]{1,120}: \"" + key + "\"");
+        }
+    }
+
+    private static Writer newJournalWriter(File file, boolean isAppend) throws FileNotFoundException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, isAppend), US_ASCII));
+    }
+
+    /**
+     * Read the journal into lruEntries
+     *
+     * @return false if the journal has the truncated or broken tail and must be rebuilt
+     * @throws IOException if the journal header is wrong
+     */
+    private boolean readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), US_ASCII));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String appVersionString = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !Integer.toString(appVersion).equals(appVersionString) || !"".equals(blank)) {
+                throw new IOException("Unexpected journal header: [" + magic + ", " + version + ", " + appVersionString + ", " + blank + "]");
+            }
+            int lineCount = 0;
+            boolean isComplete = true;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readJournalLine(line)) {
+                    Log.w("Cache journal has a broken line, the rest is ignored: " + line);
+                    isComplete = false;
+                    break;
+                }
+                lineCount++;
+            }
+            redundantOpCount = lineCount - lruEntries.size();
+            return isComplete;
+        } finally {
+            FileIO.close(reader);
+        }
+    }
+
+    private boolean readJournalLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2 || !KEY_PATTERN.matcher(parts[1]).matches()) {
+            return false;
+        }
+        String key = parts[1];
+        if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            lruEntries.remove(key);
+            return true;
+        }
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            try {
+                entry.length = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            entry.isReadable = true;
+            entry.currentEditor = null;
+            return true;
+        } else if (DIRTY.equals(parts[0]) && parts.length == 2) {
+            entry.currentEditor = new Editor(entry);
+            return true;
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compute the size and drop the edits which were not completed before the crash. The crash between the rename of the dirty file and the
+     * CLEAN line leaves the clean file which the journal doesn't count, so the lengths are taken from the files and the clean file of the not
+     * readable entry is deleted.
+     */
+    private void processJournal() {
+        Iterator<Entry> iterator = lruEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.currentEditor != null) {
+                // The edit was not completed, the previous clean data is still valid
+                entry.currentEditor = null;
+                deleteIfExists(entry.getDirtyFile());
+            }
+            File clean = entry.getCleanFile();
+            if (entry.isReadable && clean.isFile()) {
+                entry.length = clean.length();
+                size += entry.length;
+            } else {
+                deleteIfExists(clean);
+                iterator.remove();
+            }
+        }
+        deleteIfExists(journalFileTmp);
+    }
+
+    /**
+     * Write the new compact journal without redundant operations and replace the current one.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+        Writer writer = newJournalWriter(journalFileTmp, false);
+        try {
+            writer.write(MAGIC + '\n' + VERSION + '\n' + appVersion + "\n\n");
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                } else {
+                    writer.write(CLEAN + ' ' + entry.key + ' ' + entry.length + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("Can't rename " + journalFileTmp + " to " + journalFile);
+        }
+        journalWriter = newJournalWriter(journalFile, true);
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w("Fail to delete cache file " + file);
+        }
+    }
+
+    // ==========================================================
+
+    private final class Entry {
+
+        private final String key;
+        private long length;
+        private boolean isReadable;
+        private Editor currentEditor;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        private File getCleanFile() {
+            return new File(directory, key);
+        }
+
+        private File getDirtyFile() {
+            return new File(directory, key + DIRTY_SUFFIX);
+        }
+
+    }
+
+    /**
+     * Edit of the cache entry. Write the data to getFile() or newOutputStream() and call commit() or abort().
+     */
+    public final class Editor {
+
+        private final Entry entry;
+        private boolean isDone;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * @return the file for write the new data of entry
+         */
+        public File getFile() {
+            return entry.getDirtyFile();
+        }
+
+        /**
+         * @return the stream for write the new data of entry. Caller must close it before commit.
+         * @throws IOException if the file can't be opened
+         */
+        public OutputStream newOutputStream() throws IOException {
+            return new FileOutputStream(entry.getDirtyFile());
+        }
+
+        /**
+         * Publish the written data. If the file was not written then the edit is aborted.
+         *
+         * @return true if the new data is published
+         * @throws IOException if the journal can't be written
+         */
+        public boolean commit() throws IOException {
+            if (isDone) {
+                throw new IllegalStateException("Editor is already completed");
+            }
+            isDone = true;
+            try {
+                return completeEdit(this, true);
+            } finally {
+                executeCleanupIfRequested();
+            }
+        }
+
+        /**
+         * Drop the written data, the previous data of entry is kept.
+         */
+        public void abort() {
+            if (isDone) {
+                return;
+            }
+            isDone = true;
+            try {
+                completeEdit(this, false);
+            } catch (IOException e) {
+                Log.e("Can't abort the cache edit " + entry.key, e);
+            }
+            executeCleanupIfRequested();
+        }
+
+    }
+
+}
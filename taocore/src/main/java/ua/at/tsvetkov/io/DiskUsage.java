@@ -0,0 +1,351 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Disk usage calculator. The tree is walked in parallel, each directory is a separate task. The totals of files of each directory are
+ * cached together with the directory modification time, so the repeated query lists and stats only the directories which are changed
+ * since the previous query.
+ * <p/>
+ * The directory modification time is changed when a file is created, deleted or renamed in it, but not when an existing file grows. Use
+ * of(dir, true) for the exact numbers if the files are appended in place. A directory which was modified within the time granularity of the
+ * file system at the moment of query is listed again on the next query. Symbolic links to directories are not followed.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class DiskUsage {
+
+    private static final long MTIME_GRANULARITY = 2000;
+    private static final long UNTRUSTED = -1;
+    private static final String NO_EXTENSION = "";
+    /**
+     * Max count of the cached directories, the least recently used ones are dropped
+     */
+    public static final int MAX_CACHED_DIRS = 4096;
+    private static final Map<String, DirTotals> CACHE = Collections.synchronizedMap(new LinkedHashMap<String, DirTotals>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirTotals> eldest) {
+            return size() > MAX_CACHED_DIRS;
+        }
+    });
+
+    private DiskUsage() {
+
+    }
+
+    /**
+     * Shared with DirIndex. A directory modified within the time granularity of the file system before the scan can be modified again
+     * with the same mtime, so its mtime is stored as untrusted and the directory is listed again on the next scan.
+     *
+     * @param mtime    modification time of the directory read before its listing
+     * @param scanTime time of the scan start
+     * @return the mtime to store with the listing
+     */
+    static long toTrustedMtime(long mtime, long scanTime) {
+        return scanTime - mtime < MTIME_GRANULARITY ? UNTRUSTED : mtime;
+    }
+
+    /**
+     * @param storedMtime mtime stored with the listing by toTrustedMtime()
+     * @param mtime       current modification time of the directory
+     * @return true if the stored listing of the directory is still valid
+     */
+    static boolean isUnchanged(long storedMtime, long mtime) {
+        return storedMtime != UNTRUSTED && storedMtime == mtime;
+    }
+
+    /**
+     * Calculate the disk usage of directory, using the cached totals of the not changed directories.
+     *
+     * @param dir the directory
+     * @return usage report
+     */
+    public static Report of(File dir) {
+        return of(dir, false);
+    }
+
+    /**
+     * Calculate the disk usage of directory.
+     *
+     * @param dir        the directory
+     * @param isFullScan true - list and stat all directories and files
+     * @return usage report
+     */
+    public static Report of(File dir, boolean isFullScan) {
+        if (dir == null || !dir.isDirectory()) {
+            Log.e("Directory is null or not exist.");
+            return new Report(dir);
+        }
+        long start = System.currentTimeMillis();
+        Walker walker = new Walker(isFullScan, start);
+        Report report = walker.walk(dir.getAbsoluteFile());
+        Log.v("Disk usage of " + dir + " calculated in " + (System.currentTimeMillis() - start) + " ms > " + report);
+        return report;
+    }
+
+    /**
+     * Drop all cached directory totals.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    private static String getExtension(String name) {
+        int pos = name.lastIndexOf('.');
+        if (pos <= 0 || pos == name.length() - 1) {
+            return NO_EXTENSION;
+        }
+        return name.substring(pos + 1).toLowerCase(Locale.US);
+    }
+
+    private static void add(Map<String, Long> target, Map<String, Long> source) {
+        for (Map.Entry<String, Long> entry : source.entrySet()) {
+            Long value = target.get(entry.getKey());
+            target.put(entry.getKey(), value == null ? entry.getValue() : value + entry.getValue());
+        }
+    }
+
+    /**
+     * Totals of the files directly in one directory
+     */
+    private static final class DirTotals {
+
+        private final long mtime;
+        private final String[] subdirNames;
+        private final Map<String, Long> bytesByExtension;
+        private final long bytes;
+        private final int fileCount;
+
+        private DirTotals(long mtime, String[] subdirNames, Map<String, Long> bytesByExtension, long bytes, int fileCount) {
+            this.mtime = mtime;
+            this.subdirNames = subdirNames;
+            this.bytesByExtension = bytesByExtension;
+            this.bytes = bytes;
+            this.fileCount = fileCount;
+        }
+
+    }
+
+    private static final class Walker {
+
+        private final boolean isFullScan;
+        private final long scanTime;
+        private final Map<String, DirTotals> totals = new ConcurrentHashMap<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger listed = new AtomicInteger();
+        private ExecutorService executor;
+
+        private Walker(boolean isFullScan, long scanTime) {
+            this.isFullScan = isFullScan;
+            this.scanTime = scanTime;
+        }
+
+        private Report walk(File root) {
+            executor = Executors.newFixedThreadPool(FileTree.DEFAULT_PARALLELISM);
+            try {
+                submit(root);
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.w("Disk usage calculation is interrupted " + root);
+            } finally {
+                executor.shutdownNow();
+            }
+            Log.v("Disk usage: listed " + listed + " of " + totals.size() + " directories");
+            return build(root);
+        }
+
+        private void submit(final File dir) {
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            process(dir);
+                        } finally {
+                            if (pending.decrementAndGet() == 0) {
+                                done.countDown();
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (pending.decrementAndGet() == 0) {
+                    done.countDown();
+                }
+            }
+        }
+
+        private void process(File dir) {
+            String path = dir.getPath();
+            long mtime = dir.lastModified();
+            DirTotals cached = CACHE.get(path);
+            DirTotals dirTotals;
+            if (!isFullScan && cached != null && isUnchanged(cached.mtime, mtime)) {
+                dirTotals = cached;
+            } else {
+                dirTotals = list(dir, mtime);
+                if (dirTotals == null) {
+                    CACHE.remove(path);
+                    return;
+                }
+                CACHE.put(path, dirTotals);
+            }
+            totals.put(path, dirTotals);
+            for (String name : dirTotals.subdirNames) {
+                submit(new File(dir, name));
+            }
+        }
+
+        private DirTotals list(File dir, long mtime) {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                Log.w("Can't list directory " + dir);
+                return null;
+            }
+            listed.incrementAndGet();
+            List<String> subdirs = new ArrayList<>();
+            Map<String, Long> byExtension = new HashMap<>();
+            long bytes = 0;
+            int count = 0;
+            for (File file : children) {
+                if (file.isDirectory()) {
+                    if (!FileTree.isSymlink(file)) {
+                        subdirs.add(file.getName());
+                    }
+                } else {
+                    long length = file.length();
+                    String extension = getExtension(file.getName());
+                    Long value = byExtension.get(extension);
+                    byExtension.put(extension, value == null ? length : value + length);
+                    bytes += length;
+                    count++;
+                }
+            }
+            return new DirTotals(toTrustedMtime(mtime, scanTime), subdirs.toArray(new String[subdirs.size()]), byExtension, bytes, count);
+        }
+
+        private Report build(File dir) {
+            Report report = new Report(dir);
+            DirTotals dirTotals = totals.get(dir.getPath());
+            if (dirTotals == null) {
+                return report;
+            }
+            report.bytes = dirTotals.bytes;
+            report.fileCount = dirTotals.fileCount;
+            add(report.bytesByExtension, dirTotals.bytesByExtension);
+            for (String name : dirTotals.subdirNames) {
+                Report subdir = build(new File(dir, name));
+                report.subdirs.add(subdir);
+                report.bytes += subdir.bytes;
+                report.fileCount += subdir.fileCount;
+                report.dirCount += subdir.dirCount + 1;
+                add(report.bytesByExtension, subdir.bytesByExtension);
+            }
+            return report;
+        }
+
+    }
+
+    /**
+     * Disk usage of the directory tree
+     */
+    public static final class Report {
+
+        private final File dir;
+        private final Map<String, Long> bytesByExtension = new HashMap<>();
+        private final List<Report> subdirs = new ArrayList<>();
+        private long bytes;
+        private int fileCount;
+        private int dirCount;
+
+        private Report(File dir) {
+            this.dir = dir;
+        }
+
+        public File getDir() {
+            return dir;
+        }
+
+        /**
+         * @return total length of all files in the tree
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        /**
+         * @return count of subdirs in the tree
+         */
+        public int getDirCount() {
+            return dirCount;
+        }
+
+        /**
+         * @return total length of files by lower case extension, files without extension are under the empty string key
+         */
+        public Map<String, Long> getBytesByExtension() {
+            return Collections.unmodifiableMap(bytesByExtension);
+        }
+
+        /**
+         * @return reports of the direct subdirs
+         */
+        public List<Report> getSubdirs() {
+            return Collections.unmodifiableList(subdirs);
+        }
+
+        @Override
+        public String toString() {
+            return dir + " [bytes: " + bytes + ", files: " + fileCount + ", dirs: " + dirCount + "]";
+        }
+
+    }
+
+}
@@ -0,0 +1,417 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Download queue with the bounded count of the download threads. The waiting downloads are ordered by priority and then by the enqueue order,
+ * not more than perHostLimit downloads from the same host are running at once. The requests for the url which is already queued or is being
+ * downloaded are coalesced: they share one download. The data is received into the private file next to the file of the first request (its
+ * name + DOWNLOAD_SUFFIX), on success the other requests receive a copy and the first remaining one gets the file moved, so the file of a
+ * canceled request is never touched. The complete listener is called in the chosen executor, or in the download thread if the executor is
+ * null.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class DownloadManager {
+
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_PER_HOST_LIMIT = 2;
+    /**
+     * Suffix of the private file which receives the data, FileInet adds its part and state suffixes to it
+     */
+    public static final String DOWNLOAD_SUFFIX = ".download";
+    private static final int KEEP_ALIVE_SEC = 30;
+
+    private static DownloadManager instance;
+
+    private final int threads;
+    private final int perHostLimit;
+    private final ThreadPoolExecutor executor;
+    private final TreeSet<Task> waiting = new TreeSet<>(new Comparator<Task>() {
+        @Override
+        public int compare(Task lhs, Task rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority > rhs.priority ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    });
+    private final Map<String, Task> tasks = new HashMap<>();
+    private final Map<String, Integer> hostRunning = new HashMap<>();
+    private int running;
+    private long sequence;
+
+    /**
+     * Create the download manager
+     *
+     * @param threads      max count of the simultaneous downloads
+     * @param perHostLimit max count of the simultaneous downloads from one host
+     */
+    public DownloadManager(int threads, int perHostLimit) {
+        if (threads < 1 || perHostLimit < 1) {
+            throw new IllegalArgumentException("Wrong threads " + threads + " or per host limit " + perHostLimit);
+        }
+        this.threads = threads;
+        this.perHostLimit = perHostLimit;
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger number = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Download #" + number.incrementAndGet());
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The shared download manager with DEFAULT_THREADS threads and DEFAULT_PER_HOST_LIMIT downloads per host
+     *
+     * @return the shared download manager
+     */
+    public static synchronized DownloadManager getInstance() {
+        if (instance == null) {
+            instance = new DownloadManager(DEFAULT_THREADS, DEFAULT_PER_HOST_LIMIT);
+        }
+        return instance;
+    }
+
+    /**
+     * Enqueue the download with the normal priority, the listener is called in the main thread. If the file exist it is rewritten.
+     *
+     * @param url      Remote URL of the file to download
+     * @param file     Local file where to store the data
+     * @param listener complete listener, possible to be null
+     * @return handle for cancel the download
+     */
+    public Download enqueue(String url, File file, FileInet.CompleteListener listener) {
+        return enqueue(url, file, true, PRIORITY_NORMAL, listener, IoExecutor.getMainThreadExecutor());
+    }
+
+    /**
+     * Enqueue the download. If the same url is already queued or is being downloaded, the request joins that download and raises its priority
+     * if the new one is higher.
+     *
+     * @param url              Remote URL of the file to download
+     * @param file             Local file where to store the data
+     * @param rewrite          If TRUE and file exist - rewrite the file. If FALSE and file exist and his length > 0 - not download and
+     *                         complete with success.
+     * @param priority         download priority, the higher is started earlier, for example PRIORITY_HIGH
+     * @param listener         complete listener, possible to be null. It is not called for the canceled download.
+     * @param callbackExecutor executor for the listener call, for example IoExecutor.getMainThreadExecutor(). If null, the listener is called in
+     *                         the download thread.
+     * @return handle for cancel the download
+     */
+    public Download enqueue(String url, File file, boolean rewrite, int priority, FileInet.CompleteListener listener, Executor callbackExecutor) {
+        Download download = new Download(url, file, listener, callbackExecutor);
+        if (!rewrite && file.exists() && file.length() > 0) {
+            Log.w("File exist: " + file);
+            download.deliver(true);
+            return download;
+        }
+        synchronized (this) {
+            Task task = tasks.get(url);
+            if (task == null) {
+                task = new Task(url, file, priority, sequence++);
+                tasks.put(url, task);
+                waiting.add(task);
+            } else if (task.isCanceled.get()) {
+                // The canceled download is still running, the new one is started after it to not write the same file at once
+                if (task.successor == null || task.successor.isCanceled.get()) {
+                    task.successor = new Task(url, file, priority, sequence++);
+                }
+                task = task.successor;
+            }
+            if (priority > task.priority) {
+                boolean isWaiting = waiting.remove(task);
+                task.priority = priority;
+                if (isWaiting) {
+                    waiting.add(task);
+                }
+            }
+            download.task = task;
+            task.downloads.add(download);
+            schedule();
+        }
+        return download;
+    }
+
+    /**
+     * Cancel all the queued and running downloads
+     */
+    public void cancelAll() {
+        List<Download> downloads = new ArrayList<>();
+        synchronized (this) {
+            for (Task task : tasks.values()) {
+                downloads.addAll(task.downloads);
+            }
+        }
+        for (Download download : downloads) {
+            download.cancel();
+        }
+    }
+
+    /**
+     * Returns the count of the downloads which are waiting for the free thread
+     *
+     * @return count of the waiting downloads
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Returns the count of the running downloads
+     *
+     * @return count of the running downloads
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    private void schedule() {
+        Iterator<Task> iterator = waiting.iterator();
+        while (running < threads && iterator.hasNext()) {
+            final Task task = iterator.next();
+            Integer count = hostRunning.get(task.host);
+            if (count != null && count >= perHostLimit) {
+                continue;
+            }
+            iterator.remove();
+            hostRunning.put(task.host, count == null ? 1 : count + 1);
+            running++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean result = false;
+                    try {
+                        result = FileInet.download(task.url, task.target, task.isCanceled);
+                    } finally {
+                        finish(task, result);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(Task task, boolean result) {
+        List<Download> downloads;
+        synchronized (this) {
+            tasks.remove(task.url);
+            Task successor = task.successor;
+            if (successor != null && !successor.isCanceled.get()) {
+                tasks.put(successor.url, successor);
+                waiting.add(successor);
+            }
+            int count = hostRunning.get(task.host);
+            if (count > 1) {
+                hostRunning.put(task.host, count - 1);
+            } else {
+                hostRunning.remove(task.host);
+            }
+            running--;
+            schedule();
+            downloads = new ArrayList<>(task.downloads);
+            task.downloads.clear();
+        }
+        if (!result) {
+            for (Download download : downloads) {
+                download.deliver(false);
+            }
+            return;
+        }
+        File target = task.target;
+        for (int i = 1; i < downloads.size(); i++) {
+            Download download = downloads.get(i);
+            download.deliver(FileIO.copy(target, download.file) >= 0);
+        }
+        if (downloads.isEmpty()) {
+            // All requests are canceled after the last byte
+            if (!target.delete()) {
+                Log.w("Can't delete the canceled download > " + target);
+            }
+        } else {
+            Download first = downloads.get(0);
+            first.deliver(move(target, first.file));
+        }
+    }
+
+    private static boolean move(File src, File dst) {
+        if (src.renameTo(dst)) {
+            return true;
+        }
+        boolean isSuccess = FileIO.copy(src, dst) >= 0;
+        if (!src.delete()) {
+            Log.w("Can't delete the downloaded file > " + src);
+        }
+        return isSuccess;
+    }
+
+    private synchronized void cancel(Download download) {
+        Task task = download.task;
+        if (task == null || !task.downloads.remove(download)) {
+            return;
+        }
+        if (task.downloads.isEmpty()) {
+            task.isCanceled.set(true);
+            if (waiting.remove(task)) {
+                tasks.remove(task.url);
+            }
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url.replace(" ", "%20")).getHost();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    private static final class Task {
+
+        private final String url;
+        private final String host;
+        private final File target;
+        private final long sequence;
+        private final AtomicBoolean isCanceled = new AtomicBoolean();
+        private final List<Download> downloads = new ArrayList<>();
+        private int priority;
+        private Task successor;
+
+        private Task(String url, File file, int priority, long sequence) {
+            this.url = url;
+            this.host = getHost(url);
+            this.target = new File(file.getPath() + DOWNLOAD_SUFFIX);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+    }
+
+    /**
+     * Handle of the enqueued download
+     */
+    public final class Download {
+
+        private final String url;
+        private final File file;
+        private final FileInet.CompleteListener listener;
+        private final Executor callbackExecutor;
+        private final AtomicBoolean isCanceled = new AtomicBoolean();
+        private volatile boolean isDone;
+        private Task task;
+
+        private Download(String url, File file, FileInet.CompleteListener listener, Executor callbackExecutor) {
+            this.url = url;
+            this.file = file;
+            this.listener = listener;
+            this.callbackExecutor = callbackExecutor;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Cancel the download. The shared download is stopped only when all the coalesced requests are canceled, the partially downloaded file
+         * is deleted. The listener is not called for the canceled download.
+         */
+        public void cancel() {
+            if (!isDone && isCanceled.compareAndSet(false, true)) {
+                DownloadManager.this.cancel(this);
+            }
+        }
+
+        public boolean isCanceled() {
+            return isCanceled.get();
+        }
+
+        /**
+         * Returns true if the download is completed with success or failure, the listener is called or is going to be called
+         *
+         * @return true if completed
+         */
+        public boolean isDone() {
+            return isDone;
+        }
+
+        private void deliver(final boolean result) {
+            if (isCanceled.get()) {
+                return;
+            }
+            isDone = true;
+            if (listener == null) {
+                return;
+            }
+            Runnable delivery = new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCanceled.get()) {
+                        listener.complete(url, result);
+                    }
+                }
+            };
+            if (callbackExecutor == null) {
+                delivery.run();
+            } else {
+                callbackExecutor.execute(delivery);
+            }
+        }
+
+    }
+
+}
@@ -26,17 +26,32 @@
 package ua.at.tsvetkov.io;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import ua.at.tsvetkov.application.AppConfig;
+import ua.at.tsvetkov.util.Const;
 import ua.at.tsvetkov.util.Log;
 
 /**
@@ -46,8 +61,16 @@ import ua.at.tsvetkov.util.Log;
  */
 public final class FileIO {
 
+    public static final String CHECKSUM_MD5 = Hasher.MD5;
+    public static final String CHECKSUM_SHA_256 = Hasher.SHA_256;
+    public static final String CHECKSUM_CRC32 = Hasher.CRC32;
+
     private static final String CACHE = "cache/";
     private static final int BUFFER_SIZE = 8192;
+    private static final long TRANSFER_SIZE = 8 * Const.MB;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final AtomicWriter.GroupCommit GROUP_COMMIT = new AtomicWriter.GroupCommit();
 
     private FileIO() {
 
@@ -58,49 +81,18 @@ public final class FileIO {
      *
      * @param srcFileName source file path
      * @param dstFileName destination file path
-     * @return true if success
+     * @return count of copied bytes or -1 if failed
      */
-    public static boolean copy(String srcFileName, String dstFileName) {
+    public static long copy(String srcFileName, String dstFileName) {
         if (srcFileName == null || srcFileName.length() == 0) {
             Log.e("Source file name is empty.");
-            return false;
+            return -1;
         }
         if (dstFileName == null) {
             Log.e("Destination file name is empty.");
-            return false;
+            return -1;
         }
-        InputStream in = null;
-        OutputStream out = null;
-        try {
-            in = new BufferedInputStream(new FileInputStream(srcFileName));
-            out = new BufferedOutputStream(new FileOutputStream(dstFileName));
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int count;
-            while ((count = in.read(buffer)) > 0) {
-                out.write(buffer, 0, count);
-            }
-            out.flush();
-        } catch (IOException e) {
-            Log.e("Can't copy file " + srcFileName + " to " + dstFileName, e);
-            return false;
-        } finally {
-            try {
-                if (in != null)
-                    in.close();
-            } catch (IOException e) {
-                Log.e(e);
-                return false;
-            }
-            try {
-                if (out != null)
-                    out.close();
-            } catch (IOException e) {
-                Log.e(e);
-                return false;
-            }
-        }
-        Log.v("Success copied file " + srcFileName + " to " + dstFileName);
-        return true;
+        return copy(new File(srcFileName), new File(dstFileName), false, null);
     }
 
     /**
@@ -108,18 +100,14 @@ public final class FileIO {
      *
      * @param srcFileName source file name
      * @param dstFile     destination file
-     * @return true if success
+     * @return count of copied bytes or -1 if failed
      */
-    public static boolean copy(String srcFileName, File dstFile) {
+    public static long copy(String srcFileName, File dstFile) {
         if (srcFileName == null || srcFileName.length() == 0) {
             Log.e("Source file name is empty.");
-            return false;
+            return -1;
         }
-        if (dstFile == null) {
-            Log.e("Destination file is null.");
-            return false;
-        }
-        return copy(srcFileName, dstFile.getAbsoluteFile());
+        return copy(new File(srcFileName), dstFile, false, null);
     }
 
     /**
@@ -127,18 +115,14 @@ public final class FileIO {
      *
      * @param srcFile     source file
      * @param dstFileName destination file name
-     * @return true if success
+     * @return count of copied bytes or -1 if failed
      */
-    public static boolean copy(File srcFile, String dstFileName) {
-        if (srcFile == null || !srcFile.exists()) {
-            Log.e("Source file is null or not exist.");
-            return false;
-        }
+    public static long copy(File srcFile, String dstFileName) {
         if (dstFileName == null) {
             Log.e("Destination file name is empty.");
-            return false;
+            return -1;
         }
-        return copy(srcFile.getAbsoluteFile(), dstFileName);
+        return copy(srcFile, new File(dstFileName), false, null);
     }
 
     /**
@@ -146,20 +130,444 @@ public final class FileIO {
      *
      * @param srcFile source file
      * @param dstFile destination file
-     * @return true if success
+     * @return count of copied bytes or -1 if failed
+     */
+    public static long copy(File srcFile, File dstFile) {
+        return copy(srcFile, dstFile, false, null);
+    }
+
+    /**
+     * Copy file from source to destination with the file channels. The data is transferred by FileChannel.transferTo() in chunks of
+     * TRANSFER_SIZE bytes, if the channel can't transfer the data directly then the rest is copied through a buffer. Canceled copy removes
+     * the partially written destination file.
+     *
+     * @param srcFile  source file
+     * @param dstFile  destination file
+     * @param isSync   true - flush the destination file to the storage device (fsync) before return
+     * @param listener progress listener, possible to be null. Return false from it to cancel the copy.
+     * @return count of copied bytes or -1 if failed or canceled
      */
-    public static boolean copy(File srcFile, File dstFile) {
-        if (srcFile == null || !srcFile.exists()) {
+    public static long copy(File srcFile, File dstFile, boolean isSync, ProgressListener listener) {
+        if (srcFile == null || !srcFile.isFile()) {
             Log.e("Source file is null or not exist.");
-            return false;
+            return -1;
+        }
+        if (dstFile == null) {
+            Log.e("Destination file is null.");
+            return -1;
+        }
+        if (isSameFile(srcFile, dstFile)) {
+            Log.e("Source and destination are the same file " + srcFile);
+            return -1;
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        long copied;
+        try {
+            in = new FileInputStream(srcFile);
+            out = new FileOutputStream(dstFile);
+            copied = transfer(in.getChannel(), out.getChannel(), listener);
+            if (copied >= 0 && isSync) {
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.e("Can't copy file " + srcFile + " to " + dstFile, e);
+            copied = -1;
+        } finally {
+            if (!close(in)) {
+                copied = -1;
+            }
+            if (!close(out)) {
+                copied = -1;
+            }
+        }
+        if (copied < 0) {
+            // The destination is not touched if it is not opened, it can be a good file or a directory
+            if (out != null && dstFile.exists() && !dstFile.delete()) {
+                Log.w("Fail to delete the partially copied file " + dstFile);
+            }
+            return -1;
+        }
+        Log.v("Success copied file " + srcFile + " to " + dstFile);
+        return copied;
+    }
+
+    /**
+     * Copy file and calculate its checksum in the same pass.
+     *
+     * @param srcFileName source file path
+     * @param dstFileName destination file path
+     * @param algorithm   CHECKSUM_MD5, CHECKSUM_SHA_256 or CHECKSUM_CRC32
+     * @return hex string of the checksum or null if failed
+     */
+    public static String copyVerified(String srcFileName, String dstFileName, String algorithm) {
+        if (srcFileName == null || srcFileName.length() == 0) {
+            Log.e("Source file name is empty.");
+            return null;
+        }
+        if (dstFileName == null) {
+            Log.e("Destination file name is empty.");
+            return null;
+        }
+        return copyVerified(new File(srcFileName), new File(dstFileName), algorithm, null, false, null);
+    }
+
+    /**
+     * Copy file and check its checksum in the same pass. The destination file is deleted if the checksum is not equal to expected.
+     *
+     * @param srcFileName source file path
+     * @param dstFileName destination file path
+     * @param algorithm   CHECKSUM_MD5, CHECKSUM_SHA_256 or CHECKSUM_CRC32
+     * @param expected    expected hex string of the checksum, case insensitive
+     * @return hex string of the checksum or null if failed or not verified
+     */
+    public static String copyVerified(String srcFileName, String dstFileName, String algorithm, String expected) {
+        if (srcFileName == null || srcFileName.length() == 0) {
+            Log.e("Source file name is empty.");
+            return null;
+        }
+        if (dstFileName == null) {
+            Log.e("Destination file name is empty.");
+            return null;
+        }
+        return copyVerified(new File(srcFileName), new File(dstFileName), algorithm, expected, false, null);
+    }
+
+    /**
+     * Copy file from source to destination passing the data through the checksum, so the file is read only once. Failed, canceled or not
+     * verified copy removes the destination file.
+     *
+     * @param srcFile   source file
+     * @param dstFile   destination file
+     * @param algorithm CHECKSUM_MD5, CHECKSUM_SHA_256, CHECKSUM_CRC32 or other MessageDigest algorithm
+     * @param expected  expected hex string of the checksum, case insensitive, or null to skip the verification
+     * @param isSync    true - flush the destination file to the storage device (fsync) before return
+     * @param listener  progress listener, possible to be null. Return false from it to cancel the copy.
+     * @return hex string of the checksum or null if failed, canceled or not verified
+     */
+    public static String copyVerified(File srcFile, File dstFile, String algorithm, String expected, boolean isSync, ProgressListener listener) {
+        if (srcFile == null || !srcFile.isFile()) {
+            Log.e("Source file is null or not exist.");
+            return null;
         }
         if (dstFile == null) {
             Log.e("Destination file is null.");
+            return null;
+        }
+        if (isSameFile(srcFile, dstFile)) {
+            Log.e("Source and destination are the same file " + srcFile);
+            return null;
+        }
+        Hasher hasher = Hasher.create(algorithm);
+        if (hasher == null) {
+            Log.e("Unsupported checksum algorithm " + algorithm);
+            return null;
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        byte[] bytes = BufferPool.acquire(BufferPool.MAX_SIZE);
+        String checksum = null;
+        try {
+            in = new FileInputStream(srcFile);
+            out = new FileOutputStream(dstFile);
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long total = src.size();
+            long copied = 0;
+            int count;
+            while ((count = src.read(buffer)) != -1) {
+                hasher.update(bytes, 0, count);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    dst.write(buffer);
+                }
+                buffer.clear();
+                copied += count;
+                if (listener != null && !listener.onProgress(copied, total)) {
+                    throw new IOException("Copy is canceled");
+                }
+            }
+            if (isSync) {
+                out.getFD().sync();
+            }
+            checksum = hasher.getHexString();
+        } catch (IOException e) {
+            Log.e("Can't copy file " + srcFile + " to " + dstFile, e);
+        } finally {
+            BufferPool.release(bytes);
+            if (!close(in)) {
+                checksum = null;
+            }
+            if (!close(out)) {
+                checksum = null;
+            }
+        }
+        if (checksum != null && expected != null && !expected.equalsIgnoreCase(checksum)) {
+            Log.e("Checksum mismatch of " + dstFile + ", expected " + expected + ", actual " + checksum);
+            checksum = null;
+        }
+        if (checksum == null) {
+            if (out != null && dstFile.exists() && !dstFile.delete()) {
+                Log.w("Fail to delete the partially copied file " + dstFile);
+            }
+            return null;
+        }
+        Log.v("Success copied file " + srcFile + " to " + dstFile + ", " + algorithm + ": " + checksum);
+        return checksum;
+    }
+
+    /**
+     * @return true if both paths resolve to the same file, the canonical paths are compared (absolute ones if they can't be resolved)
+     */
+    static boolean isSameFile(File first, File second) {
+        try {
+            return first.getCanonicalPath().equals(second.getCanonicalPath());
+        } catch (IOException e) {
+            return first.getAbsolutePath().equals(second.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Transfer all data from the current position of source channel to the destination channel.
+     *
+     * @param src      source channel
+     * @param dst      destination channel
+     * @param listener progress listener, possible to be null
+     * @return count of transferred bytes or -1 if canceled
+     * @throws IOException if an I/O error occurs
+     */
+    static long transfer(FileChannel src, FileChannel dst, ProgressListener listener) throws IOException {
+        long size = src.size();
+        long position = src.position();
+        long total = size - position;
+        long copied = 0;
+        while (position < size) {
+            long count = src.transferTo(position, Math.min(TRANSFER_SIZE, size - position), dst);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            copied += count;
+            if (listener != null && !listener.onProgress(copied, total)) {
+                Log.w("Copy is canceled");
+                return -1;
+            }
+        }
+        if (position < size) {
+            // The channel can't transfer directly (some file systems), copy the rest through a buffer
+            src.position(position);
+            ByteBuffer buffer = BufferPool.acquireDirect(BUFFER_SIZE);
+            try {
+                while (src.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        copied += dst.write(buffer);
+                    }
+                    buffer.clear();
+                    if (listener != null && !listener.onProgress(copied, total)) {
+                        Log.w("Copy is canceled");
+                        return -1;
+                    }
+                }
+            } finally {
+                BufferPool.releaseDirect(buffer);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Read the file in one loop into the buffer allocated for the size of file. Files which report zero size (like /proc entries) are read
+     * by chunks.
+     *
+     * @return the buffer ready for get or null if failed
+     */
+    private static ByteBuffer read(String fileName, boolean isDirect) {
+        if (fileName == null || fileName.length() == 0) {
+            Log.e("File name is empty.");
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(fileName);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > MAX_ARRAY_SIZE) {
+                Log.e("File is too large for reading into memory " + fileName + ", size: " + size);
+                return null;
+            }
+            ByteBuffer buffer = size == 0 ? readUnsized(channel) : allocate((int) size, isDirect);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // the file is read up to the size at opening
+            }
+            buffer.flip();
+            if (isDirect && !buffer.isDirect()) {
+                buffer = allocate(buffer.remaining(), true).put(buffer);
+                buffer.flip();
+            }
+            return buffer;
+        } catch (IOException e) {
+            Log.e("Can't read file " + fileName, e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private static ByteBuffer readUnsized(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (channel.read(buffer) != -1) {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_ARRAY_SIZE) {
+                    throw new IOException("File is too large for reading into memory");
+                }
+                ByteBuffer larger = ByteBuffer.allocate((int) Math.min(MAX_ARRAY_SIZE, 2L * buffer.capacity()));
+                buffer.flip();
+                buffer = larger.put(buffer);
+            }
+        }
+        buffer.limit(buffer.position());
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int size, boolean isDirect) {
+        return isDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static String readText(String fileName, Charset charset) {
+        if (fileName == null || fileName.length() == 0) {
+            Log.e("File name is empty.");
+            return null;
+        }
+        CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        FileInputStream in = null;
+        ByteBuffer bytes = BufferPool.acquireDirect(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.wrap(new char[BUFFER_SIZE]);
+        try {
+            in = new FileInputStream(fileName);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > MAX_ARRAY_SIZE) {
+                Log.e("File is too large for reading into memory " + fileName + ", size: " + size);
+                return null;
+            }
+            long capacity = (long) (size * decoder.averageCharsPerByte());
+            if (capacity * 2 > getAvailableHeap()) {
+                Log.e("Not enough memory for the text of " + fileName + ", size: " + size);
+                return null;
+            }
+            StringBuilder text = new StringBuilder((int) Math.min(capacity, MAX_ARRAY_SIZE));
+            boolean isEnd = false;
+            while (!isEnd) {
+                isEnd = channel.read(bytes) == -1;
+                bytes.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, isEnd);
+                    drain(chars, text);
+                } while (result.isOverflow());
+                bytes.compact();
+            }
+            while (decoder.flush(chars).isOverflow()) {
+                drain(chars, text);
+            }
+            drain(chars, text);
+            return text.toString();
+        } catch (IOException e) {
+            Log.e("Can't read file " + fileName, e);
+            return null;
+        } finally {
+            BufferPool.releaseDirect(bytes);
+            close(in);
+        }
+    }
+
+    /**
+     * @return count of bytes which the heap can still grow by
+     */
+    private static long getAvailableHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    private static void drain(CharBuffer chars, StringBuilder text) {
+        chars.flip();
+        text.append(chars.array(), chars.arrayOffset(), chars.remaining());
+        chars.clear();
+    }
+
+    /**
+     * Write the data buffer or, if it is null, the text encoded by chunks. All write methods are routed here.
+     */
+    private static boolean write(String fileName, ByteBuffer data, CharBuffer text, Charset charset) {
+        if (fileName == null || fileName.length() == 0) {
+            Log.e("File name is empty.");
             return false;
         }
-        return copy(srcFile.getAbsoluteFile(), dstFile.getAbsoluteFile());
+        FileOutputStream out = null;
+        ByteBuffer bytes = null;
+        boolean isSuccess = false;
+        try {
+            out = new FileOutputStream(fileName);
+            FileChannel channel = out.getChannel();
+            if (data != null) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } else {
+                CharsetEncoder encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                bytes = BufferPool.acquireDirect(BUFFER_SIZE);
+                CoderResult result;
+                do {
+                    result = encoder.encode(text, bytes, true);
+                    writeFully(channel, bytes);
+                } while (result.isOverflow());
+                while (encoder.flush(bytes).isOverflow()) {
+                    writeFully(channel, bytes);
+                }
+                writeFully(channel, bytes);
+            }
+            isSuccess = true;
+        } catch (IOException e) {
+            Log.e("Can't write file " + fileName, e);
+        } finally {
+            BufferPool.releaseDirect(bytes);
+            if (!close(out)) {
+                isSuccess = false;
+            }
+        }
+        return isSuccess;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
     }
 
+    /**
+     * Close the stream and log the error if present.
+     *
+     * @param closeable a stream or a channel
+     * @return true if success
+     */
+    static boolean close(Closeable closeable) {
+        if (closeable == null) {
+            return true;
+        }
+        try {
+            closeable.close();
+            return true;
+        } catch (IOException e) {
+            Log.e(e);
+            return false;
+        }
+    }
     /**
      * Copy file from assets source to destination
      *
@@ -169,38 +577,106 @@ public final class FileIO {
      * @return true if success
      */
     public static boolean copyAsset(Context context, String assetsFileName, String dstFileName) {
-        BufferedInputStream in = null;
-        BufferedOutputStream out = null;
+        if (dstFileName == null) {
+            Log.e("Destination file name is empty.");
+            return false;
+        }
         try {
-            in = new BufferedInputStream(context.getAssets().open(assetsFileName));
-            out = new BufferedOutputStream(new FileOutputStream(dstFileName));
-            byte[] buf = new byte[BUFFER_SIZE];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-            out.flush();
+            copyAsset(context.getAssets(), assetsFileName, new File(dstFileName));
         } catch (IOException e) {
             Log.e("Can't copy file from assets " + assetsFileName + " to " + dstFileName, e);
             return false;
-        } finally {
+        }
+        Log.v("Success copy file " + assetsFileName + " to " + dstFileName);
+        return true;
+    }
+
+    /**
+     * Copy file from assets source to destination. The uncompressed asset is transferred by the file channel directly from the apk, the
+     * compressed one is copied through a buffer.
+     *
+     * @param assets         the asset manager
+     * @param assetsFileName assets file name
+     * @param dstFile        destination of copy
+     * @return count of copied bytes
+     * @throws IOException if failed
+     */
+    static long copyAsset(AssetManager assets, String assetsFileName, File dstFile) throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = assets.openFd(assetsFileName);
+        } catch (FileNotFoundException e) {
+            // The asset is compressed in apk, it can be read only as a stream
+        }
+        if (afd != null) {
+            FileInputStream in = null;
+            FileOutputStream out = null;
             try {
-                if (in != null)
-                    in.close();
-            } catch (IOException e) {
-                Log.e(e);
-                return false;
+                in = afd.createInputStream();
+                out = new FileOutputStream(dstFile);
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                long start = afd.getStartOffset();
+                long length = afd.getLength();
+                long position = 0;
+                while (position < length) {
+                    long count = src.transferTo(start + position, Math.min(TRANSFER_SIZE, length - position), dst);
+                    if (count <= 0) {
+                        throw new IOException("Can't transfer asset " + assetsFileName + " at " + position);
+                    }
+                    position += count;
+                }
+                FileOutputStream closed = out;
+                out = null;
+                if (!close(closed)) {
+                    throw new IOException("Can't close " + dstFile);
+                }
+                return position;
+            } finally {
+                close(in);
+                close(out);
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    Log.e(e);
+                }
             }
-            try {
-                if (out != null)
-                    out.close();
-            } catch (IOException e) {
-                Log.e(e);
-                return false;
+        }
+        InputStream in = null;
+        FileOutputStream out = null;
+        byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+        try {
+            in = assets.open(assetsFileName);
+            out = new FileOutputStream(dstFile);
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                total += count;
+            }
+            FileOutputStream closed = out;
+            out = null;
+            if (!close(closed)) {
+                throw new IOException("Can't close " + dstFile);
             }
+            return total;
+        } finally {
+            BufferPool.release(buffer);
+            close(in);
+            close(out);
         }
-        Log.v("Success copy file " + assetsFileName + " to " + dstFileName);
-        return true;
+    }
+
+    /**
+     * Copy directory from assets to destination in parallel. Only changed assets are copied, see AssetTree.
+     *
+     * @param context  base app context
+     * @param assetDir assets directory, empty string for the assets root
+     * @param dstDir   destination directory
+     * @return result of operation
+     */
+    public static FileTree.Result copyAssetTree(Context context, String assetDir, String dstDir) {
+        return AssetTree.copy(context, assetDir, new File(dstDir));
     }
 
     /**
@@ -223,6 +699,311 @@ public final class FileIO {
         return copyAsset(context, assetsFileName, dstFile.getAbsolutePath());
     }
 
+    /**
+     * Atomic and durable write the data to the file. See AtomicWriter.
+     *
+     * @param fileName path to file
+     * @param data     the data
+     * @return true if success
+     */
+    public static boolean writeAtomic(String fileName, byte[] data) {
+        return writeAtomic(fileName, data, false);
+    }
+
+    /**
+     * Atomic and durable write the data to the file. See AtomicWriter.
+     *
+     * @param fileName      path to file
+     * @param data          the data
+     * @param isGroupCommit true - the write is joined with other writes issued within a few milliseconds, the batch is flushed together.
+     *                      Blocks until the batch is durable.
+     * @return true if success
+     */
+    public static boolean writeAtomic(String fileName, byte[] data, boolean isGroupCommit) {
+        if (fileName == null || fileName.length() == 0) {
+            Log.e("File name is empty.");
+            return false;
+        }
+        if (isGroupCommit) {
+            return GROUP_COMMIT.write(new File(fileName), data);
+        }
+        return AtomicWriter.write(new File(fileName), data);
+    }
+
+    /**
+     * Atomic and durable write the stream data to the file. The stream is not closed. See AtomicWriter.
+     *
+     * @param fileName path to file
+     * @param in       the data stream
+     * @return true if success
+     */
+    public static boolean writeAtomic(String fileName, InputStream in) {
+        if (fileName == null || fileName.length() == 0) {
+            Log.e("File name is empty.");
+            return false;
+        }
+        return AtomicWriter.write(new File(fileName), in);
+    }
+
+    /**
+     * Read the whole file into a byte array of the file size.
+     *
+     * @param fileName path to file
+     * @return the file content or null if failed
+     */
+    public static byte[] readAll(String fileName) {
+        ByteBuffer buffer = read(fileName, false);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] array = buffer.array();
+        return buffer.limit() == array.length ? array : Arrays.copyOf(array, buffer.limit());
+    }
+
+    /**
+     * Read the whole file into a direct buffer of the file size, for passing to a channel or native code without a copy.
+     *
+     * @param fileName path to file
+     * @return the buffer ready for get (position 0, limit at the end of data) or null if failed
+     */
+    public static ByteBuffer readAllDirect(String fileName) {
+        return read(fileName, true);
+    }
+
+    /**
+     * Read the whole file as UTF-8 text.
+     *
+     * @param fileName path to file
+     * @return the text or null if failed
+     */
+    public static String readText(String fileName) {
+        return readText(fileName, UTF_8);
+    }
+
+    /**
+     * Read the whole file as text. The bytes are decoded by chunks while reading, the malformed input is replaced.
+     *
+     * @param fileName    path to file
+     * @param charsetName name of the charset
+     * @return the text or null if failed
+     */
+    public static String readText(String fileName, String charsetName) {
+        if (charsetName == null) {
+            Log.e("Charset name is null.");
+            return null;
+        }
+        Charset charset;
+        try {
+            charset = Charset.forName(charsetName);
+        } catch (IllegalCharsetNameException e) {
+            Log.e("Illegal charset name " + charsetName, e);
+            return null;
+        } catch (UnsupportedCharsetException e) {
+            Log.e("Unsupported charset " + charsetName, e);
+            return null;
+        }
+        return readText(fileName, charset);
+    }
+
+    /**
+     * Open the UTF-8 text file for reading line by line without creating a String per line. See LineReader.
+     *
+     * @param fileName path to file
+     * @return the reader, must be closed, or null if failed
+     */
+    public static LineReader openLines(String fileName) {
+        try {
+            return LineReader.open(new File(fileName));
+        } catch (IOException e) {
+            Log.e("Can't open file " + fileName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the data to the file, the existing file is truncated. Use writeAtomic() if the file must not be lost on crash.
+     *
+     * @param fileName path to file
+     * @param data     the data
+     * @return true if success
+     */
+    public static boolean write(String fileName, byte[] data) {
+        if (data == null) {
+            Log.e("Data is null.");
+            return false;
+        }
+        return write(fileName, ByteBuffer.wrap(data), null, null);
+    }
+
+    /**
+     * Write the remaining bytes of the buffer to the file, the existing file is truncated. The buffer position is moved to the limit.
+     *
+     * @param fileName path to file
+     * @param data     the data
+     * @return true if success
+     */
+    public static boolean write(String fileName, ByteBuffer data) {
+        if (data == null) {
+            Log.e("Data is null.");
+            return false;
+        }
+        return write(fileName, data, null, null);
+    }
+
+    /**
+     * Write the text to the file in UTF-8, the existing file is truncated.
+     *
+     * @param fileName path to file
+     * @param text     the text
+     * @return true if success
+     */
+    public static boolean writeText(String fileName, CharSequence text) {
+        return writeText(fileName, text, UTF_8.name());
+    }
+
+    /**
+     * Write the text to the file, the existing file is truncated. The text is encoded by chunks while writing, the unmappable characters
+     * are replaced.
+     *
+     * @param fileName    path to file
+     * @param text        the text
+     * @param charsetName name of the charset
+     * @return true if success
+     */
+    public static boolean writeText(String fileName, CharSequence text, String charsetName) {
+        if (text == null) {
+            Log.e("Text is null.");
+            return false;
+        }
+        return write(fileName, null, CharBuffer.wrap(text), Charset.forName(charsetName));
+    }
+
+    /**
+     * Map the whole file into memory for read. Close the returned MappedFile to unmap it.
+     *
+     * @param fileName path to file
+     * @return mapped file or null if failed
+     */
+    public static MappedFile map(String fileName) {
+        return map(fileName, FileChannel.MapMode.READ_ONLY, 0, -1);
+    }
+
+    /**
+     * Map the region of file into memory. Close the returned MappedFile to unmap it.
+     *
+     * @param fileName path to file
+     * @param mode     READ_ONLY, READ_WRITE or PRIVATE (copy on write, the file must be writable)
+     * @param offset   offset of region in the file
+     * @param length   length of region, or -1 for the rest of file
+     * @return mapped file or null if failed
+     */
+    public static MappedFile map(String fileName, FileChannel.MapMode mode, long offset, long length) {
+        if (fileName == null || fileName.length() == 0) {
+            Log.e("File name is empty.");
+            return null;
+        }
+        try {
+            return MappedFile.open(new File(fileName), mode, offset, length);
+        } catch (IOException e) {
+            Log.e("Can't map file " + fileName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Copy the large file by chunks in parallel threads. The interrupted copy is resumed on the next call. See ChunkedFile.
+     *
+     * @param srcFileName source file path
+     * @param dstFileName destination file path
+     * @param listener    progress listener, called from the worker threads, possible to be null
+     * @return size of copied file or -1 if failed or canceled
+     */
+    public static long copyChunked(String srcFileName, String dstFileName, ProgressListener listener) {
+        if (srcFileName == null || srcFileName.length() == 0) {
+            Log.e("Source file name is empty.");
+            return -1;
+        }
+        if (dstFileName == null) {
+            Log.e("Destination file name is empty.");
+            return -1;
+        }
+        return ChunkedFile.copy(new File(srcFileName), new File(dstFileName), ChunkedFile.DEFAULT_CHUNK_SIZE, FileTree.DEFAULT_PARALLELISM,
+                listener);
+    }
+
+    /**
+     * Split the file into chunk files with the manifest of checksums in the directory. See ChunkedFile.
+     *
+     * @param srcFileName source file path
+     * @param dstDir      destination directory
+     * @param chunkSize   size of chunk in bytes
+     * @return true if success
+     */
+    public static boolean split(String srcFileName, String dstDir, long chunkSize) {
+        if (srcFileName == null || srcFileName.length() == 0) {
+            Log.e("Source file name is empty.");
+            return false;
+        }
+        if (dstDir == null) {
+            Log.e("Destination directory name is empty.");
+            return false;
+        }
+        return ChunkedFile.split(new File(srcFileName), new File(dstDir), chunkSize, FileTree.DEFAULT_PARALLELISM) != null;
+    }
+
+    /**
+     * Merge the chunk files into one file verifying their checksums. See ChunkedFile.
+     *
+     * @param manifestFileName manifest file path, written by split()
+     * @param dstFileName      destination file path
+     * @return size of merged file or -1 if failed
+     */
+    public static long merge(String manifestFileName, String dstFileName) {
+        if (manifestFileName == null || manifestFileName.length() == 0) {
+            Log.e("Manifest file name is empty.");
+            return -1;
+        }
+        if (dstFileName == null) {
+            Log.e("Destination file name is empty.");
+            return -1;
+        }
+        return ChunkedFile.merge(new File(manifestFileName), new File(dstFileName), FileTree.DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Copy file from source to destination compressing it to gzip format. See Archive.
+     *
+     * @param srcFileName source file path
+     * @param dstFileName destination gzip file path
+     * @return count of written (compressed) bytes or -1 if failed
+     */
+    public static long gzip(String srcFileName, String dstFileName) {
+        return Archive.gzip(new File(srcFileName), new File(dstFileName));
+    }
+
+    /**
+     * Copy gzip file from source to destination decompressing it. See Archive.
+     *
+     * @param srcFileName source gzip file path
+     * @param dstFileName destination file path
+     * @return count of written (decompressed) bytes or -1 if failed
+     */
+    public static long gunzip(String srcFileName, String dstFileName) {
+        return Archive.gunzip(new File(srcFileName), new File(dstFileName));
+    }
+
+    /**
+     * Extract zip file from assets into the directory. See Archive.
+     *
+     * @param context        base app context
+     * @param assetsFileName assets zip file name
+     * @param dstDir         destination directory
+     * @return true if success
+     */
+    public static boolean unzipAsset(Context context, String assetsFileName, String dstDir) {
+        return Archive.unzipAsset(context, assetsFileName, new File(dstDir)).isSuccess();
+    }
+
     /**
      * Delete file
      *
@@ -241,24 +1022,17 @@ public final class FileIO {
     }
 
     /**
-     * Delete content from directory
+     * Delete content from directory. Subdirs are deleted in parallel with a FileTree.
      *
      * @param pathName path for delete a content
+     * @return true if success
      */
-    public static void deleteDirContent(String pathName) {
-        File path = new File(pathName);
-        String[] files = path.list();
-        if (files != null) {
-            for (String fileName : files) {
-                File file = new File(fileName);
-                boolean result = file.delete();
-                if (result) {
-                    Log.v("File success deleted " + fileName);
-                } else {
-                    Log.w("Fail to delete file " + fileName);
-                }
-            }
+    public static boolean deleteDirContent(String pathName) {
+        if (pathName == null || pathName.length() == 0) {
+            Log.e("Path name is empty.");
+            return false;
         }
+        return FileTree.deleteContent(new File(pathName)).isSuccess();
     }
 
     /**
@@ -381,7 +1155,7 @@ public final class FileIO {
      * Create a dirs in the working dir
      *
      * @param subdir sub directory
-     * @return full path
+     * @return full path or empty string if the directory can't be created
      */
     public static String createDir(String subdir) {
         String path = AppConfig.getApplicationWorkingDir() + subdir;
@@ -392,31 +1166,40 @@ public final class FileIO {
                 Log.i("++ Created the Directory: " + path);
             } else {
                 Log.w("-- Creating the Directory is failed: " + path);
+                return "";
             }
-            return "";
         }
         return path;
     }
 
     /**
-     * Call this method to delete any cache created by app
+     * Calculate the disk usage of directory, for example getDir() or getCacheDir(). See DiskUsage.
+     *
+     * @param dir the directory
+     * @return usage report with breakdown by extension and subdirectory
+     */
+    public static DiskUsage.Report diskUsage(String dir) {
+        return DiskUsage.of(new File(dir));
+    }
+
+    /**
+     * Call this method to delete any cache created by app. Use CacheQuota to keep the cache bounded without deleting all of it.
      */
     public static void clearCashedApplicationData(Context context) {
         File cache = context.getCacheDir();
         File appDir = new File(cache.getParent());
         if (appDir.exists()) {
-            String[] children = appDir.list();
-            for (String s : children) {
-                File f = new File(appDir, s);
-                if (deleteDir(f)) {
-                    Log.i(String.format("**************** DELETED -> (%s) *******************", f.getAbsolutePath()));
-                }
+            FileTree.Result result = FileTree.deleteContent(appDir);
+            if (result.isSuccess()) {
+                Log.i(String.format("**************** DELETED -> (%s) %s *******************", appDir.getAbsolutePath(), result));
+            } else {
+                Log.w(String.format("**************** NOT ALL DELETED -> (%s) %s *******************", appDir.getAbsolutePath(), result));
             }
         }
     }
 
     /**
-     * Delete directory with a subdirs and a files
+     * Delete directory with a subdirs and a files. Subdirs are deleted in parallel with a FileTree.
      *
      * @param dir directory for delete
      * @return tue if success
@@ -426,16 +1209,127 @@ public final class FileIO {
             Log.e("Directory eq null - can't delete.");
             return false;
         }
-        if (dir.isDirectory()) {
-            String[] children = dir.list();
-            for (String element : children) {
-                boolean success = deleteDir(new File(dir, element));
-                if (!success) {
-                    return false;
-                }
+        return FileTree.delete(dir).isSuccess();
+    }
+
+    // ==========================================================
+
+    /**
+     * Async copy file from source to destination in the IoExecutor. The callback is called in the main thread.
+     *
+     * @param srcFileName source file path
+     * @param dstFileName destination file path
+     * @param callback    receives count of copied bytes or -1 if failed, possible to be null
+     * @return future for cancel the copy
+     */
+    public static IoExecutor.FileFuture<Long> copyAsync(final String srcFileName, final String dstFileName, CompleteCallback<Long> callback) {
+        return IoExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return copy(srcFileName, dstFileName);
             }
-        }
-        return dir.delete();
+        }, callback);
+    }
+
+    /**
+     * Async copy file from source to destination in the IoExecutor. The callback is called in the main thread.
+     *
+     * @param srcFile  source file
+     * @param dstFile  destination file
+     * @param callback receives count of copied bytes or -1 if failed, possible to be null
+     * @return future for cancel the copy
+     */
+    public static IoExecutor.FileFuture<Long> copyAsync(File srcFile, File dstFile, CompleteCallback<Long> callback) {
+        return copyAsync(srcFile, dstFile, false, null, callback, IoExecutor.getMainThreadExecutor());
+    }
+
+    /**
+     * Async copy file from source to destination in the IoExecutor.
+     *
+     * @param srcFile          source file
+     * @param dstFile          destination file
+     * @param isSync           true - flush the destination file to the storage device (fsync) before complete
+     * @param listener         progress listener, called in the background thread, possible to be null
+     * @param callback         receives count of copied bytes or -1 if failed, possible to be null
+     * @param callbackExecutor executor for the callback delivery
+     * @return future for cancel the copy
+     */
+    public static IoExecutor.FileFuture<Long> copyAsync(final File srcFile, final File dstFile, final boolean isSync, final ProgressListener listener,
+                                                         CompleteCallback<Long> callback, Executor callbackExecutor) {
+        return IoExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return copy(srcFile, dstFile, isSync, listener);
+            }
+        }, callback, callbackExecutor);
+    }
+
+    /**
+     * Async copy file from assets source to destination in the IoExecutor. The callback is called in the main thread.
+     *
+     * @param context        base app context
+     * @param assetsFileName assets file name
+     * @param dstFileName    destination of copy
+     * @param callback       receives true if success, possible to be null
+     * @return future for cancel the copy
+     */
+    public static IoExecutor.FileFuture<Boolean> copyAssetAsync(Context context, final String assetsFileName, final String dstFileName,
+                                                                CompleteCallback<Boolean> callback) {
+        final Context appContext = context.getApplicationContext();
+        return IoExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return copyAsset(appContext, assetsFileName, dstFileName);
+            }
+        }, callback);
+    }
+
+    /**
+     * Async delete file in the IoExecutor. The callback is called in the main thread.
+     *
+     * @param fileName file for delete
+     * @param callback receives true if success, possible to be null
+     * @return future for cancel the operation
+     */
+    public static IoExecutor.FileFuture<Boolean> deleteAsync(final String fileName, CompleteCallback<Boolean> callback) {
+        return IoExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return delete(fileName);
+            }
+        }, callback);
+    }
+
+    /**
+     * Async delete directory with a subdirs and a files in the IoExecutor. The callback is called in the main thread.
+     *
+     * @param dir      directory for delete
+     * @param callback receives true if success, possible to be null
+     * @return future for cancel the operation
+     */
+    public static IoExecutor.FileFuture<Boolean> deleteDirAsync(final File dir, CompleteCallback<Boolean> callback) {
+        return IoExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return deleteDir(dir);
+            }
+        }, callback);
+    }
+
+    /**
+     * Async delete content from directory in the IoExecutor. The callback is called in the main thread.
+     *
+     * @param pathName path for delete a content
+     * @param callback receives true if success, possible to be null
+     * @return future for cancel the operation
+     */
+    public static IoExecutor.FileFuture<Boolean> deleteDirContentAsync(final String pathName, CompleteCallback<Boolean> callback) {
+        return IoExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return deleteDirContent(pathName);
+            }
+        }, callback);
     }
 
 }
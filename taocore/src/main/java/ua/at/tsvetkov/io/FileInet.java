@@ -25,19 +25,24 @@
  */
 package ua.at.tsvetkov.io;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ua.at.tsvetkov.util.Log;
 
 /**
- * Methods for downloading files from the Internet
+ * Methods for downloading files from the Internet. The downloads are resumable: the data is received to the "file.part" file and an
+ * interrupted download is continued from the received length.
  *
  * @author A.Tsvetkov 2013 http://tsvetkov.at.ua mailto:al@ukr.net
  */
@@ -45,6 +50,20 @@ public final class FileInet {
 
     public static final int TIMEOUT = 10000;
     public static final int BUFFER = 8192;
+    public static final String PART_SUFFIX = ".part";
+    public static final String STATE_SUFFIX = ".part.state";
+    public static final int RETRY_COUNT = 3;
+    public static final long CHECKPOINT_SIZE = 4 * 1024 * 1024;
+    private static final long RETRY_DELAY = 1000;
+    private static final int HTTP_PARTIAL = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int MAGIC = 0x54414f52;
+    private static final int VERSION = 1;
+    private static final int RESULT_DONE = 0;
+    private static final int RESULT_RETRY = 1;
+    private static final int RESULT_FAILED = 2;
+    private static final int RESULT_CANCELED = 3;
+    private static final int RESULT_RESTART = 4;
 
     /**
      * Returns the content length in bytes specified by the response header field content-length or -1 if this field is not set.
@@ -72,23 +91,18 @@ public final class FileInet {
     }
 
     /**
-     * Async downloads a remote file and stores it locally.
+     * Async downloads a remote file and stores it locally. The download is queued in the shared {@link DownloadManager} with the normal
+     * priority, the listener is called in the download thread.
      *
      * @param url             Remote URL of the file to download
      * @param pathAndFileName Local path with file name where to store the file
      * @param rewrite         If TRUE and file exist - rewrite the file. If FALSE and file exist and his length > 0 - not download and rewrite the
      *                        file.
+     * @param listener        complete listener, possible to be null
+     * @return handle for cancel the download
      */
-    static public void download(final String url, final String pathAndFileName, final boolean rewrite, final CompleteListener listener) {
-        new Thread(new Runnable() {
-
-            @Override
-            public void run() {
-                boolean result = download(url, pathAndFileName, rewrite);
-                listener.complete(url, result);
-            }
-
-        }, "Download thread: " + url).start();
+    static public DownloadManager.Download download(String url, String pathAndFileName, boolean rewrite, CompleteListener listener) {
+        return DownloadManager.getInstance().enqueue(url, new File(pathAndFileName), rewrite, DownloadManager.PRIORITY_NORMAL, listener, null);
     }
 
     /**
@@ -100,55 +114,248 @@ public final class FileInet {
      * @return true if success
      */
     static public boolean download(String url, String pathAndFileName, boolean rewrite) {
-        String urlEnc = null;
-        HttpURLConnection conn = null;
-        InputStream input;
-        FileOutputStream output = null;
-
-        try {
-            urlEnc = URLEncoder.encode(url, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e("Wrong url", e);
-        }
-
         File f = new File(pathAndFileName);
         if (!rewrite && f.exists() && f.length() > 0) {
             Log.w("File exist: " + pathAndFileName);
             return true;
         }
+        return download(url, f, null);
+    }
+
+    /**
+     * Downloads a remote file with resume. The data is written to the "file.part" file, the received length and the validator of the
+     * response (strong ETag or Last-Modified) are saved to "file.part.state" after each CHECKPOINT_SIZE bytes. After a network error the
+     * download is retried RETRY_COUNT times, and the next call continues it too: the rest is requested with Range and If-Range, so if the
+     * remote file is changed the server sends it whole and the download starts from zero. A range answer which doesn't continue the part
+     * (other Content-Range, or 416 for an incomplete part) drops the state and the download starts once more from zero without Range. The
+     * completed file is renamed to the target name atomically. The canceled or failed with an HTTP error download removes the partially
+     * received file.
+     *
+     * @param url        Remote URL of the file to download. If the string contains spaces, they are replaced by "%20".
+     * @param file       Local file where to store the data
+     * @param isCanceled cancel flag, checked after each read buffer, possible to be null
+     * @return true if success
+     */
+    static boolean download(String url, File file, AtomicBoolean isCanceled) {
+        File part = new File(file.getPath() + PART_SUFFIX);
+        File stateFile = new File(file.getPath() + STATE_SUFFIX);
+        int result;
+        boolean isRestarted = false;
+        for (int attempt = 0; ; attempt++) {
+            result = transfer(url, part, stateFile, isCanceled);
+            if (result == RESULT_RESTART) {
+                if (isRestarted) {
+                    result = RESULT_FAILED;
+                    break;
+                }
+                // The part is not resumable, it is downloaded again from zero without a delay and not counted as an attempt
+                isRestarted = true;
+                attempt--;
+                continue;
+            }
+            if (result != RESULT_RETRY || attempt >= RETRY_COUNT) {
+                break;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (isCanceled != null && isCanceled.get()) {
+                result = RESULT_CANCELED;
+                break;
+            }
+        }
+        if (result == RESULT_DONE) {
+            if (!part.renameTo(file) && !(file.delete() && part.renameTo(file))) {
+                Log.e("Can't rename the downloaded file " + part + " to " + file);
+                return false;
+            }
+            AtomicWriter.syncDir(file.getParentFile());
+            deleteState(stateFile);
+            return true;
+        }
+        if (result != RESULT_RETRY) {
+            deleteState(stateFile);
+            if (part.exists() && !part.delete()) {
+                Log.w("Can't delete the partially downloaded file > " + part);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One attempt of the download, continues the partially received file if it is possible.
+     *
+     * @return RESULT_DONE, RESULT_RETRY for the network error, RESULT_FAILED for the HTTP error, RESULT_RESTART if the server doesn't
+     * continue the part (the state is dropped) or RESULT_CANCELED
+     */
+    private static int transfer(String url, File part, File stateFile, AtomicBoolean isCanceled) {
+        PartState state = PartState.load(stateFile);
+        if (state != null && (!state.url.equals(url) || part.length() < state.length)) {
+            state = null;
+        }
+        HttpURLConnection conn = null;
+        InputStream input = null;
+        FileOutputStream output = null;
+        byte[] buffer = null;
+        long received = 0;
+        int result = RESULT_RETRY;
 
         try {
-            conn = (HttpURLConnection) new URL(urlEnc).openConnection();
+            conn = (HttpURLConnection) new URL(url.replace(" ", "%20")).openConnection();
             conn.setRequestProperty("keep-alive", "false");
+            // The ranges of the compressed response don't match the file offsets
+            conn.setRequestProperty("Accept-Encoding", "identity");
             conn.setDoInput(true);
             conn.setConnectTimeout(TIMEOUT);
+            conn.setReadTimeout(TIMEOUT);
+            if (state != null && state.length > 0) {
+                conn.setRequestProperty("Range", "bytes=" + state.length + "-");
+                conn.setRequestProperty("If-Range", state.validator);
+            }
             conn.connect();
-            int fileLength = conn.getContentLength();
-            if (fileLength == 0) {
-                Log.v("File is empty, length = 0 > " + url);
+            int code = conn.getResponseCode();
+            if (code == HTTP_PARTIAL && state != null && state.length > 0 && isRangeOf(conn.getHeaderField("Content-Range"), state)) {
+                received = state.length;
+                Log.v("Download is resumed from " + received + " > " + url);
+            } else if (code == HTTP_RANGE_NOT_SATISFIABLE && state != null && state.length > 0 && state.length == state.total) {
+                result = RESULT_DONE;
+                return result;
+            } else if ((code == HTTP_PARTIAL || code == HTTP_RANGE_NOT_SATISFIABLE) && state != null && state.length > 0) {
+                Log.w("Server doesn't continue the part from " + state.length + ", response code " + code + ", restart from zero > " + url);
+                deleteState(stateFile);
+                result = RESULT_RESTART;
+                return result;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                state = new PartState(url, getValidator(conn), getLongHeader(conn, "Content-Length"));
+                if (state.total == 0) {
+                    Log.v("File is empty, length = 0 > " + url);
+                }
+            } else {
+                Log.w("Download error " + url + ", response code " + code);
+                // The stale part is not continued with the next attempt
+                deleteState(stateFile);
+                result = code >= HttpURLConnection.HTTP_INTERNAL_ERROR ? RESULT_RETRY : RESULT_FAILED;
+                return result;
+            }
+            output = new FileOutputStream(part, received > 0);
+            if (received > 0) {
+                output.getChannel().truncate(received);
+            } else if (state.validator.length() > 0) {
+                state.save(stateFile);
+            } else {
+                deleteState(stateFile);
             }
             input = conn.getInputStream();
-            output = new FileOutputStream(pathAndFileName);
-            byte[] buffer = new byte[BUFFER];
+            buffer = BufferPool.acquire(BUFFER);
+            long checkpoint = received + CHECKPOINT_SIZE;
             int bytesRead;
             while ((bytesRead = input.read(buffer)) != -1) {
+                if (isCanceled != null && isCanceled.get()) {
+                    Log.v("Download is canceled > " + url);
+                    result = RESULT_CANCELED;
+                    return result;
+                }
                 output.write(buffer, 0, bytesRead);
+                received += bytesRead;
+                if (received >= checkpoint) {
+                    checkpoint(output, state, received, stateFile);
+                    checkpoint = received + CHECKPOINT_SIZE;
+                }
             }
-            output.flush();
+            if (state.total >= 0 && received != state.total) {
+                Log.w("Download is interrupted at " + received + " of " + state.total + " > " + url);
+                return result;
+            }
+            output.getFD().sync();
+            result = RESULT_DONE;
         } catch (IOException e) {
             Log.w("Download error " + url, e);
-            return false;
         } finally {
+            BufferPool.release(buffer);
+            FileIO.close(input);
             if (conn != null)
                 conn.disconnect();
-            try {
-                output.close();
-            } catch (IOException e) {
-                Log.e("Error closing file > " + pathAndFileName, e);
-                return false;
+            if (output != null) {
+                if (result == RESULT_RETRY) {
+                    checkpoint(output, state, received, stateFile);
+                }
+                if (!FileIO.close(output) && result == RESULT_DONE) {
+                    Log.e("Error closing file > " + part);
+                    result = RESULT_RETRY;
+                }
             }
         }
-        return true;
+        return result;
+    }
+
+    /**
+     * Flush the received data to the storage device and then save its length, so after a power loss the part file is never shorter than the
+     * saved length. The response without a validator can't be continued and is not saved.
+     */
+    private static void checkpoint(FileOutputStream output, PartState state, long received, File stateFile) {
+        if (state.validator.length() == 0) {
+            return;
+        }
+        try {
+            output.flush();
+            output.getFD().sync();
+        } catch (IOException e) {
+            Log.w("Can't flush the partially downloaded file", e);
+            return;
+        }
+        state.length = received;
+        state.save(stateFile);
+    }
+
+    private static void deleteState(File stateFile) {
+        if (stateFile.exists() && !stateFile.delete()) {
+            Log.w("Can't delete the download state > " + stateFile);
+        }
+    }
+
+    /**
+     * Returns the strong ETag or the Last-Modified of the response, they can be sent back in If-Range. The weak ETag is not allowed there.
+     */
+    private static String getValidator(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        String lastModified = conn.getHeaderField("Last-Modified");
+        return lastModified == null ? "" : lastModified;
+    }
+
+    private static long getLongHeader(HttpURLConnection conn, String name) {
+        String value = conn.getHeaderField(name);
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check that Content-Range "bytes first-last/total" starts at the received length and the total length is not changed.
+     */
+    private static boolean isRangeOf(String contentRange, PartState state) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return false;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return false;
+        }
+        try {
+            long first = Long.parseLong(contentRange.substring(6, dash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return first == state.length && (total.equals("*") || state.total < 0 || Long.parseLong(total) == state.total);
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
     /**
@@ -162,7 +369,76 @@ public final class FileInet {
         return download(url, pathAndFileName, true);
     }
 
-    public abstract class CompleteListener {
+    /**
+     * Saved state of the partially downloaded file
+     */
+    private static final class PartState {
+
+        private final String url;
+        private final String validator;
+        private final long total;
+        private long length;
+
+        private PartState(String url, String validator, long total) {
+            this.url = url;
+            this.validator = validator;
+            this.total = total;
+        }
+
+        /**
+         * Load the state.
+         *
+         * @param file state file
+         * @return the state or null if it is absent or corrupt
+         */
+        private static PartState load(File file) {
+            if (!file.exists()) {
+                return null;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Wrong download state file header");
+                }
+                PartState state = new PartState(in.readUTF(), in.readUTF(), in.readLong());
+                state.length = in.readLong();
+                return state;
+            } catch (IOException e) {
+                Log.w("Can't load download state " + file, e);
+                return null;
+            } finally {
+                FileIO.close(in);
+            }
+        }
+
+        /**
+         * Save the state atomically.
+         *
+         * @param file state file
+         * @return true if success
+         */
+        private boolean save(File file) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(url);
+                out.writeUTF(validator);
+                out.writeLong(total);
+                out.writeLong(length);
+                out.flush();
+            } catch (IOException e) {
+                Log.e("Can't serialize download state", e);
+                return false;
+            }
+            return AtomicWriter.write(file, bytes.toByteArray());
+        }
+
+    }
+
+    public static abstract class CompleteListener {
 
         public abstract void complete(String fileName, boolean result);
 
@@ -0,0 +1,507 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import ua.at.tsvetkov.util.Const;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Persistent FIFO queue of byte records, stored as append-only segment files. Every record is written with its length and CRC32, the head
+ * position (segment and offset of the first not removed record) is saved in the separate file. The segment is deleted when all its
+ * records are removed.
+ * <p/>
+ * On open the segments after the head are scanned, a torn record at the end of the last segment (the write interrupted by a crash) is
+ * truncated. With isSync each add is flushed to the storage device before return, so batch the records with addAll() for a high
+ * throughput. Without sync the records survive the app crash, but not the power loss.
+ * <p/>
+ * For the at least once delivery read the records with peek(), process them and then remove(count).
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class FileQueue implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * Const.MB;
+    public static final int MAX_RECORD_SIZE = 16 * Const.MB;
+
+    private static final int MAGIC = 0x54414f51;
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_EXT = ".seg";
+    private static final String HEAD = "head";
+
+    private final File dir;
+    private final long segmentSize;
+    private final boolean isSync;
+    private final File headFile;
+    private final List<Long> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[HEADER_SIZE];
+    private RandomAccessFile writeFile;
+    private long writeOffset;
+    private RandomAccessFile readFile;
+    private long readSegment = -1;
+    private long headSegment;
+    private long headOffset;
+    private long count;
+    private boolean isClosed;
+
+    private FileQueue(File dir, long segmentSize, boolean isSync) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.isSync = isSync;
+        headFile = new File(dir, HEAD);
+    }
+
+    /**
+     * Open the queue in the subdir of working directory FileIO.getDir() with the default segment size and sync.
+     *
+     * @param name subdir name
+     * @return the queue, must be closed
+     * @throws IOException if the queue can't be opened
+     */
+    public static FileQueue open(String name) throws IOException {
+        return open(new File(FileIO.getDir(name)), DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    /**
+     * Open the queue, create it if absent and recover it after the crash.
+     *
+     * @param dir         queue directory
+     * @param segmentSize size of segment file after which the next segment is started
+     * @param isSync      true - flush each add to the storage device
+     * @return the queue, must be closed
+     * @throws IOException if the queue can't be opened
+     */
+    public static FileQueue open(File dir, long segmentSize, boolean isSync) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+        FileQueue queue = new FileQueue(dir, segmentSize, isSync);
+        queue.recover();
+        return queue;
+    }
+
+    /**
+     * Add the record to the tail.
+     *
+     * @param record the record
+     * @throws IOException if the record can't be written
+     */
+    public void add(byte[] record) throws IOException {
+        addAll(Collections.singletonList(record));
+    }
+
+    /**
+     * Add the records to the tail with one write (and one sync).
+     *
+     * @param records the records
+     * @throws IOException if the records can't be written, the queue is not changed
+     */
+    public synchronized void addAll(List<byte[]> records) throws IOException {
+        checkNotClosed();
+        for (byte[] record : records) {
+            if (record == null || record.length > MAX_RECORD_SIZE) {
+                throw new IllegalArgumentException("Record is null or larger than " + MAX_RECORD_SIZE + " bytes");
+            }
+        }
+        if (writeOffset >= segmentSize) {
+            startSegment();
+        }
+        FileChannel channel = writeFile.getChannel();
+        long position = writeOffset;
+        byte[] buffer = BufferPool.acquire(BufferPool.MAX_SIZE);
+        try {
+            int length = 0;
+            for (byte[] record : records) {
+                if (length + HEADER_SIZE + record.length > buffer.length) {
+                    position = write(channel, buffer, length, position);
+                    length = 0;
+                }
+                crc.reset();
+                crc.update(record, 0, record.length);
+                putInt(buffer, length, record.length);
+                putInt(buffer, length + 4, (int) crc.getValue());
+                if (HEADER_SIZE + record.length > buffer.length) {
+                    position = write(channel, buffer, HEADER_SIZE, position);
+                    position = write(channel, record, record.length, position);
+                } else {
+                    System.arraycopy(record, 0, buffer, length + HEADER_SIZE, record.length);
+                    length += HEADER_SIZE + record.length;
+                }
+            }
+            position = write(channel, buffer, length, position);
+            if (isSync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            writeFile.setLength(writeOffset);
+            throw e;
+        } finally {
+            BufferPool.release(buffer);
+        }
+        writeOffset = position;
+        count += records.size();
+    }
+
+    /**
+     * Read the records from the head without removing them.
+     *
+     * @param max max count of records, a negative count is logged and nothing is read
+     * @return the records, empty if the queue is empty
+     * @throws IOException if the records can't be read
+     */
+    public synchronized List<byte[]> peek(int max) throws IOException {
+        checkNotClosed();
+        return read(max, new long[]{headSegment, headOffset});
+    }
+
+    /**
+     * Remove the records from the head. The records are checked the same way as in peek(), so remove(peek(max).size()) removes exactly the
+     * peeked records. Segments which become empty are deleted.
+     *
+     * @param max max count of records, a negative count is logged and nothing is removed
+     * @return count of removed records
+     * @throws IOException if the head can't be saved
+     */
+    public synchronized int remove(int max) throws IOException {
+        checkNotClosed();
+        if (!isValidMax(max)) {
+            return 0;
+        }
+        long[] cursor = {headSegment, headOffset};
+        int removed = 0;
+        while (removed < max && next(cursor) != null) {
+            removed++;
+        }
+        advanceHead(cursor, removed);
+        return removed;
+    }
+
+    /**
+     * Read and remove the records from the head. The records are lost if the app fails to process them, use peek() and remove() for the
+     * at least once delivery.
+     *
+     * @param max max count of records, a negative count is logged and nothing is read
+     * @return the records, empty if the queue is empty
+     * @throws IOException if the records can't be read
+     */
+    public synchronized List<byte[]> poll(int max) throws IOException {
+        checkNotClosed();
+        // The head is moved to where the read has stopped, the records are not read and checked twice
+        long[] cursor = {headSegment, headOffset};
+        List<byte[]> records = read(max, cursor);
+        advanceHead(cursor, records.size());
+        return records;
+    }
+
+    /**
+     * @return count of records in the queue
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return count of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        FileIO.close(readFile);
+        if (writeFile != null) {
+            writeFile.getFD().sync();
+            writeFile.close();
+        }
+    }
+
+    // ==========================================================
+
+    private List<byte[]> read(int max, long[] cursor) throws IOException {
+        if (!isValidMax(max)) {
+            return new ArrayList<>(0);
+        }
+        List<byte[]> records = new ArrayList<>(Math.min(max, (int) Math.min(count, Integer.MAX_VALUE)));
+        while (records.size() < max) {
+            byte[] record = next(cursor);
+            if (record == null) {
+                break;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Move the head to the cursor which has passed the given count of records.
+     */
+    private void advanceHead(long[] cursor, int removed) throws IOException {
+        if (removed == 0) {
+            return;
+        }
+        setHead(cursor[0], cursor[1]);
+        count = Math.max(0, count - removed);
+    }
+
+    private static boolean isValidMax(int max) {
+        if (max < 0) {
+            Log.e("Max count of records is negative: " + max);
+            return false;
+        }
+        return true;
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_EXT)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXT.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w("Unknown file in queue " + file);
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        loadHead();
+        while (!segments.isEmpty() && segments.get(0) < headSegment) {
+            deleteSegment(segments.remove(0));
+        }
+        if (segments.isEmpty() || segments.get(0) != headSegment) {
+            if (headOffset != 0) {
+                Log.w("Head segment of queue " + dir + " is lost, reading from the next segment");
+            }
+            headSegment = segments.isEmpty() ? headSegment : segments.get(0);
+            headOffset = 0;
+        }
+        if (segments.isEmpty()) {
+            segments.add(headSegment);
+            if (!getSegmentFile(headSegment).createNewFile()) {
+                throw new IOException("Can't create queue segment " + getSegmentFile(headSegment));
+            }
+        }
+        long[] cursor = {headSegment, headOffset};
+        while (next(cursor) != null) {
+            count++;
+        }
+        // the scan stops at the end of valid records of the last segment
+        writeFile = new RandomAccessFile(getSegmentFile(cursor[0]), "rw");
+        long validEnd = cursor[1];
+        if (writeFile.length() != validEnd) {
+            Log.w("Queue " + dir + " is recovered, truncated " + (writeFile.length() - validEnd) + " bytes of torn records");
+            writeFile.setLength(validEnd);
+        }
+        writeOffset = validEnd;
+        Log.v("Queue " + dir + " is opened, records: " + count + ", segments: " + segments.size());
+    }
+
+    private void startSegment() throws IOException {
+        long segment = segments.get(segments.size() - 1) + 1;
+        writeFile.getFD().sync();
+        writeFile.close();
+        writeFile = new RandomAccessFile(getSegmentFile(segment), "rw");
+        writeOffset = 0;
+        segments.add(segment);
+        AtomicWriter.syncDir(dir);
+    }
+
+    /**
+     * Read and check the record at the cursor and move the cursor after it, going to the next segment at the end of segment. A corrupt
+     * record ends the segment. peek(), remove() and the recovery scan all go through here, so they agree on where the valid records end.
+     *
+     * @param cursor segment and offset
+     * @return the record or null at the end of the queue
+     */
+    private byte[] next(long[] cursor) throws IOException {
+        while (true) {
+            int index = segments.indexOf(cursor[0]);
+            if (index < 0) {
+                return null;
+            }
+            boolean isLast = index == segments.size() - 1;
+            FileChannel channel = getReadChannel(cursor[0]);
+            long end = isLast && writeFile != null ? writeOffset : channel.size();
+            byte[] record = read(channel, cursor[1], end);
+            if (record != null) {
+                cursor[1] += HEADER_SIZE + getInt(header, 0);
+                return record;
+            }
+            if (cursor[1] < end) {
+                Log.e("Corrupt record in queue segment " + getSegmentFile(cursor[0]) + " at " + cursor[1]);
+            }
+            if (isLast) {
+                return null;
+            }
+            cursor[0] = segments.get(index + 1);
+            cursor[1] = 0;
+        }
+    }
+
+    private byte[] read(FileChannel channel, long offset, long end) throws IOException {
+        if (end - offset < HEADER_SIZE) {
+            return null;
+        }
+        readFully(channel, ByteBuffer.wrap(header), offset);
+        int length = getInt(header, 0);
+        if (length < 0 || length > MAX_RECORD_SIZE || end - offset - HEADER_SIZE < length) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        readFully(channel, ByteBuffer.wrap(record), offset + HEADER_SIZE);
+        crc.reset();
+        crc.update(record, 0, length);
+        return (int) crc.getValue() == getInt(header, 4) ? record : null;
+    }
+
+    private FileChannel getReadChannel(long segment) throws IOException {
+        if (readSegment != segment) {
+            FileIO.close(readFile);
+            readFile = new RandomAccessFile(getSegmentFile(segment), "r");
+            readSegment = segment;
+        }
+        return readFile.getChannel();
+    }
+
+    private void setHead(long segment, long offset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(segment);
+        out.writeLong(offset);
+        out.flush();
+        if (!AtomicWriter.write(headFile, bytes.toByteArray())) {
+            throw new IOException("Can't save queue head " + headFile);
+        }
+        headSegment = segment;
+        headOffset = offset;
+        while (segments.size() > 1 && segments.get(0) < segment) {
+            deleteSegment(segments.remove(0));
+        }
+    }
+
+    private void loadHead() {
+        if (!headFile.exists()) {
+            headSegment = segments.isEmpty() ? 0 : segments.get(0);
+            headOffset = 0;
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(headFile));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Wrong head file header");
+            }
+            headSegment = in.readLong();
+            headOffset = in.readLong();
+        } catch (IOException e) {
+            Log.e("Queue head is corrupt, reading from the first segment " + headFile, e);
+            headSegment = segments.isEmpty() ? 0 : segments.get(0);
+            headOffset = 0;
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    private void deleteSegment(long segment) {
+        if (readSegment == segment) {
+            FileIO.close(readFile);
+            readFile = null;
+            readSegment = -1;
+        }
+        File file = getSegmentFile(segment);
+        if (!file.delete()) {
+            Log.w("Fail to delete queue segment " + file);
+        }
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(dir, String.format(Locale.US, "%020d", segment) + SEGMENT_EXT);
+    }
+
+    private void checkNotClosed() {
+        if (isClosed) {
+            throw new IllegalStateException("Queue is closed");
+        }
+    }
+
+    private static long write(FileChannel channel, byte[] data, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += count;
+        }
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+}
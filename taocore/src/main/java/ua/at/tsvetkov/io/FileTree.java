@@ -0,0 +1,523 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Parallel operations with a directory trees: delete, copy and move. The tree is walked by a bounded pool of threads, each directory and
+ * each batch of BATCH_SIZE files of a directory is a separate task, so the large flat directories (thumbnails cache for example) are
+ * processed in parallel too. The error on the one entry does not abort the operation, all failed entries are collected in the Result.
+ * <p/>
+ * The symbolic links to directories are not followed, the link itself is deleted or skipped on copy.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class FileTree {
+
+    /**
+     * Default count of the threads for walking a tree. The flash storage scales to a few parallel requests only.
+     */
+    public static final int DEFAULT_PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int BATCH_SIZE = 256;
+
+    private FileTree() {
+
+    }
+
+    /**
+     * Delete directory with a subdirs and a files in parallel
+     *
+     * @param dir directory for delete
+     * @return result of operation
+     */
+    public static Result delete(File dir) {
+        return delete(dir, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Delete directory with a subdirs and a files in parallel
+     *
+     * @param dir         directory for delete
+     * @param parallelism max count of the threads
+     * @return result of operation
+     */
+    public static Result delete(File dir, int parallelism) {
+        return walk(Operation.DELETE, dir, null, true, parallelism);
+    }
+
+    /**
+     * Delete content of directory in parallel. The directory itself is kept. A file which is not a directory is not deleted, the result is
+     * failed.
+     *
+     * @param dir directory for delete a content
+     * @return result of operation
+     */
+    public static Result deleteContent(File dir) {
+        return deleteContent(dir, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Delete content of directory in parallel. The directory itself is kept. A file which is not a directory is not deleted, the result is
+     * failed.
+     *
+     * @param dir         directory for delete a content
+     * @param parallelism max count of the threads
+     * @return result of operation
+     */
+    public static Result deleteContent(File dir, int parallelism) {
+        return walk(Operation.DELETE, dir, null, false, parallelism);
+    }
+
+    /**
+     * Copy directory with a subdirs and a files in parallel. Existing files in destination are rewritten.
+     *
+     * @param srcDir source directory
+     * @param dstDir destination directory, will be created if not exist
+     * @return result of operation
+     */
+    public static Result copy(File srcDir, File dstDir) {
+        return copy(srcDir, dstDir, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Copy directory with a subdirs and a files in parallel. Existing files in destination are rewritten.
+     *
+     * @param srcDir      source directory
+     * @param dstDir      destination directory, will be created if not exist
+     * @param parallelism max count of the threads
+     * @return result of operation
+     */
+    public static Result copy(File srcDir, File dstDir, int parallelism) {
+        if (dstDir == null) {
+            Log.e("Destination directory is null.");
+            return Result.failed(srcDir);
+        }
+        if (srcDir != null && isInside(dstDir, srcDir)) {
+            Log.e("Can't copy directory " + srcDir + " into itself " + dstDir);
+            return Result.failed(srcDir);
+        }
+        return walk(Operation.COPY, srcDir, dstDir, true, parallelism);
+    }
+
+    /**
+     * Move directory. At first try to rename it (same file system), otherwise the tree is copied in parallel and the source is deleted
+     * only when the copy is completed without errors.
+     *
+     * @param srcDir source directory
+     * @param dstDir destination directory
+     * @return result of operation. If directory was renamed then only the root directory is counted.
+     */
+    public static Result move(File srcDir, File dstDir) {
+        return move(srcDir, dstDir, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Move directory. At first try to rename it (same file system), otherwise the tree is copied in parallel and the source is deleted
+     * only when the copy is completed without errors.
+     *
+     * @param srcDir      source directory
+     * @param dstDir      destination directory
+     * @param parallelism max count of the threads
+     * @return result of operation. If directory was renamed then only the root directory is counted.
+     */
+    public static Result move(File srcDir, File dstDir, int parallelism) {
+        if (srcDir == null || !srcDir.isDirectory()) {
+            Log.e("Source directory is null or not exist.");
+            return Result.failed(srcDir);
+        }
+        if (dstDir == null) {
+            Log.e("Destination directory is null.");
+            return Result.failed(srcDir);
+        }
+        if (!dstDir.exists() && srcDir.renameTo(dstDir)) {
+            Result result = new Result();
+            result.dirs.incrementAndGet();
+            Log.v("Directory success renamed to " + dstDir);
+            return result;
+        }
+        Result result = copy(srcDir, dstDir, parallelism);
+        if (!result.isSuccess()) {
+            Log.w("Directory " + srcDir + " is not moved, copy failed for " + result.getFailedCount() + " entries");
+            return result;
+        }
+        Result deleted = delete(srcDir, parallelism);
+        result.addAll(deleted);
+        return result;
+    }
+
+    private static Result walk(Operation operation, File dir, File dstDir, boolean isIncludeRoot, int parallelism) {
+        Result result = new Result();
+        if (dir == null || !dir.exists()) {
+            Log.e("Directory is null or not exist.");
+            result.addFailed(dir);
+            return result;
+        }
+        if (!dir.isDirectory()) {
+            if (!isIncludeRoot) {
+                Log.e("Not a directory " + dir + ", its content can't be deleted.");
+                result.addFailed(dir);
+                return result;
+            }
+            new Walker(operation, result, null, null).processFile(dir, dstDir);
+            return result;
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "FileTree #" + number.incrementAndGet());
+            }
+        });
+        CountDownLatch done = new CountDownLatch(1);
+        Walker walker = new Walker(operation, result, executor, done);
+        long start = System.currentTimeMillis();
+        try {
+            walker.submit(new Node(null, dir, dstDir, isIncludeRoot));
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w("Interrupted " + operation + " of " + dir, e);
+            Thread.currentThread().interrupt();
+            result.addFailed(dir);
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.v(operation + " " + dir + " > " + result + " in " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * Check that the file is the directory itself or is located inside it, the paths are compared after resolving the links.
+     */
+    private static boolean isInside(File file, File dir) {
+        try {
+            String path = file.getCanonicalPath();
+            String dirPath = dir.getCanonicalPath();
+            return path.equals(dirPath) || path.startsWith(dirPath.endsWith(File.separator) ? dirPath : dirPath + File.separator);
+        } catch (IOException e) {
+            Log.w("Can't resolve path " + file, e);
+            return false;
+        }
+    }
+
+    static boolean isSymlink(File file) {
+        try {
+            File parent = file.getParentFile();
+            File canonical = parent == null ? file : new File(parent.getCanonicalFile(), file.getName());
+            return !canonical.getCanonicalFile().equals(canonical.getAbsoluteFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private enum Operation {
+        DELETE, COPY
+    }
+
+    /**
+     * Directory in process. The pending counter holds one for the directory itself and one for each subdir or files batch in work, the
+     * directory is finished when the counter drops to zero.
+     */
+    private static final class Node {
+
+        private final Node parent;
+        private final File dir;
+        private final File dstDir;
+        private final boolean isIncludeDir;
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private Node(Node parent, File dir, File dstDir, boolean isIncludeDir) {
+            this.parent = parent;
+            this.dir = dir;
+            this.dstDir = dstDir;
+            this.isIncludeDir = isIncludeDir;
+        }
+
+    }
+
+    private static final class Walker {
+
+        private final Operation operation;
+        private final Result result;
+        private final ThreadPoolExecutor executor;
+        private final CountDownLatch done;
+
+        private Walker(Operation operation, Result result, ThreadPoolExecutor executor, CountDownLatch done) {
+            this.operation = operation;
+            this.result = result;
+            this.executor = executor;
+            this.done = done;
+        }
+
+        private void submit(final Node node) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    processDir(node);
+                }
+            }, node);
+        }
+
+        private void submit(final Node node, final List<File> files) {
+            node.pending.incrementAndGet();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (File file : files) {
+                            processFile(file, node.dstDir == null ? null : new File(node.dstDir, file.getName()));
+                        }
+                    } finally {
+                        complete(node);
+                    }
+                }
+            }, node);
+        }
+
+        private void execute(Runnable task, Node node) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                result.addFailed(node.dir);
+                complete(node);
+            }
+        }
+
+        /**
+         * Process the directory, the node is completed in any case, so a failure here never leaves walk() waiting forever.
+         */
+        private void processDir(Node node) {
+            try {
+                listDir(node);
+            } catch (RuntimeException e) {
+                Log.e("Fail to process directory " + node.dir, e);
+                result.addFailed(node.dir);
+            } finally {
+                complete(node);
+            }
+        }
+
+        private void listDir(Node node) {
+            if (operation == Operation.COPY && !node.dstDir.isDirectory() && !node.dstDir.mkdirs()) {
+                Log.w("Fail to create directory " + node.dstDir);
+                result.addFailed(node.dir);
+                return;
+            }
+            File[] children = node.dir.listFiles();
+            if (children == null) {
+                Log.w("Can't list directory " + node.dir);
+                result.addFailed(node.dir);
+                return;
+            }
+            List<File> batch = new ArrayList<>(Math.min(BATCH_SIZE, children.length));
+            for (File child : children) {
+                if (child.isDirectory() && !isSymlink(child)) {
+                    node.pending.incrementAndGet();
+                    submit(new Node(node, child, node.dstDir == null ? null : new File(node.dstDir, child.getName()), true));
+                } else {
+                    batch.add(child);
+                    if (batch.size() == BATCH_SIZE) {
+                        submit(node, batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+            }
+            for (File file : batch) {
+                processFile(file, node.dstDir == null ? null : new File(node.dstDir, file.getName()));
+            }
+        }
+
+        private void processFile(File file, File dstFile) {
+            try {
+                operateFile(file, dstFile);
+            } catch (RuntimeException e) {
+                Log.e("Fail to process file " + file, e);
+                result.addFailed(file);
+            }
+        }
+
+        private void operateFile(File file, File dstFile) {
+            if (operation == Operation.DELETE) {
+                if (file.delete()) {
+                    result.files.incrementAndGet();
+                } else {
+                    result.addFailed(file);
+                }
+            } else if (file.isDirectory() && isSymlink(file)) {
+                Log.w("Symbolic link is skipped " + file);
+                result.addSkipped();
+            } else {
+                long copied = FileIO.copy(file, dstFile);
+                if (copied >= 0) {
+                    result.files.incrementAndGet();
+                    result.bytes.addAndGet(copied);
+                } else {
+                    result.addFailed(file);
+                }
+            }
+        }
+
+        private void complete(Node node) {
+            while (node != null && node.pending.decrementAndGet() == 0) {
+                if (node.isIncludeDir) {
+                    if (operation == Operation.COPY || node.dir.delete()) {
+                        result.dirs.incrementAndGet();
+                    } else {
+                        result.addFailed(node.dir);
+                    }
+                }
+                if (node.parent == null) {
+                    done.countDown();
+                }
+                node = node.parent;
+            }
+        }
+
+    }
+
+    /**
+     * Result of the tree operation
+     */
+    public static final class Result {
+
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicInteger dirs = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final ConcurrentLinkedQueue<File> failed = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger failedCount = new AtomicInteger();
+
+        Result() {
+
+        }
+
+        void addFile(long byteCount) {
+            files.incrementAndGet();
+            bytes.addAndGet(byteCount);
+        }
+
+        void addDir() {
+            dirs.incrementAndGet();
+        }
+
+        void addSkipped() {
+            skipped.incrementAndGet();
+        }
+
+        /**
+         * Count the failed entry, the null entry (wrong argument) is counted but is not listed in getFailed()
+         */
+        void addFailed(File file) {
+            if (file != null) {
+                failed.add(file);
+            }
+            failedCount.incrementAndGet();
+        }
+
+        void addAll(Result other) {
+            failed.addAll(other.failed);
+            failedCount.addAndGet(other.failedCount.get());
+        }
+
+        static Result failed(File file) {
+            Result result = new Result();
+            result.addFailed(file);
+            return result;
+        }
+
+        /**
+         * @return true if all entries are processed without errors
+         */
+        public boolean isSuccess() {
+            return failedCount.get() == 0;
+        }
+
+        /**
+         * @return count of successfully processed files
+         */
+        public int getFileCount() {
+            return files.get();
+        }
+
+        /**
+         * @return count of successfully processed directories
+         */
+        public int getDirCount() {
+            return dirs.get();
+        }
+
+        /**
+         * @return count of copied bytes, 0 for delete
+         */
+        public long getByteCount() {
+            return bytes.get();
+        }
+
+        /**
+         * @return count of files which are not processed because they are up to date
+         */
+        public int getSkippedCount() {
+            return skipped.get();
+        }
+
+        /**
+         * @return count of failed entries
+         */
+        public int getFailedCount() {
+            return failedCount.get();
+        }
+
+        /**
+         * @return files and directories which are failed to process, except the null arguments
+         */
+        public List<File> getFailed() {
+            return new ArrayList<>(failed);
+        }
+
+        @Override
+        public String toString() {
+            return "files: " + files + ", dirs: " + dirs + ", bytes: " + bytes + ", skipped: " + skipped + ", failed: " + failedCount;
+        }
+
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import ua.at.tsvetkov.security.Md5;
+
+/**
+ * Incremental checksum with a common interface for the message digests (MD5, SHA-256) and CRC32. The result is a lower case hex string.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+abstract class Hasher {
+
+    static final String MD5 = "MD5";
+    static final String SHA_256 = "SHA-256";
+    static final String CRC32 = "CRC32";
+
+    /**
+     * @param algorithm MD5, SHA-256, CRC32 or other MessageDigest algorithm
+     * @return the hasher or null if the algorithm is not supported
+     */
+    static Hasher create(String algorithm) {
+        if (algorithm == null) {
+            return null;
+        }
+        if (CRC32.equalsIgnoreCase(algorithm)) {
+            return new Crc();
+        }
+        try {
+            return new Digest(MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    abstract void update(byte[] data, int offset, int length);
+
+    /**
+     * @return hex string of the checksum, the hasher is reset
+     */
+    abstract String getHexString();
+
+    // ==========================================================
+
+    private static final class Digest extends Hasher {
+
+        private final MessageDigest digest;
+
+        private Digest(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        void update(byte[] data, int offset, int length) {
+            digest.update(data, offset, length);
+        }
+
+        @Override
+        String getHexString() {
+            return Md5.hashToString(digest.digest());
+        }
+
+    }
+
+    private static final class Crc extends Hasher {
+
+        private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+        @Override
+        void update(byte[] data, int offset, int length) {
+            crc.update(data, offset, length);
+        }
+
+        @Override
+        String getHexString() {
+            String hex = String.format(Locale.US, "%08x", crc.getValue());
+            crc.reset();
+            return hex;
+        }
+
+    }
+
+}
@@ -0,0 +1,213 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Shared executor for the background file operations. The pool is small because the flash storage does not scale with a lot of parallel
+ * requests. The queue is bounded: when QUEUE_SIZE operations are waiting, the new operation is rejected, so the producer can't flood the
+ * memory with the pending tasks. The rejected operation is never run in the submitting thread (often the UI thread) and the submitting
+ * thread never waits: the FileFuture fails with RejectedExecutionException, a plain Runnable given to getExecutor() is rejected by
+ * execute().
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class IoExecutor {
+
+    public static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final int QUEUE_SIZE = 128;
+    private static final int KEEP_ALIVE_SEC = 30;
+
+    private static final BlockingQueue<Runnable> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SEC, TimeUnit.SECONDS, QUEUE,
+            new ThreadFactory() {
+                private final AtomicInteger number = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "IoExecutor #" + number.incrementAndGet());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("IoExecutor is shut down");
+                    }
+                    // Never wait for the free place or run the disk I/O here: the submitting thread is often the UI thread or holds a lock which
+                    // the queued tasks need
+                    Log.w("IoExecutor queue is full, the task is rejected");
+                    if (runnable instanceof FileFuture) {
+                        ((FileFuture<?>) runnable).reject();
+                    } else {
+                        throw new RejectedExecutionException("IoExecutor queue is full");
+                    }
+                }
+            });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static Executor mainThreadExecutor;
+
+    private IoExecutor() {
+
+    }
+
+    /**
+     * The shared executor, can be used for an own file operations
+     *
+     * @return the shared executor
+     */
+    public static Executor getExecutor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Executor which runs the tasks in the main (UI) thread
+     *
+     * @return main thread executor
+     */
+    public static synchronized Executor getMainThreadExecutor() {
+        if (mainThreadExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mainThreadExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return mainThreadExecutor;
+    }
+
+    /**
+     * Run the task in background. The callback is called in the main thread. If QUEUE_SIZE tasks are already waiting, the task is not run,
+     * the future fails with RejectedExecutionException and the callback gets null.
+     *
+     * @param task     the task
+     * @param callback the callback, possible to be null
+     * @param <T>      type of the task result
+     * @return future for cancel the task or wait for the result
+     */
+    public static <T> FileFuture<T> submit(Callable<T> task, CompleteCallback<T> callback) {
+        return submit(task, callback, callback == null ? null : getMainThreadExecutor());
+    }
+
+    /**
+     * Run the task in background. If QUEUE_SIZE tasks are already waiting, the task is not run, the future fails with
+     * RejectedExecutionException and the callback gets null.
+     *
+     * @param task             the task
+     * @param callback         the callback, possible to be null
+     * @param callbackExecutor executor for the callback delivery, for example getMainThreadExecutor()
+     * @param <T>              type of the task result
+     * @return future for cancel the task or wait for the result
+     */
+    public static <T> FileFuture<T> submit(Callable<T> task, CompleteCallback<T> callback, Executor callbackExecutor) {
+        FileFuture<T> future = new FileFuture<>(task, callback, callbackExecutor);
+        EXECUTOR.execute(future);
+        return future;
+    }
+
+    /**
+     * Cancellable result of the asynchronous file operation. Cancel with interruption stops the channel based copy, the partially copied
+     * file is deleted. The callback is not called for the canceled operation.
+     *
+     * @param <T> type of the operation result
+     */
+    public static final class FileFuture<T> extends FutureTask<T> {
+
+        private final CompleteCallback<T> callback;
+        private final Executor callbackExecutor;
+
+        private FileFuture(Callable<T> callable, CompleteCallback<T> callback, Executor callbackExecutor) {
+            super(callable);
+            this.callback = callback;
+            this.callbackExecutor = callbackExecutor;
+        }
+
+        /**
+         * Fail the future which is not accepted by the executor, the callback is delivered as for the failed operation.
+         */
+        private void reject() {
+            setException(new RejectedExecutionException("IoExecutor queue is full"));
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            T result = null;
+            try {
+                result = get();
+            } catch (CancellationException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e("File operation is failed", e.getCause());
+            }
+            final T value = result;
+            Runnable delivery = new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        callback.onComplete(value);
+                    }
+                }
+            };
+            if (callbackExecutor == null) {
+                delivery.run();
+            } else {
+                callbackExecutor.execute(delivery);
+            }
+        }
+
+    }
+
+}
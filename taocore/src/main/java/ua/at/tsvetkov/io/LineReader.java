@@ -0,0 +1,399 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Line reader for huge text files. The bytes are read from the channel and decoded into one reusable char buffer, each line is returned as
+ * a CharSequence view of this buffer, so no String is created per line. The view is valid until the next readLine() call, call toString()
+ * on it to keep the line. Lines are separated by '\n', a trailing '\r' is dropped.
+ * <p/>
+ * The file can be processed in parallel: it is split into byte ranges at line boundaries and every range is read by its own reader on a
+ * separate thread. The splitting looks for the '\n' byte, so it works for UTF-8 and other ASCII compatible charsets, not for UTF-16.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class LineReader implements Closeable {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BYTE_BUFFER_SIZE = 64 * 1024;
+    private static final int CHAR_BUFFER_SIZE = 8192;
+    private static final byte NEW_LINE = '\n';
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long rangeEnd;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes;
+    private final Line line = new Line();
+    private char[] chars = new char[CHAR_BUFFER_SIZE];
+    private int start;
+    private int scan;
+    private int end;
+    private long position;
+    private long lineNumber;
+    private boolean isInputEnd;
+    private boolean isFlushed;
+    private boolean isClosed;
+
+    private LineReader(RandomAccessFile file, FileChannel channel, Charset charset, long rangeStart, long rangeEnd) {
+        this.file = file;
+        this.channel = channel;
+        this.rangeEnd = rangeEnd;
+        position = rangeStart;
+        decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes = BufferPool.acquireDirect(BYTE_BUFFER_SIZE);
+    }
+
+    /**
+     * Open the UTF-8 file.
+     *
+     * @param file the file
+     * @return the reader, must be closed
+     * @throws IOException if the file can't be opened
+     */
+    public static LineReader open(File file) throws IOException {
+        return open(file, UTF_8);
+    }
+
+    /**
+     * Open the file.
+     *
+     * @param file    the file
+     * @param charset charset of the file
+     * @return the reader, must be closed
+     * @throws IOException if the file can't be opened
+     */
+    public static LineReader open(File file, Charset charset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        return new LineReader(raf, raf.getChannel(), charset, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Process the file in parallel. The file is split into ranges at line boundaries, about one range per thread, and the processor is
+     * called for every range with a reader of this range.
+     *
+     * @param file        the file
+     * @param charset     ASCII compatible charset of the file, for example UTF-8
+     * @param parallelism max count of the threads
+     * @param processor   the range processor, called from the worker threads
+     * @param <T>         type of the range result
+     * @return results of the ranges in the file order, or null if failed
+     */
+    public static <T> List<T> process(File file, final Charset charset, int parallelism, final RangeProcessor<T> processor) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final long[] bounds = split(channel, Math.max(1, parallelism));
+            final int count = bounds.length - 1;
+            final List<T> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                results.add(null);
+            }
+            final AtomicBoolean isFailed = new AtomicBoolean();
+            final CountDownLatch done = new CountDownLatch(count);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(count, count, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger number = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable, "LineReader #" + number.incrementAndGet());
+                        }
+                    });
+            try {
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            LineReader reader = new LineReader(null, channel, charset, bounds[index], bounds[index + 1]);
+                            try {
+                                T result = processor.process(index, reader);
+                                synchronized (results) {
+                                    results.set(index, result);
+                                }
+                            } catch (Exception e) {
+                                Log.e("Line range " + index + " processing is failed", e);
+                                isFailed.set(true);
+                            } finally {
+                                FileIO.close(reader);
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+                done.await();
+            } finally {
+                executor.shutdownNow();
+            }
+            if (isFailed.get()) {
+                return null;
+            }
+            synchronized (results) {
+                return new ArrayList<>(results);
+            }
+        } catch (IOException e) {
+            Log.e("Can't read file " + file, e);
+            return null;
+        } catch (InterruptedException e) {
+            Log.w("Line processing is interrupted " + file, e);
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            FileIO.close(raf);
+        }
+    }
+
+    /**
+     * Read the next line.
+     *
+     * @return view of the line, valid until the next call, or null at the end of file (of range)
+     * @throws IOException if the file can't be read
+     */
+    public CharSequence readLine() throws IOException {
+        while (true) {
+            for (; scan < end; scan++) {
+                if (chars[scan] == NEW_LINE) {
+                    int lineEnd = scan;
+                    scan++;
+                    return nextLine(lineEnd);
+                }
+            }
+            if (!fill()) {
+                return start < end ? nextLine(end) : null;
+            }
+        }
+    }
+
+    /**
+     * @return number of the last returned line, starting from 1, counted from the start of the range
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        BufferPool.releaseDirect(bytes);
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    // ==========================================================
+
+    private CharSequence nextLine(int lineEnd) {
+        int length = lineEnd - start;
+        if (length > 0 && chars[lineEnd - 1] == '\r') {
+            length--;
+        }
+        line.set(chars, start, length);
+        start = scan = Math.max(scan, lineEnd);
+        lineNumber++;
+        return line;
+    }
+
+    /**
+     * Move the not returned chars to the buffer start, grow the buffer if it has no room for a surrogate pair, read and decode the next
+     * block.
+     *
+     * @return false if the input is over
+     */
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(chars, start, chars, 0, end - start);
+            scan -= start;
+            end -= start;
+            start = 0;
+        }
+        if (isFlushed) {
+            return false;
+        }
+        // A surrogate pair is decoded in one step, with less than 2 chars of room the decoder overflows without progress
+        if (chars.length - end < 2) {
+            char[] larger = new char[chars.length * 2];
+            System.arraycopy(chars, 0, larger, 0, end);
+            chars = larger;
+        }
+        if (!isInputEnd) {
+            long available = rangeEnd - position;
+            if (available <= 0) {
+                isInputEnd = true;
+            } else {
+                if (available < bytes.remaining()) {
+                    bytes.limit(bytes.position() + (int) available);
+                }
+                int count = channel.read(bytes, position);
+                if (count < 0) {
+                    isInputEnd = true;
+                } else {
+                    position += count;
+                }
+            }
+        }
+        CharBuffer out = CharBuffer.wrap(chars, end, chars.length - end);
+        bytes.flip();
+        boolean isUnderflow = decoder.decode(bytes, out, isInputEnd).isUnderflow();
+        bytes.compact();
+        if (isInputEnd && isUnderflow && decoder.flush(out).isUnderflow()) {
+            isFlushed = true;
+        }
+        end = out.position();
+        return true;
+    }
+
+    /**
+     * Split the file into ranges which start right after a '\n' byte.
+     *
+     * @return range bounds, count of ranges is length - 1
+     */
+    private static long[] split(FileChannel channel, int parts) throws IOException {
+        long size = channel.size();
+        long[] bounds = new long[parts + 1];
+        bounds[parts] = size;
+        ByteBuffer buffer = BufferPool.acquireDirect(CHAR_BUFFER_SIZE);
+        try {
+            for (int i = 1; i < parts; i++) {
+                long bound = Math.max(bounds[i - 1], size * i / parts);
+                bounds[i] = bound == 0 ? 0 : findLineStart(channel, bound - 1, size, buffer);
+            }
+        } finally {
+            BufferPool.releaseDirect(buffer);
+        }
+        return bounds;
+    }
+
+    private static long findLineStart(FileChannel channel, long from, long size, ByteBuffer buffer) throws IOException {
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            if (count <= 0) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                if (buffer.get(i) == NEW_LINE) {
+                    return position + i + 1;
+                }
+            }
+            position += count;
+        }
+        return size;
+    }
+
+    // ==========================================================
+
+    /**
+     * Processor of one line range in the parallel processing.
+     *
+     * @param <T> type of the range result
+     */
+    public interface RangeProcessor<T> {
+
+        /**
+         * Read the lines of the range. The reader is closed after the call.
+         *
+         * @param index  range index
+         * @param reader the reader of the range
+         * @return result of the range
+         * @throws Exception the processing is failed, the whole processing returns null
+         */
+        T process(int index, LineReader reader) throws Exception;
+
+    }
+
+    /**
+     * Mutable view of the line in the reader buffer.
+     */
+    private static final class Line implements CharSequence {
+
+        private char[] array;
+        private int offset;
+        private int length;
+
+        private void set(char[] array, int offset, int length) {
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+            }
+            return array[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end + ", length: " + length);
+            }
+            return CharBuffer.wrap(array, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(array, offset, length);
+        }
+
+    }
+
+}
@@ -0,0 +1,390 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Memory mapped region of a file. The data is read directly from the page cache, so a multi-hundred-MB file (offline map tiles, database)
+ * can be read without the heap allocations proportional to file size. The region is mapped by the parts up to REGION_SIZE bytes, so the
+ * files bigger than 2 GB are supported too.
+ * <p/>
+ * Random access: getByte(long), getInt(long), getLong(long), read(long, byte[], int, int), slice(long, int). Sequential access: position(),
+ * seek(long) and the relative get methods.
+ * <p/>
+ * close() unmaps the region immediately where the runtime allows it (Android NioUtils, JVM cleaner), otherwise the region is unmapped by the
+ * GC. Any access after close() throws IllegalStateException. If slice() was called, close() leaves the unmapping to the GC, because the
+ * access to an unmapped slice crashes the process: the slices stay valid until they are unreachable. The class is not thread safe, use one
+ * instance per thread or synchronize.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class MappedFile implements Closeable {
+
+    static final long REGION_SIZE = 1L << 30;
+
+    private final File file;
+    private final long length;
+    private MappedByteBuffer[] regions;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+    private long position;
+    private boolean isSliced;
+
+    private MappedFile(File file, MappedByteBuffer[] regions, long length) {
+        this.file = file;
+        this.regions = regions;
+        this.length = length;
+    }
+
+    /**
+     * Map the whole file for read
+     *
+     * @param file the file
+     * @return mapped file
+     * @throws IOException if the file can't be mapped
+     */
+    public static MappedFile open(File file) throws IOException {
+        return open(file, FileChannel.MapMode.READ_ONLY, 0, -1);
+    }
+
+    /**
+     * Map the region of file
+     *
+     * @param file   the file
+     * @param mode   READ_ONLY, READ_WRITE or PRIVATE (copy on write, the file must be writable although it is never changed)
+     * @param offset offset of region in the file
+     * @param length length of region, or -1 for the rest of file
+     * @return mapped file
+     * @throws IOException if the file can't be mapped
+     */
+    public static MappedFile open(File file, FileChannel.MapMode mode, long offset, long length) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset < 0");
+        }
+        if (mode == FileChannel.MapMode.PRIVATE && !file.isFile()) {
+            // "rw" below would create it
+            throw new FileNotFoundException(file.getPath());
+        }
+        // The private mapping needs the channel opened for write
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (length < 0) {
+                length = Math.max(0, channel.size() - offset);
+            }
+            int count = (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+            MappedByteBuffer[] regions = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long regionOffset = (long) i * REGION_SIZE;
+                regions[i] = channel.map(mode, offset + regionOffset, Math.min(REGION_SIZE, length - regionOffset));
+            }
+            return new MappedFile(file, regions, length);
+        } finally {
+            FileIO.close(raf);
+        }
+    }
+
+    /**
+     * @return length of the mapped region
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return the mapped file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Set the byte order for the multi byte reads, BIG_ENDIAN by default.
+     *
+     * @param order byte order
+     * @return this
+     */
+    public MappedFile order(ByteOrder order) {
+        this.order = order;
+        for (MappedByteBuffer region : checkOpen()) {
+            region.order(order);
+        }
+        return this;
+    }
+
+    /**
+     * @return current position for the sequential reads
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Set the current position for the sequential reads.
+     *
+     * @param position new position
+     * @return this
+     */
+    public MappedFile seek(long position) {
+        if (position < 0 || position > length) {
+            throw new IndexOutOfBoundsException("position " + position + " of " + length);
+        }
+        this.position = position;
+        return this;
+    }
+
+    /**
+     * @return count of bytes from the current position to the end
+     */
+    public long remaining() {
+        return length - position;
+    }
+
+    /**
+     * Ask the system to load the region into the memory, useful before a sequential pass.
+     */
+    public void load() {
+        for (MappedByteBuffer region : checkOpen()) {
+            region.load();
+        }
+    }
+
+    // ==========================================================
+
+    public byte getByte(long index) {
+        checkIndex(index, 1);
+        return regions[(int) (index / REGION_SIZE)].get((int) (index % REGION_SIZE));
+    }
+
+    public short getShort(long index) {
+        checkIndex(index, 2);
+        MappedByteBuffer region = regions[(int) (index / REGION_SIZE)];
+        int offset = (int) (index % REGION_SIZE);
+        if (offset + 2 <= region.limit()) {
+            return region.getShort(offset);
+        }
+        return (short) assemble(index, 2);
+    }
+
+    public int getInt(long index) {
+        checkIndex(index, 4);
+        MappedByteBuffer region = regions[(int) (index / REGION_SIZE)];
+        int offset = (int) (index % REGION_SIZE);
+        if (offset + 4 <= region.limit()) {
+            return region.getInt(offset);
+        }
+        return (int) assemble(index, 4);
+    }
+
+    public long getLong(long index) {
+        checkIndex(index, 8);
+        MappedByteBuffer region = regions[(int) (index / REGION_SIZE)];
+        int offset = (int) (index % REGION_SIZE);
+        if (offset + 8 <= region.limit()) {
+            return region.getLong(offset);
+        }
+        return assemble(index, 8);
+    }
+
+    /**
+     * Copy the bytes from the absolute position into the array.
+     *
+     * @param index  position in the region
+     * @param dst    destination array
+     * @param offset offset in the array
+     * @param count  count of bytes
+     */
+    public void read(long index, byte[] dst, int offset, int count) {
+        checkIndex(index, count);
+        while (count > 0) {
+            ByteBuffer region = regions[(int) (index / REGION_SIZE)].duplicate();
+            int regionOffset = (int) (index % REGION_SIZE);
+            int chunk = Math.min(count, region.limit() - regionOffset);
+            region.position(regionOffset);
+            region.get(dst, offset, chunk);
+            index += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    /**
+     * Return the view of the part of region without copying. The part must not cross the REGION_SIZE boundary. The view stays valid after
+     * close(), the region is unmapped by the GC when all views are unreachable.
+     *
+     * @param index position in the region
+     * @param count count of bytes
+     * @return read only view with the current byte order
+     */
+    public ByteBuffer slice(long index, int count) {
+        checkIndex(index, count);
+        int regionOffset = (int) (index % REGION_SIZE);
+        ByteBuffer region = regions[(int) (index / REGION_SIZE)].asReadOnlyBuffer();
+        if (regionOffset + count > region.limit()) {
+            throw new IllegalArgumentException("Slice crosses the mapped region boundary at " + (index - regionOffset + region.limit()));
+        }
+        region.position(regionOffset);
+        region.limit(regionOffset + count);
+        isSliced = true;
+        return region.slice().order(order);
+    }
+
+    // ==========================================================
+
+    public byte get() {
+        byte value = getByte(position);
+        position += 1;
+        return value;
+    }
+
+    public short getShort() {
+        short value = getShort(position);
+        position += 2;
+        return value;
+    }
+
+    public int getInt() {
+        int value = getInt(position);
+        position += 4;
+        return value;
+    }
+
+    public long getLong() {
+        long value = getLong(position);
+        position += 8;
+        return value;
+    }
+
+    /**
+     * Copy the bytes from the current position into the array.
+     *
+     * @param dst    destination array
+     * @param offset offset in the array
+     * @param count  count of bytes
+     */
+    public void read(byte[] dst, int offset, int count) {
+        read(position, dst, offset, count);
+        position += count;
+    }
+
+    /**
+     * Flush changes of READ_WRITE mapping to the storage device.
+     */
+    public void force() {
+        for (MappedByteBuffer region : checkOpen()) {
+            region.force();
+        }
+    }
+
+    /**
+     * Unmap the region. Any access after close throws IllegalStateException. If slices were taken, the region is left to the GC.
+     */
+    @Override
+    public void close() {
+        if (regions == null) {
+            return;
+        }
+        MappedByteBuffer[] closed = regions;
+        regions = null;
+        if (isSliced) {
+            return;
+        }
+        for (MappedByteBuffer region : closed) {
+            unmap(region);
+        }
+    }
+
+    public boolean isClosed() {
+        return regions == null;
+    }
+
+    // ==========================================================
+
+    private MappedByteBuffer[] checkOpen() {
+        if (regions == null) {
+            throw new IllegalStateException("MappedFile is closed " + file);
+        }
+        return regions;
+    }
+
+    private void checkIndex(long index, int count) {
+        checkOpen();
+        if (index < 0 || count < 0) {
+            throw new IndexOutOfBoundsException("index " + index + ", count " + count + " of " + length);
+        }
+        if (index + count > length) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    private long assemble(long index, int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            long b = getByte(index + i) & 0xFF;
+            if (order == ByteOrder.BIG_ENDIAN) {
+                value = (value << 8) | b;
+            } else {
+                value |= b << (8 * i);
+            }
+        }
+        return value;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Android
+            Class<?> nioUtils = Class.forName("java.nio.NioUtils");
+            Method free = nioUtils.getMethod("freeDirectBuffer", ByteBuffer.class);
+            free.invoke(null, buffer);
+            return;
+        } catch (Exception e) {
+            // not Android, try the JVM cleaner
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            Log.v("Explicit unmap is not supported, the buffer will be unmapped by GC");
+        }
+    }
+
+}
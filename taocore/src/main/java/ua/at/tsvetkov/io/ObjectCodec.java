@@ -0,0 +1,967 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ua.at.tsvetkov.util.ClassFields;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Binary codec of plain objects for the disk cache, a fast replacement of java.io.Serializable. The fields of each class are reflected
+ * once (see ClassFields), the primitives are read and written without boxing, the data is buffered and streamed directly to and from a
+ * FileChannel.
+ * <p/>
+ * Encoded are all not static and not transient fields: primitives and their wrappers, String, Date, enums, arrays of primitives, String[],
+ * List, Set, Map and other plain objects. An object class needs a constructor without arguments (of any visibility). The object graph
+ * must be a tree: the shared references are written as copies, a cycle or a nesting deeper than MAX_DEPTH fails the write with
+ * IOException.
+ * <p/>
+ * Schema versioning: every class is written once per stream with the fingerprint of its field names and types. If the class is changed
+ * since the data was written, the read fails with the exception (load() returns null), so the stale cache is treated as a miss.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class ObjectCodec {
+
+    /**
+     * Max nesting of objects, collections and maps.
+     */
+    public static final int MAX_DEPTH = 1000;
+
+    private static final int MAGIC = 0x54414f4f;
+    private static final byte VERSION = 1;
+    private static final String EXT = ".bin";
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHAR = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte BYTES = 10;
+    private static final byte INTS = 11;
+    private static final byte LONGS = 12;
+    private static final byte DOUBLES = 13;
+    private static final byte STRINGS = 14;
+    private static final byte DATE = 15;
+    private static final byte LIST = 16;
+    private static final byte SET = 17;
+    private static final byte MAP = 18;
+    private static final byte ENUM = 19;
+    private static final byte OBJECT = 20;
+    private static final byte FLOATS = 21;
+    private static final byte SHORTS = 22;
+    private static final byte CHARS = 23;
+    private static final byte BOOLEANS = 24;
+
+    private static final ConcurrentHashMap<Class<?>, Plan> PLANS = new ConcurrentHashMap<>();
+
+    private ObjectCodec() {
+
+    }
+
+    /**
+     * Save the object into the file FileIO.getCacheDir() + name + ".bin".
+     *
+     * @param name cache entry name
+     * @param obj  the object
+     * @return true if success
+     */
+    public static boolean saveToCache(String name, Object obj) {
+        return save(new File(FileIO.getCacheFileName(name + EXT)), obj);
+    }
+
+    /**
+     * Load the object saved by saveToCache().
+     *
+     * @param name cache entry name
+     * @param type expected type of the object
+     * @param <T>  type of the object
+     * @return the object or null if absent, corrupt or written by other version of its classes
+     */
+    public static <T> T loadFromCache(String name, Class<T> type) {
+        return load(new File(FileIO.getCacheFileName(name + EXT)), type);
+    }
+
+    /**
+     * Save the object into the file. The object is written to a unique temp file near the target, flushed to the storage device and renamed,
+     * so the reader never sees a partial file and concurrent saves of one file don't mix their data.
+     *
+     * @param file the file
+     * @param obj  the object
+     * @return true if success
+     */
+    public static boolean save(File file, Object obj) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = null;
+        FileOutputStream out = null;
+        boolean isSuccess = false;
+        try {
+            tmp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+            out = new FileOutputStream(tmp);
+            write(out.getChannel(), obj);
+            out.getFD().sync();
+            isSuccess = true;
+        } catch (IOException | RuntimeException e) {
+            Log.e("Can't save object to " + file, e);
+        } finally {
+            if (!FileIO.close(out)) {
+                isSuccess = false;
+            }
+        }
+        if (isSuccess && tmp.renameTo(file)) {
+            return AtomicWriter.syncDir(dir);
+        }
+        if (tmp != null && tmp.exists() && !tmp.delete()) {
+            Log.w("Fail to delete temp file " + tmp);
+        }
+        return false;
+    }
+
+    /**
+     * Load the object from the file.
+     *
+     * @param file the file
+     * @param type expected type of the object
+     * @param <T>  type of the object
+     * @return the object or null if absent, corrupt or written by other version of its classes
+     */
+    public static <T> T load(File file, Class<T> type) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return read(in.getChannel(), type);
+        } catch (IOException | RuntimeException e) {
+            Log.w("Can't load object from " + file, e);
+            return null;
+        } finally {
+            FileIO.close(in);
+        }
+    }
+
+    /**
+     * Write the object to the channel from its current position.
+     *
+     * @param channel the channel
+     * @param obj     the object, possible to be null
+     * @throws IOException if the object contains not supported type or the channel can't be written
+     */
+    public static void write(FileChannel channel, Object obj) throws IOException {
+        Output out = new Output(channel);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeValue(obj);
+            out.flush();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Read the object from the channel from its current position.
+     *
+     * @param channel the channel
+     * @param type    expected type of the object
+     * @param <T>     type of the object
+     * @return the object, possible to be null if null was written
+     * @throws IOException if the data is corrupt or written by other version of its classes
+     */
+    public static <T> T read(FileChannel channel, Class<T> type) throws IOException {
+        ClassLoader loader = type.getClassLoader();
+        Input in = new Input(channel, loader == null ? ObjectCodec.class.getClassLoader() : loader);
+        try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Wrong object stream header");
+            }
+            Object value = in.readValue();
+            if (value != null && !type.isInstance(value)) {
+                throw new IOException("Object of type " + value.getClass().getName() + " is not " + type.getName());
+            }
+            return type.cast(value);
+        } finally {
+            in.release();
+        }
+    }
+
+    // ==========================================================
+
+    private static Plan getPlan(Class<?> cl) throws IOException {
+        Plan plan = PLANS.get(cl);
+        if (plan == null) {
+            plan = new Plan(cl);
+            PLANS.putIfAbsent(cl, plan);
+        }
+        return plan;
+    }
+
+    private static Object convert(Object value, Class<?> type) throws IOException {
+        if (value == null || type.isInstance(value) || Modifier.isAbstract(type.getModifiers())) {
+            return value;
+        }
+        try {
+            if (value instanceof Collection && Collection.class.isAssignableFrom(type)) {
+                @SuppressWarnings("unchecked")
+                Collection<Object> collection = (Collection<Object>) type.getDeclaredConstructor().newInstance();
+                collection.addAll((Collection<?>) value);
+                return collection;
+            }
+            if (value instanceof Map && Map.class.isAssignableFrom(type)) {
+                @SuppressWarnings("unchecked")
+                Map<Object, Object> map = (Map<Object, Object>) type.getDeclaredConstructor().newInstance();
+                map.putAll((Map<?, ?>) value);
+                return map;
+            }
+        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException e) {
+            throw new IOException("Can't create " + type.getName(), e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Can't create " + type.getName(), e.getCause());
+        }
+        return value;
+    }
+
+    // ==========================================================
+
+    /**
+     * Field plan of the class.
+     */
+    private static final class Plan {
+
+        private final Class<?> type;
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final byte[] kinds;
+        private final int fingerprint;
+
+        private Plan(Class<?> type) throws IOException {
+            this.type = type;
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException | SecurityException e) {
+                throw new IOException("Class " + type.getName() + " has no constructor without arguments", e);
+            }
+            fields = ClassFields.getInstance(type);
+            kinds = new byte[fields.length];
+            int hash = type.getName().hashCode();
+            for (int i = 0; i < fields.length; i++) {
+                Class<?> fieldType = fields[i].getType();
+                kinds[i] = getPrimitiveKind(fieldType);
+                hash = 31 * hash + fields[i].getName().hashCode();
+                hash = 31 * hash + fieldType.getName().hashCode();
+            }
+            fingerprint = hash;
+        }
+
+        private Object newInstance() throws IOException {
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                throw new IOException("Can't create " + type.getName(), e);
+            }
+        }
+
+        private static byte getPrimitiveKind(Class<?> type) {
+            if (type == boolean.class) {
+                return BOOLEAN;
+            } else if (type == byte.class) {
+                return BYTE;
+            } else if (type == short.class) {
+                return SHORT;
+            } else if (type == char.class) {
+                return CHAR;
+            } else if (type == int.class) {
+                return INT;
+            } else if (type == long.class) {
+                return LONG;
+            } else if (type == float.class) {
+                return FLOAT;
+            } else if (type == double.class) {
+                return DOUBLE;
+            }
+            return OBJECT;
+        }
+
+    }
+
+    /**
+     * Buffered writer to the channel.
+     */
+    private static final class Output {
+
+        private final FileChannel channel;
+        private final byte[] array = BufferPool.acquire(BufferPool.MAX_SIZE);
+        private final ByteBuffer buffer = ByteBuffer.wrap(array);
+        private final Map<Class<?>, Integer> classes = new HashMap<>();
+        private final Set<Object> path = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        private Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof String) {
+                writeByte(STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                writeByte(INT);
+                writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                writeByte(LONG);
+                writeLong((Long) value);
+            } else if (value instanceof Boolean) {
+                writeByte(BOOLEAN);
+                writeByte((Boolean) value ? 1 : 0);
+            } else if (value instanceof Double) {
+                writeByte(DOUBLE);
+                writeLong(Double.doubleToRawLongBits((Double) value));
+            } else if (value instanceof Float) {
+                writeByte(FLOAT);
+                writeInt(Float.floatToRawIntBits((Float) value));
+            } else if (value instanceof Byte) {
+                writeByte(BYTE);
+                writeByte((Byte) value);
+            } else if (value instanceof Short) {
+                writeByte(SHORT);
+                ensure(2);
+                buffer.putShort((Short) value);
+            } else if (value instanceof Character) {
+                writeByte(CHAR);
+                ensure(2);
+                buffer.putChar((Character) value);
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                writeByte(BYTES);
+                writeVarInt(bytes.length);
+                writeBytes(bytes);
+            } else if (value instanceof int[]) {
+                int[] ints = (int[]) value;
+                writeByte(INTS);
+                writeVarInt(ints.length);
+                for (int item : ints) {
+                    writeInt(item);
+                }
+            } else if (value instanceof long[]) {
+                long[] longs = (long[]) value;
+                writeByte(LONGS);
+                writeVarInt(longs.length);
+                for (long item : longs) {
+                    writeLong(item);
+                }
+            } else if (value instanceof double[]) {
+                double[] doubles = (double[]) value;
+                writeByte(DOUBLES);
+                writeVarInt(doubles.length);
+                for (double item : doubles) {
+                    writeLong(Double.doubleToRawLongBits(item));
+                }
+            } else if (value instanceof float[]) {
+                float[] floats = (float[]) value;
+                writeByte(FLOATS);
+                writeVarInt(floats.length);
+                for (float item : floats) {
+                    writeInt(Float.floatToRawIntBits(item));
+                }
+            } else if (value instanceof short[]) {
+                short[] shorts = (short[]) value;
+                writeByte(SHORTS);
+                writeVarInt(shorts.length);
+                for (short item : shorts) {
+                    ensure(2);
+                    buffer.putShort(item);
+                }
+            } else if (value instanceof char[]) {
+                char[] chars = (char[]) value;
+                writeByte(CHARS);
+                writeVarInt(chars.length);
+                for (char item : chars) {
+                    ensure(2);
+                    buffer.putChar(item);
+                }
+            } else if (value instanceof boolean[]) {
+                boolean[] booleans = (boolean[]) value;
+                writeByte(BOOLEANS);
+                writeVarInt(booleans.length);
+                for (boolean item : booleans) {
+                    writeByte(item ? 1 : 0);
+                }
+            } else if (value instanceof String[]) {
+                String[] strings = (String[]) value;
+                writeByte(STRINGS);
+                writeVarInt(strings.length);
+                for (String item : strings) {
+                    writeValue(item);
+                }
+            } else if (value instanceof Date) {
+                writeByte(DATE);
+                writeLong(((Date) value).getTime());
+            } else if (value instanceof List || value instanceof Set) {
+                Collection<?> collection = (Collection<?>) value;
+                enter(value);
+                writeByte(value instanceof List ? LIST : SET);
+                writeVarInt(collection.size());
+                for (Object item : collection) {
+                    writeValue(item);
+                }
+                path.remove(value);
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                enter(value);
+                writeByte(MAP);
+                writeVarInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+                path.remove(value);
+            } else if (value instanceof Enum) {
+                Enum<?> item = (Enum<?>) value;
+                writeByte(ENUM);
+                writeClass(item.getDeclaringClass(), 0);
+                writeString(item.name());
+            } else if (value.getClass().isArray() || value instanceof Collection) {
+                throw new IOException("Not supported type " + value.getClass().getName());
+            } else {
+                Plan plan = getPlan(value.getClass());
+                enter(value);
+                writeByte(OBJECT);
+                writeClass(plan.type, plan.fingerprint);
+                writeFields(plan, value);
+                path.remove(value);
+            }
+        }
+
+        /**
+         * Add the container to the path from the root, reject a cycle before it overflows the stack.
+         */
+        private void enter(Object value) throws IOException {
+            if (path.size() >= MAX_DEPTH) {
+                throw new IOException("Object graph is nested deeper than " + MAX_DEPTH);
+            }
+            if (!path.add(value)) {
+                throw new IOException("Cyclic reference to " + value.getClass().getName() + ", the object graph must be a tree");
+            }
+        }
+
+        private void writeFields(Plan plan, Object obj) throws IOException {
+            try {
+                for (int i = 0; i < plan.fields.length; i++) {
+                    Field field = plan.fields[i];
+                    switch (plan.kinds[i]) {
+                        case BOOLEAN:
+                            writeByte(field.getBoolean(obj) ? 1 : 0);
+                            break;
+                        case BYTE:
+                            writeByte(field.getByte(obj));
+                            break;
+                        case SHORT:
+                            ensure(2);
+                            buffer.putShort(field.getShort(obj));
+                            break;
+                        case CHAR:
+                            ensure(2);
+                            buffer.putChar(field.getChar(obj));
+                            break;
+                        case INT:
+                            writeInt(field.getInt(obj));
+                            break;
+                        case LONG:
+                            writeLong(field.getLong(obj));
+                            break;
+                        case FLOAT:
+                            writeInt(Float.floatToRawIntBits(field.getFloat(obj)));
+                            break;
+                        case DOUBLE:
+                            writeLong(Double.doubleToRawLongBits(field.getDouble(obj)));
+                            break;
+                        default:
+                            writeValue(field.get(obj));
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException("Can't access field of " + plan.type.getName(), e);
+            }
+        }
+
+        /**
+         * Write the class reference: the index of the already written class, or 0 and the class name with fingerprint.
+         */
+        private void writeClass(Class<?> cl, int fingerprint) throws IOException {
+            Integer index = classes.get(cl);
+            if (index != null) {
+                writeVarInt(index);
+                return;
+            }
+            classes.put(cl, classes.size() + 1);
+            writeVarInt(0);
+            writeString(cl.getName());
+            writeInt(fingerprint);
+        }
+
+        private void writeString(String value) throws IOException {
+            int length = value.length();
+            writeVarInt(length);
+            for (int i = 0; i < length; i++) {
+                ensure(3);
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xc0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3f)));
+                } else {
+                    buffer.put((byte) (0xe0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    buffer.put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buffer.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void writeByte(int value) throws IOException {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        private void writeInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        private void writeLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes.length <= buffer.remaining()) {
+                buffer.put(bytes);
+                return;
+            }
+            flush();
+            ByteBuffer data = ByteBuffer.wrap(bytes);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        private void ensure(int count) throws IOException {
+            if (buffer.remaining() < count) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void release() {
+            BufferPool.release(array);
+        }
+
+    }
+
+    /**
+     * Buffered reader from the channel.
+     */
+    private static final class Input {
+
+        private final FileChannel channel;
+        private final ClassLoader loader;
+        private final byte[] array = BufferPool.acquire(BufferPool.MAX_SIZE);
+        private final ByteBuffer buffer = ByteBuffer.wrap(array);
+        private final List<Object> classes = new ArrayList<>();
+        private final long size;
+        private long position;
+        private char[] chars = new char[64];
+        private int depth;
+
+        private Input(FileChannel channel, ClassLoader loader) throws IOException {
+            this.channel = channel;
+            this.loader = loader;
+            size = channel.size();
+            position = channel.position();
+            buffer.limit(0);
+        }
+
+        private Object readValue() throws IOException {
+            byte tag = readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case INT:
+                    return readInt();
+                case LONG:
+                    return readLong();
+                case BOOLEAN:
+                    return readByte() != 0;
+                case DOUBLE:
+                    return Double.longBitsToDouble(readLong());
+                case FLOAT:
+                    return Float.intBitsToFloat(readInt());
+                case BYTE:
+                    return readByte();
+                case SHORT:
+                    ensure(2);
+                    return buffer.getShort();
+                case CHAR:
+                    ensure(2);
+                    return buffer.getChar();
+                case BYTES: {
+                    byte[] bytes = new byte[readLength()];
+                    readBytes(bytes);
+                    return bytes;
+                }
+                case INTS: {
+                    int[] ints = new int[readLength()];
+                    for (int i = 0; i < ints.length; i++) {
+                        ints[i] = readInt();
+                    }
+                    return ints;
+                }
+                case LONGS: {
+                    long[] longs = new long[readLength()];
+                    for (int i = 0; i < longs.length; i++) {
+                        longs[i] = readLong();
+                    }
+                    return longs;
+                }
+                case DOUBLES: {
+                    double[] doubles = new double[readLength()];
+                    for (int i = 0; i < doubles.length; i++) {
+                        doubles[i] = Double.longBitsToDouble(readLong());
+                    }
+                    return doubles;
+                }
+                case FLOATS: {
+                    float[] floats = new float[readLength()];
+                    for (int i = 0; i < floats.length; i++) {
+                        floats[i] = Float.intBitsToFloat(readInt());
+                    }
+                    return floats;
+                }
+                case SHORTS: {
+                    short[] shorts = new short[readLength()];
+                    for (int i = 0; i < shorts.length; i++) {
+                        ensure(2);
+                        shorts[i] = buffer.getShort();
+                    }
+                    return shorts;
+                }
+                case CHARS: {
+                    char[] characters = new char[readLength()];
+                    for (int i = 0; i < characters.length; i++) {
+                        ensure(2);
+                        characters[i] = buffer.getChar();
+                    }
+                    return characters;
+                }
+                case BOOLEANS: {
+                    boolean[] booleans = new boolean[readLength()];
+                    for (int i = 0; i < booleans.length; i++) {
+                        booleans[i] = readByte() != 0;
+                    }
+                    return booleans;
+                }
+                case STRINGS: {
+                    String[] strings = new String[readLength()];
+                    for (int i = 0; i < strings.length; i++) {
+                        strings[i] = (String) readValue();
+                    }
+                    return strings;
+                }
+                case DATE:
+                    return new Date(readLong());
+                case LIST:
+                case SET: {
+                    int size = readLength();
+                    Collection<Object> collection = tag == LIST ? new ArrayList<>(size) : new LinkedHashSet<>(size * 4 / 3 + 1);
+                    enter();
+                    for (int i = 0; i < size; i++) {
+                        collection.add(readValue());
+                    }
+                    depth--;
+                    return collection;
+                }
+                case MAP: {
+                    int size = readLength();
+                    Map<Object, Object> map = new LinkedHashMap<>(size * 4 / 3 + 1);
+                    enter();
+                    for (int i = 0; i < size; i++) {
+                        map.put(readValue(), readValue());
+                    }
+                    depth--;
+                    return map;
+                }
+                case ENUM: {
+                    Class<?> cl = (Class<?>) readClass(false);
+                    return readEnum(cl, readString());
+                }
+                case OBJECT: {
+                    Plan plan = (Plan) readClass(true);
+                    Object obj = plan.newInstance();
+                    enter();
+                    readFields(plan, obj);
+                    depth--;
+                    return obj;
+                }
+                default:
+                    throw new IOException("Wrong value tag " + tag);
+            }
+        }
+
+        /**
+         * Corrupt data can nest deeper than any written graph, fail it before it overflows the stack.
+         */
+        private void enter() throws IOException {
+            if (++depth > MAX_DEPTH) {
+                throw new IOException("Object data is nested deeper than " + MAX_DEPTH);
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static Object readEnum(Class<?> cl, String name) throws IOException {
+            try {
+                return Enum.valueOf((Class<? extends Enum>) cl, name);
+            } catch (IllegalArgumentException | ClassCastException e) {
+                throw new IOException("Enum constant " + cl.getName() + "." + name + " is not found", e);
+            }
+        }
+
+        private void readFields(Plan plan, Object obj) throws IOException {
+            try {
+                for (int i = 0; i < plan.fields.length; i++) {
+                    Field field = plan.fields[i];
+                    switch (plan.kinds[i]) {
+                        case BOOLEAN:
+                            field.setBoolean(obj, readByte() != 0);
+                            break;
+                        case BYTE:
+                            field.setByte(obj, readByte());
+                            break;
+                        case SHORT:
+                            ensure(2);
+                            field.setShort(obj, buffer.getShort());
+                            break;
+                        case CHAR:
+                            ensure(2);
+                            field.setChar(obj, buffer.getChar());
+                            break;
+                        case INT:
+                            field.setInt(obj, readInt());
+                            break;
+                        case LONG:
+                            field.setLong(obj, readLong());
+                            break;
+                        case FLOAT:
+                            field.setFloat(obj, Float.intBitsToFloat(readInt()));
+                            break;
+                        case DOUBLE:
+                            field.setDouble(obj, Double.longBitsToDouble(readLong()));
+                            break;
+                        default:
+                            field.set(obj, convert(readValue(), field.getType()));
+                    }
+                }
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                throw new IOException("Can't set field of " + plan.type.getName(), e);
+            }
+        }
+
+        /**
+         * Read the class reference, check the fingerprint of the new class.
+         *
+         * @return plan of the object class or the enum class
+         */
+        private Object readClass(boolean isObject) throws IOException {
+            int index = readVarInt();
+            if (index > 0) {
+                if (index > classes.size()) {
+                    throw new IOException("Wrong class reference " + index);
+                }
+                return classes.get(index - 1);
+            }
+            String name = readString();
+            int fingerprint = readInt();
+            Class<?> cl;
+            try {
+                cl = Class.forName(name, false, loader);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Class " + name + " is not found", e);
+            }
+            Object entry = cl;
+            if (isObject) {
+                Plan plan = getPlan(cl);
+                if (plan.fingerprint != fingerprint) {
+                    throw new IOException("Class " + name + " is changed since the data was written");
+                }
+                entry = plan;
+            }
+            classes.add(entry);
+            return entry;
+        }
+
+        private String readString() throws IOException {
+            int length = readLength();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                ensure(1);
+                int b = buffer.get() & 0xff;
+                if (b < 0x80) {
+                    chars[i] = (char) b;
+                } else if (b < 0xe0) {
+                    ensure(1);
+                    chars[i] = (char) (((b & 0x1f) << 6) | (buffer.get() & 0x3f));
+                } else {
+                    ensure(2);
+                    chars[i] = (char) (((b & 0x0f) << 12) | ((buffer.get() & 0x3f) << 6) | (buffer.get() & 0x3f));
+                }
+            }
+            return new String(chars, 0, length);
+        }
+
+        /**
+         * Read the count of elements. Every element takes at least one byte, so the count is checked against the rest of the channel to
+         * not allocate a huge array for the corrupt data.
+         */
+        private int readLength() throws IOException {
+            int length = readVarInt();
+            if (length < 0 || length > size - position + buffer.remaining()) {
+                throw new IOException("Wrong length " + length);
+            }
+            return length;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Wrong varint");
+        }
+
+        private byte readByte() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        private int readInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        private long readLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        private void readBytes(byte[] bytes) throws IOException {
+            int count = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, count);
+            ByteBuffer data = ByteBuffer.wrap(bytes, count, bytes.length - count);
+            while (data.hasRemaining()) {
+                position += read(data);
+            }
+        }
+
+        private void ensure(int count) throws IOException {
+            if (buffer.remaining() >= count) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < count) {
+                position += read(buffer);
+            }
+            buffer.flip();
+        }
+
+        private int read(ByteBuffer data) throws IOException {
+            int count = channel.read(data);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            return count;
+        }
+
+        private void release() {
+            BufferPool.release(array);
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+/**
+ * Listener for a long file operations. Receives the progress and can cancel the operation.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public interface ProgressListener {
+
+    /**
+     * Called after each transferred chunk of data.
+     *
+     * @param processed count of already processed bytes
+     * @param total     total count of bytes or -1 if unknown
+     * @return true to continue the operation, false to cancel it
+     */
+    boolean onProgress(long processed, long total);
+
+}
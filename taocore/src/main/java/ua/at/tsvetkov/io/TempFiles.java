@@ -0,0 +1,259 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.io;
+
+import android.os.Process;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ua.at.tsvetkov.application.AppConfig;
+import ua.at.tsvetkov.util.Log;
+
+/**
+ * Temp files with tracked handles. Every temp file is created in the directory of the current process FileIO.getCacheDir() + "tmp/pid/"
+ * and is deleted when its handle is closed (after the last release if the handle is retained), or when the not closed handle is garbage
+ * collected, or at the first use after restart: the directories of the processes which are not running anymore and the directory of the
+ * current pid left by a previous process are swept.
+ * <p/>
+ * A handle which is garbage collected without close is a leak, it is logged with the creation stack trace in the debug mode.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class TempFiles {
+
+    private static final String TMP = "tmp";
+    private static final ReferenceQueue<Handle> QUEUE = new ReferenceQueue<>();
+    private static final Set<Tracked> OUTSTANDING = Collections.newSetFromMap(new ConcurrentHashMap<Tracked, Boolean>());
+    private static File dir;
+
+    private TempFiles() {
+
+    }
+
+    /**
+     * Create the temp file.
+     *
+     * @param prefix file name prefix
+     * @param suffix file name suffix, ".tmp" if null
+     * @return handle of the empty file, must be closed
+     * @throws IOException if the file can't be created
+     */
+    public static Handle create(String prefix, String suffix) throws IOException {
+        cleanup();
+        File file = File.createTempFile(prefix.length() < 3 ? prefix + "___" : prefix, suffix, getDir());
+        Handle handle = new Handle(file);
+        OUTSTANDING.add(handle.tracked);
+        return handle;
+    }
+
+    /**
+     * @return the temp directory of the current process, the directory of previous processes is swept on the first call
+     */
+    public static synchronized File getDir() {
+        if (dir == null) {
+            File root = new File(FileIO.getCacheDir(), TMP);
+            dir = new File(root, String.valueOf(Process.myPid()));
+            sweep(root, dir);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.e("Can't create temp directory " + dir);
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * @return count of not closed handles
+     */
+    public static int getOutstandingCount() {
+        cleanup();
+        return OUTSTANDING.size();
+    }
+
+    /**
+     * @return total size of files of not closed handles
+     */
+    public static long getOutstandingBytes() {
+        cleanup();
+        long bytes = 0;
+        for (Tracked tracked : OUTSTANDING) {
+            bytes += tracked.file.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Delete the files of handles which are garbage collected without close. Called on every create().
+     */
+    public static void cleanup() {
+        Tracked tracked;
+        while ((tracked = (Tracked) QUEUE.poll()) != null) {
+            if (OUTSTANDING.remove(tracked)) {
+                Log.w("Temp file " + tracked.file + " is not closed, deleted on GC", tracked.trace);
+                delete(tracked.file);
+            }
+        }
+    }
+
+    // ==========================================================
+
+    private static void sweep(File root, File own) {
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File pidDir : dirs) {
+            if (pidDir.equals(own) || !isRunning(pidDir.getName())) {
+                FileTree.Result result = FileTree.delete(pidDir);
+                if (result.getFileCount() > 0) {
+                    Log.i("Swept " + result.getFileCount() + " temp files, " + result.getByteCount() + " bytes of " + pidDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * The process is running if /proc/pid exists, the other app processes have the same uid so they are visible.
+     */
+    private static boolean isRunning(String pid) {
+        try {
+            Integer.parseInt(pid);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return new File("/proc/" + pid).exists();
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w("Fail to delete temp file " + file);
+        }
+    }
+
+    // ==========================================================
+
+    /**
+     * Handle of the temp file. Closing deletes the file, unless it is committed. Retain the handle to share it, every retain needs a close.
+     */
+    public static final class Handle implements Closeable {
+
+        private final File file;
+        private final Tracked tracked;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Handle(File file) {
+            this.file = file;
+            tracked = new Tracked(this, file);
+        }
+
+        /**
+         * @return the temp file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Add the reference to the handle.
+         *
+         * @return this handle
+         */
+        public Handle retain() {
+            int count;
+            do {
+                count = refs.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Temp file handle is closed " + file);
+                }
+            } while (!refs.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /**
+         * Move the temp file to the destination, the file is not tracked anymore. The handle is closed regardless of the retains.
+         *
+         * @param dst destination file
+         * @return true if success, else the temp file is still tracked
+         */
+        public boolean commit(File dst) {
+            if (refs.get() <= 0) {
+                Log.e("Temp file handle is closed " + file);
+                return false;
+            }
+            if (!file.renameTo(dst)) {
+                Log.e("Can't move temp file " + file + " to " + dst);
+                return false;
+            }
+            refs.set(0);
+            OUTSTANDING.remove(tracked);
+            tracked.clear();
+            return true;
+        }
+
+        /**
+         * @return true if the handle is closed or committed
+         */
+        public boolean isClosed() {
+            return refs.get() <= 0;
+        }
+
+        /**
+         * Release the reference, the file is deleted after the last one.
+         */
+        @Override
+        public void close() {
+            if (refs.decrementAndGet() != 0) {
+                return;
+            }
+            if (OUTSTANDING.remove(tracked)) {
+                delete(file);
+            }
+            tracked.clear();
+        }
+
+    }
+
+    private static final class Tracked extends WeakReference<Handle> {
+
+        private final File file;
+        private final Throwable trace;
+
+        private Tracked(Handle handle, File file) {
+            super(handle, QUEUE);
+            this.file = file;
+            trace = AppConfig.isDebuggable() ? new Throwable("Temp file is created here") : null;
+        }
+
+    }
+
+}
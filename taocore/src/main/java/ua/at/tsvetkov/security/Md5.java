@@ -5,10 +5,12 @@ package ua.at.tsvetkov.security;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import ua.at.tsvetkov.io.BufferPool;
 import ua.at.tsvetkov.util.Log;
 
 /**
@@ -16,6 +18,8 @@ import ua.at.tsvetkov.util.Log;
  */
 public final class Md5 {
 
+   private static final int BUFFER_SIZE = 8192;
+
    private Md5() {
 
    }
@@ -28,9 +32,9 @@ public final class Md5 {
     */
    public static byte[] fromInputStream(InputStream in) {
       MessageDigest digester;
+      byte[] bytes = BufferPool.acquire(BUFFER_SIZE);
       try {
          digester = MessageDigest.getInstance("MD5");
-         byte[] bytes = new byte[8192];
          int byteCount;
          while ((byteCount = in.read(bytes)) > 0) {
             digester.update(bytes, 0, byteCount);
@@ -38,6 +42,8 @@ public final class Md5 {
          return digester.digest();
       } catch (Exception e) {
          Log.e(e);
+      } finally {
+         BufferPool.release(bytes);
       }
       return null;
    }
@@ -49,13 +55,22 @@ public final class Md5 {
     * @return null if has error or hash value
     */
    public static byte[] fromFile(String fileName) {
+      InputStream in;
       try {
-         InputStream in = new FileInputStream(fileName);
-         return fromInputStream(in);
+         in = new FileInputStream(fileName);
       } catch (FileNotFoundException e) {
          Log.e(e);
+         return null;
+      }
+      try {
+         return fromInputStream(in);
+      } finally {
+         try {
+            in.close();
+         } catch (IOException e) {
+            Log.w("Can't close " + fileName, e);
+         }
       }
-      return null;
    }
 
    /**
@@ -78,22 +93,22 @@ public final class Md5 {
     * Return hash sum String for given file data
     *
     * @param fileName path to file
-    * @return hash sum String
+    * @return hash sum String or null if the file can't be read
     */
    public static String getHashString(String fileName) {
       byte[] hash = fromFile(fileName);
-      return hashToString(hash);
+      return hash == null ? null : hashToString(hash);
    }
 
    /**
     * Return hash sum String for given data InputStream
     *
     * @param in InputStream
-    * @return hash sum String
+    * @return hash sum String or null if the stream can't be read
     */
    public static String getHashString(InputStream in) {
       byte[] hash = fromInputStream(in);
-      return hashToString(hash);
+      return hash == null ? null : hashToString(hash);
    }
 
    /**
@@ -102,7 +117,7 @@ public final class Md5 {
     * @param hash byte array of hash sum
     * @return hash sum String
     */
-   private static String hashToString(byte[] hash) {
+   public static String hashToString(byte[] hash) {
       StringBuilder hex = new StringBuilder(hash.length * 2);
       for (byte b : hash) {
          if ((b & 0xFF) < 0x10) {
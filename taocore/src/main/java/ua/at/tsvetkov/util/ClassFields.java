@@ -0,0 +1,112 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ * <p/>
+ * Contributors:
+ * Alexandr Tsvetkov - initial API and implementation
+ * <p/>
+ * Project:
+ * TAO Core
+ * <p/>
+ * License agreement:
+ * <p/>
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ * caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ * permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ * this license agreement will remain unchanged.
+ * ****************************************************************************
+ */
+package ua.at.tsvetkov.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of reflected class fields. The fields are looked up and made accessible once per class, which is the expensive part of the
+ * reflection. The returned arrays are shared and must not be modified.
+ *
+ * @author Alexandr Tsvetkov 2016
+ */
+public final class ClassFields {
+
+    private static final ConcurrentHashMap<Class<?>, Field[]> DECLARED = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, Field[]> INSTANCE = new ConcurrentHashMap<>();
+    private static final Comparator<Field> BY_NAME = new Comparator<Field>() {
+        @Override
+        public int compare(Field lhs, Field rhs) {
+            return lhs.getName().compareTo(rhs.getName());
+        }
+    };
+
+    private ClassFields() {
+
+    }
+
+    /**
+     * @param cl the class
+     * @return accessible fields declared in the class, in the declaration order
+     */
+    public static Field[] getDeclared(Class<?> cl) {
+        Field[] fields = DECLARED.get(cl);
+        if (fields == null) {
+            fields = cl.getDeclaredFields();
+            for (Field field : fields) {
+                setAccessible(field);
+            }
+            DECLARED.putIfAbsent(cl, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * @param cl the class
+     * @return accessible not static, not transient and not synthetic fields of the class and its superclasses. The superclass fields go
+     * first, the fields of each class are sorted by name, so the order does not depend on the reflection implementation.
+     */
+    public static Field[] getInstance(Class<?> cl) {
+        Field[] fields = INSTANCE.get(cl);
+        if (fields == null) {
+            List<Field> list = new ArrayList<>();
+            collectInstance(cl, list);
+            fields = list.toArray(new Field[list.size()]);
+            INSTANCE.putIfAbsent(cl, fields);
+        }
+        return fields;
+    }
+
+    private static void collectInstance(Class<?> cl, List<Field> list) {
+        if (cl == null || cl == Object.class) {
+            return;
+        }
+        collectInstance(cl.getSuperclass(), list);
+        Field[] declared = getDeclared(cl).clone();
+        Arrays.sort(declared, BY_NAME);
+        for (Field field : declared) {
+            int modifiers = field.getModifiers();
+            if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                list.add(field);
+            }
+        }
+    }
+
+    private static void setAccessible(Field field) {
+        try {
+            field.setAccessible(true);
+        } catch (SecurityException e) {
+            // the field stays inaccessible, the access to it fails later
+        }
+    }
+
+}
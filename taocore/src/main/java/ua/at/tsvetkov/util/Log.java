@@ -698,7 +698,7 @@ public class Log {
         int max = 0;
         String formatString = PREFIX + "%-" + max + "s = %s" + NL;
         StringBuilder sb = new StringBuilder();
-        Field[] fields = cl.getDeclaredFields();
+        Field[] fields = ClassFields.getDeclared(cl);
 
         for (Field field : fields) {
             int length = field.getName().length();
@@ -712,9 +712,7 @@ public class Log {
         sb.append(NL);
         for (Field field : fields) {
             try {
-                Field myField = getField(cl, field.getName());
-                myField.setAccessible(true);
-                sb.append(String.format(formatString, field.getName(), myField.get(myObj)));
+                sb.append(String.format(formatString, field.getName(), field.get(myObj)));
             } catch (Exception e) {
                 sb.append(PREFIX);
                 sb.append("Can't access to field ");
@@ -733,17 +731,15 @@ public class Log {
      */
     public static String obj(Object myObj) {
         Class<?> cl = myObj.getClass();
-        Field[] fields = cl.getDeclaredFields();
+        Field[] fields = ClassFields.getDeclared(cl);
         StringBuilder sb = new StringBuilder();
         sb.append(cl.getSimpleName());
         sb.append(" [");
         for (int i = 0; i < fields.length; i++) {
             try {
-                Field myField = getField(cl, fields[i].getName());
-                myField.setAccessible(true);
                 sb.append(fields[i].getName());
                 sb.append("=");
-                sb.append(myField.get(myObj));
+                sb.append(fields[i].get(myObj));
                 if (fields.length != 1 && i < (fields.length - 1)) {
                     sb.append(", ");
                 }
@@ -799,7 +795,7 @@ public class Log {
      * @param xmlStr your xml data
      * @return readable representation
      */
-    public String xml(String xmlStr) {
+    public static String xml(String xmlStr) {
         return xml(xmlStr, 2);
     }
 
@@ -810,7 +806,7 @@ public class Log {
      * @param indentation xml identetion
      * @return readable representation
      */
-    public String xml(String xmlStr, int indentation) {
+    public static String xml(String xmlStr, int indentation) {
         try {
             Source xmlInput = new StreamSource(new StringReader(xmlStr));
             StreamResult xmlOutput = new StreamResult(new StringWriter());
@@ -851,19 +847,6 @@ public class Log {
         return sb;
     }
 
-    private static Field getField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
-        try {
-            return clazz.getDeclaredField(fieldName);
-        } catch (NoSuchFieldException e) {
-            Class<?> superClass = clazz.getSuperclass();
-            if (superClass == null) {
-                throw e;
-            } else {
-                return getField(superClass, fieldName);
-            }
-        }
-    }
-
     private static String getTag() {
         final String className = Log.class.getName();
         final StackTraceElement[] traces = Thread.currentThread().getStackTrace();